@@ -0,0 +1,31 @@
+package iot.data.platform.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class DensifyBenchmark {
+    @Param({"5", "20", "60"})
+    public double routeKm;
+
+    @Param({"5", "10", "25"})
+    public double densifyStepM;
+
+    private List<Types.ShapePoint> shape;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        shape = SyntheticRoutes.generate(routeKm, 42L).shape;
+    }
+
+    @Benchmark
+    public List<Types.ShapePoint> densify() {
+        return PolylineUtils.densify(shape, densifyStepM);
+    }
+}
@@ -0,0 +1,65 @@
+package iot.data.platform.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class DetectBenchmark {
+    @Param({"5", "20", "60"})
+    public double routeKm;
+
+    @Param({"5", "10", "25"})
+    public double densifyStepM;
+
+    @Param({"true", "false"})
+    public boolean windowedProjection;
+
+    @Param({"true", "false"})
+    public boolean stopProximityEarlyOut;
+
+    private StopArrivalAlgorithm algorithm;
+    private TripRuntime trip;
+    private List<Types.PositionSample> samples;
+    private VehicleState state;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Config d = Config.defaults();
+        Config cfg = new Config(
+                densifyStepM,
+                d.toleranceM(),
+                d.maxScheduleAnchorGapMillis(),
+                d.planarMaxErrorM(),
+                windowedProjection,
+                d.maxSpeedMps(),
+                d.windowSlackM(),
+                d.windowMatchMaxDistM(),
+                d.simplifyToleranceM(),
+                Math.max(d.maxSegmentM(), densifyStepM),
+                d.curvatureTurnDeg(),
+                stopProximityEarlyOut,
+                d.monotonicStopProjection()
+        );
+        SyntheticRoutes route = SyntheticRoutes.generate(routeKm, 42L);
+        algorithm = new StopArrivalAlgorithm(cfg);
+        trip = new TripRuntime(route.stops, route.shape, -1L, cfg);
+        samples = route.samples;
+    }
+
+    // Replays the trip sample by sample, restarting from an empty state at the end of the route.
+    @Benchmark
+    public StopArrivalAlgorithm.Result detect() {
+        if (next == 0) state = null;
+        StopArrivalAlgorithm.Result r = algorithm.detect(samples.get(next), trip, state);
+        state = r.newState();
+        next = (next + 1) % samples.size();
+        return r;
+    }
+}
@@ -0,0 +1,48 @@
+package iot.data.platform.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class ProjectionBenchmark {
+    // simplification is off in Config.defaults(), so the simplified variant uses its own tolerance
+    private static final double SIMPLIFY_TOLERANCE_M = 1.0;
+
+    @Param({"5", "20", "60"})
+    public double routeKm;
+
+    @Param({"5", "10", "25"})
+    public double densifyStepM;
+
+    @Param({"true", "false"})
+    public boolean simplify;
+
+    private ShapeGeometry geometry;
+    private List<Types.PositionSample> samples;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticRoutes route = SyntheticRoutes.generate(routeKm, 42L);
+        Config d = Config.defaults();
+        List<Types.ShapePoint> prepared = simplify
+                ? ShapeSimplifier.refine(ShapeSimplifier.simplify(route.shape, SIMPLIFY_TOLERANCE_M),
+                        densifyStepM, Math.max(d.maxSegmentM(), densifyStepM), d.curvatureTurnDeg())
+                : PolylineUtils.densify(route.shape, densifyStepM);
+        geometry = ShapeGeometry.of(prepared, d.planarMaxErrorM());
+        samples = route.samples;
+    }
+
+    @Benchmark
+    public double projectAlongMeters() {
+        Types.PositionSample s = samples.get(next);
+        next = (next + 1) % samples.size();
+        return PolylineProjection.projectAlongMeters(s.lat(), s.lon(), geometry);
+    }
+}
@@ -0,0 +1,62 @@
+package iot.data.platform.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+final class SyntheticRoutes {
+    private static final double ORIGIN_LAT = 59.33;
+    private static final double ORIGIN_LON = 18.06;
+    private static final double METERS_PER_DEG_LAT = 111_320.0;
+
+    final List<Types.ShapePoint> shape;
+    final List<Types.StopPoint> stops;
+    final List<Types.PositionSample> samples;
+
+    private SyntheticRoutes(List<Types.ShapePoint> shape, List<Types.StopPoint> stops, List<Types.PositionSample> samples) {
+        this.shape = shape;
+        this.stops = stops;
+        this.samples = samples;
+    }
+
+    // A meandering street-like route: ~25 m between raw shape points, a stop every ~400 m and
+    // one GPS sample every 10 s at ~8 m/s with a few metres of noise.
+    static SyntheticRoutes generate(double lengthKm, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        double metersPerDegLon = METERS_PER_DEG_LAT * Math.cos(Math.toRadians(ORIGIN_LAT));
+
+        List<Types.ShapePoint> shape = new ArrayList<>();
+        double x = 0, y = 0, heading = rnd.nextDouble(2 * Math.PI);
+        double lengthM = lengthKm * 1000.0;
+        for (double d = 0; d <= lengthM; d += 25.0) {
+            shape.add(new Types.ShapePoint(ORIGIN_LAT + y / METERS_PER_DEG_LAT, ORIGIN_LON + x / metersPerDegLon));
+            if (rnd.nextInt(8) == 0) heading += rnd.nextDouble(-Math.PI / 2, Math.PI / 2);
+            x += 25.0 * Math.cos(heading);
+            y += 25.0 * Math.sin(heading);
+        }
+
+        List<Types.StopPoint> stops = new ArrayList<>();
+        int seq = 1;
+        for (int i = 0; i < shape.size(); i += 16) {
+            Types.ShapePoint p = shape.get(i);
+            stops.add(new Types.StopPoint("S" + seq, p.lat(), p.lon(), seq));
+            seq++;
+        }
+
+        List<Types.PositionSample> samples = new ArrayList<>();
+        double noiseDeg = 4.0 / METERS_PER_DEG_LAT;
+        long ts = 0;
+        for (double along = 0; along < lengthM; along += 80.0) {
+            Types.ShapePoint p = shape.get((int) (along / 25.0));
+            samples.add(new Types.PositionSample(
+                    "V1",
+                    "T1",
+                    p.lat() + rnd.nextDouble(-noiseDeg, noiseDeg),
+                    p.lon() + rnd.nextDouble(-noiseDeg, noiseDeg),
+                    ts
+            ));
+            ts += 10_000L;
+        }
+        return new SyntheticRoutes(List.copyOf(shape), List.copyOf(stops), List.copyOf(samples));
+    }
+}
@@ -0,0 +1,49 @@
+package iot.data.platform.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class TripRuntimeBenchmark {
+    @Param({"5", "20", "60"})
+    public double routeKm;
+
+    @Param({"5", "10", "25"})
+    public double densifyStepM;
+
+    @Param({"true", "false"})
+    public boolean monotonicStopProjection;
+
+    private SyntheticRoutes route;
+    private Config cfg;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        route = SyntheticRoutes.generate(routeKm, 42L);
+        Config d = Config.defaults();
+        cfg = new Config(
+                densifyStepM,
+                d.toleranceM(),
+                d.maxScheduleAnchorGapMillis(),
+                d.planarMaxErrorM(),
+                d.windowedProjection(),
+                d.maxSpeedMps(),
+                d.windowSlackM(),
+                d.windowMatchMaxDistM(),
+                d.simplifyToleranceM(),
+                Math.max(d.maxSegmentM(), densifyStepM),
+                d.curvatureTurnDeg(),
+                d.stopProximityEarlyOut(),
+                monotonicStopProjection
+        );
+    }
+
+    @Benchmark
+    public TripRuntime build() {
+        return new TripRuntime(route.stops, route.shape, -1L, cfg);
+    }
+}
@@ -0,0 +1,76 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+import iot.data.platform.core.VehicleState;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class SerdeBenchmark {
+    private static final String TOPIC = "bench";
+
+    private final VehicleKey key = new VehicleKey("sl", "9031005920505142", "14010000662155418");
+    private final VehicleState state = new VehicleState(12_345.678, 17, 1_700_000_000_000L);
+    private final Types.PositionSample sample =
+            new Types.PositionSample("9031005920505142", "14010000662155418", 59.3293, 18.0686, 1_700_000_000_000L);
+
+    private RoundTrip<VehicleKey> jsonKey;
+    private RoundTrip<VehicleState> jsonState;
+    private RoundTrip<Types.PositionSample> jsonSample;
+    private RoundTrip<VehicleKey> binaryKey;
+    private RoundTrip<VehicleState> binaryState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        jsonKey = new RoundTrip<>(new JsonSerde<>(VehicleKey.class));
+        jsonState = new RoundTrip<>(new JsonSerde<>(VehicleState.class));
+        jsonSample = new RoundTrip<>(new JsonSerde<>(Types.PositionSample.class));
+        binaryKey = new RoundTrip<>(new VehicleKeySerde());
+        binaryState = new RoundTrip<>(new VehicleStateSerde());
+    }
+
+    @Benchmark
+    public VehicleKey jsonVehicleKey() {
+        return jsonKey.apply(key);
+    }
+
+    @Benchmark
+    public VehicleState jsonVehicleState() {
+        return jsonState.apply(state);
+    }
+
+    @Benchmark
+    public Types.PositionSample jsonPositionSample() {
+        return jsonSample.apply(sample);
+    }
+
+    @Benchmark
+    public VehicleKey binaryVehicleKey() {
+        return binaryKey.apply(key);
+    }
+
+    @Benchmark
+    public VehicleState binaryVehicleState() {
+        return binaryState.apply(state);
+    }
+
+    private static final class RoundTrip<T> {
+        private final Serializer<T> serializer;
+        private final Deserializer<T> deserializer;
+
+        RoundTrip(Serde<T> serde) {
+            this.serializer = serde.serializer();
+            this.deserializer = serde.deserializer();
+        }
+
+        T apply(T value) {
+            return deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, value));
+        }
+    }
+}
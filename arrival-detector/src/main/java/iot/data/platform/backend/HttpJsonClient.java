@@ -3,13 +3,23 @@ package iot.data.platform.backend;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
 
 class HttpJsonClient {
-    private final HttpClient http = HttpClient.newHttpClient();
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
     private final ObjectMapper mapper = new ObjectMapper();
     private final String baseUrl;
 
@@ -21,24 +31,69 @@ class HttpJsonClient {
 
     <T> T get(String path, Class<T> type) {
         try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + path))
+            HttpRequest req = request(path)
                     .GET()
                     .build();
-            HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-            if (resp.statusCode() / 100 != 2) {
-                throw new RuntimeException("HTTP " + resp.statusCode() + " for " + path);
+            try (InputStream body = send(req, path)) {
+                return mapper.readValue(body, type);
             }
-            return mapper.readValue(resp.body(), type);
+        } catch (HttpStatusException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException("HTTP GET failed: " + path, e);
         }
     }
 
+    InputStream post(String path, Object body) {
+        try {
+            HttpRequest req = request(path)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(body)))
+                    .build();
+            return send(req, path);
+        } catch (HttpStatusException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("HTTP POST failed: " + path, e);
+        }
+    }
+
     ObjectMapper mapper() {
         return mapper;
     }
 
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip");
+    }
+
+    private InputStream send(HttpRequest req, String path) throws IOException, InterruptedException {
+        HttpResponse<InputStream> resp = http.send(req, HttpResponse.BodyHandlers.ofInputStream());
+        InputStream body = resp.body();
+        if (resp.statusCode() / 100 != 2) {
+            body.close();
+            throw new HttpStatusException(resp.statusCode(), path);
+        }
+        boolean gzip = resp.headers().firstValue("Content-Encoding")
+                .map(v -> v.equalsIgnoreCase("gzip"))
+                .orElse(false);
+        return gzip ? new GZIPInputStream(body, 1 << 16) : body;
+    }
+
+    static class HttpStatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        HttpStatusException(int statusCode, String path) {
+            super("HTTP " + statusCode + " for " + path);
+            this.statusCode = statusCode;
+        }
+    }
+
     @JsonIgnoreProperties(ignoreUnknown = true)
     static class ShapeResponse {
         public String tripId;
@@ -71,4 +126,14 @@ class HttpJsonClient {
             public String departureTime;
         }
     }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class TripBundleResponse {
+        public String tripId;
+        public String routeId;
+        public String shapeId;
+        public Long scheduledStartTimeMillis;
+        public java.util.List<StopsResponse.StopDto> stops;
+        public java.util.List<ShapeResponse.Point> points;
+    }
 }
@@ -1,38 +1,79 @@
 package iot.data.platform.backend;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import iot.data.platform.cache.CacheReport;
+import iot.data.platform.cache.CacheReporter;
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.cache.Caches;
+import iot.data.platform.cache.Weights;
 import iot.data.platform.core.Types;
 import iot.data.platform.spi.ShapeProvider;
 
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-public class HttpShapeProvider implements ShapeProvider {
+public class HttpShapeProvider implements ShapeProvider, CacheReporter {
     private final HttpJsonClient client;
 
-    private final Map<String, List<Types.ShapePoint>> cache = new ConcurrentHashMap<>();
+    private final LoadingCache<String, TripShape> cache;
+    private final Cache<String, List<Types.ShapePoint>> pointsByShapeId;
 
     public HttpShapeProvider(String baseUrl) {
+        this(baseUrl, CacheSpec.defaults());
+    }
+
+    public HttpShapeProvider(String baseUrl, CacheSpec cacheSpec) {
         this.client = new HttpJsonClient(baseUrl);
+        this.cache = Caches.<String, TripShape>refreshingBuilder(cacheSpec,
+                        (tripId, shape) -> Weights.clamp(Weights.string(tripId) + Weights.string(shape.shapeId())
+                                + (shape.shapeId() == null ? Weights.shapePoints(shape.points()) : 0)))
+                .build(this::loadShapeFromBackend);
+        this.pointsByShapeId = Caches.<String, List<Types.ShapePoint>>builder(cacheSpec,
+                        (shapeId, points) -> Weights.clamp(Weights.string(shapeId) + Weights.shapePoints(points)))
+                .build();
     }
 
     @Override
     public List<Types.ShapePoint> getShape(String tripId) {
-        return cache.computeIfAbsent(tripId, this::loadShapeFromBackend);
+        return cache.get(tripId).points();
+    }
+
+    @Override
+    public String getShapeId(String tripId) {
+        return cache.get(tripId).shapeId();
     }
 
-    private List<Types.ShapePoint> loadShapeFromBackend(String tripId) {
+    @Override
+    public List<CacheReport> cacheReports() {
+        return List.of(
+                Caches.report("http-trip-shapes", cache),
+                Caches.report("http-shape-points", pointsByShapeId)
+        );
+    }
+
+    private TripShape loadShapeFromBackend(String tripId) {
         HttpJsonClient.ShapeResponse resp =
                 client.get("/api/trips/" + tripId + "/shape", HttpJsonClient.ShapeResponse.class);
 
+        String shapeId = (resp.shapeId == null || resp.shapeId.isEmpty()) ? null : resp.shapeId;
         if (resp.points == null || resp.points.isEmpty()) {
-            return List.of();
+            return new TripShape(shapeId, List.of());
         }
 
-        return resp.points.stream()
+        List<Types.ShapePoint> points = resp.points.stream()
                 .sorted(Comparator.comparingInt(p -> p.sequence))
                 .map(p -> new Types.ShapePoint(p.lat, p.lon))
                 .toList();
+
+        if (shapeId == null) {
+            return new TripShape(null, points);
+        }
+        return new TripShape(shapeId, pointsByShapeId.get(shapeId, id -> points));
     }
+
+    private record TripShape(
+            String shapeId,
+            List<Types.ShapePoint> points
+    ) {}
 }
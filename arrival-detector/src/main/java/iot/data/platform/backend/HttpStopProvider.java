@@ -1,25 +1,41 @@
 package iot.data.platform.backend;
 
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import iot.data.platform.cache.CacheReport;
+import iot.data.platform.cache.CacheReporter;
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.cache.Caches;
+import iot.data.platform.cache.Weights;
 import iot.data.platform.core.Types;
 import iot.data.platform.spi.StopProvider;
 
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-public class HttpStopProvider implements StopProvider {
+public class HttpStopProvider implements StopProvider, CacheReporter {
     private final HttpJsonClient client;
 
-    private final Map<String, List<Types.StopPoint>> cache = new ConcurrentHashMap<>();
+    private final LoadingCache<String, List<Types.StopPoint>> cache;
 
     public HttpStopProvider(String baseUrl) {
+        this(baseUrl, CacheSpec.defaults());
+    }
+
+    public HttpStopProvider(String baseUrl, CacheSpec cacheSpec) {
         this.client = new HttpJsonClient(baseUrl);
+        this.cache = Caches.<String, List<Types.StopPoint>>refreshingBuilder(cacheSpec,
+                        (tripId, stops) -> Weights.clamp(Weights.string(tripId) + Weights.stops(stops)))
+                .build(this::loadStopsFromBackend);
     }
 
     @Override
     public List<Types.StopPoint> getStops(String tripId) {
-        return cache.computeIfAbsent(tripId, this::loadStopsFromBackend);
+        return cache.get(tripId);
+    }
+
+    @Override
+    public List<CacheReport> cacheReports() {
+        return List.of(Caches.report("http-stops", cache));
     }
 
     private List<Types.StopPoint> loadStopsFromBackend(String tripId) {
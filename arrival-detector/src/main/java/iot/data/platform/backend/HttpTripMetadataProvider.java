@@ -0,0 +1,271 @@
+package iot.data.platform.backend;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import iot.data.platform.cache.CacheReport;
+import iot.data.platform.cache.CacheReporter;
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.cache.Caches;
+import iot.data.platform.cache.Weights;
+import iot.data.platform.core.Types;
+import iot.data.platform.spi.ShapeProvider;
+import iot.data.platform.spi.StopProvider;
+import iot.data.platform.spi.TripScheduleProvider;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Trip metadata fetched in batches. Loads block on the thread that asked for them, and that thread also sends
+// the batch once the window has passed, so the provider runs entirely on the caller's loader threads and a load
+// never waits on a queued task behind other waiting loads.
+public class HttpTripMetadataProvider implements StopProvider, ShapeProvider, TripScheduleProvider, CacheReporter {
+    static final String BATCH_PATH = "/api/trips/batch";
+
+    private final HttpJsonClient client;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+
+    private final AsyncLoadingCache<String, TripMetadata> cache;
+    private final Cache<String, List<Types.ShapePoint>> pointsByShapeId;
+
+    private final Object lock = new Object();
+    private Map<String, CompletableFuture<TripMetadata>> pending = new HashMap<>();
+    private volatile boolean batchEndpointAvailable = true;
+
+    public HttpTripMetadataProvider(String baseUrl, CacheSpec cacheSpec, Executor loaderExecutor) {
+        this(baseUrl, cacheSpec, Duration.ofMillis(20), 200, loaderExecutor);
+    }
+
+    public HttpTripMetadataProvider(
+            String baseUrl,
+            CacheSpec cacheSpec,
+            Duration batchWindow,
+            int maxBatchSize,
+            Executor loaderExecutor
+    ) {
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be > 0");
+        this.client = new HttpJsonClient(baseUrl);
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.cache = Caches.<String, TripMetadata>refreshingBuilder(cacheSpec,
+                        (tripId, m) -> Weights.clamp(Weights.string(tripId) + Weights.string(m.shapeId())
+                                + Weights.stops(m.stops())
+                                + (m.shapeId() == null ? Weights.shapePoints(m.points()) : 0)))
+                .executor(loaderExecutor)
+                .buildAsync(new AsyncCacheLoader<>() {
+                    @Override
+                    public CompletableFuture<TripMetadata> asyncLoad(String tripId, Executor executor) {
+                        return request(tripId);
+                    }
+
+                    // Nobody waits on a refresh, so it is fetched on its own rather than parked in a batch.
+                    @Override
+                    public CompletableFuture<TripMetadata> asyncReload(String tripId, TripMetadata old, Executor executor) {
+                        return CompletableFuture.supplyAsync(() -> {
+                            CompletableFuture<TripMetadata> f = new CompletableFuture<>();
+                            fetch(Map.of(tripId, f));
+                            return join(f);
+                        }, executor);
+                    }
+                });
+        this.pointsByShapeId = Caches.<String, List<Types.ShapePoint>>builder(cacheSpec,
+                        (shapeId, points) -> Weights.clamp(Weights.string(shapeId) + Weights.shapePoints(points)))
+                .build();
+    }
+
+    @Override
+    public List<Types.StopPoint> getStops(String tripId) {
+        return metadata(tripId).stops();
+    }
+
+    @Override
+    public List<Types.ShapePoint> getShape(String tripId) {
+        return metadata(tripId).points();
+    }
+
+    @Override
+    public String getShapeId(String tripId) {
+        return metadata(tripId).shapeId();
+    }
+
+    @Override
+    public Types.TripSchedule getSchedule(String tripId) {
+        Long start = metadata(tripId).scheduledStartTimeMillis();
+        return (start == null) ? null : new Types.TripSchedule(start);
+    }
+
+    @Override
+    public List<CacheReport> cacheReports() {
+        return List.of(
+                Caches.report("http-trip-metadata", cache.synchronous()),
+                Caches.report("http-shape-points", pointsByShapeId)
+        );
+    }
+
+    private TripMetadata metadata(String tripId) {
+        CompletableFuture<TripMetadata> f = cache.get(tripId);
+        while (!f.isDone()) {
+            Map<String, CompletableFuture<TripMetadata>> batch = null;
+            synchronized (lock) {
+                if (pending.size() >= maxBatchSize || !batchEndpointAvailable) {
+                    batch = takePendingLocked();
+                }
+            }
+            if (batch == null) {
+                try {
+                    f.get(batchWindow.toNanos(), TimeUnit.NANOSECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    synchronized (lock) {
+                        batch = takePendingLocked();
+                    }
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while loading trip " + tripId, e);
+                }
+            }
+            // Null when another loader took the batch holding this trip; it completes the future when done.
+            if (batch != null) {
+                fetch(batch);
+            }
+        }
+        return join(f);
+    }
+
+    private static TripMetadata join(CompletableFuture<TripMetadata> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private CompletableFuture<TripMetadata> request(String tripId) {
+        synchronized (lock) {
+            return pending.computeIfAbsent(tripId, id -> new CompletableFuture<>());
+        }
+    }
+
+    private Map<String, CompletableFuture<TripMetadata>> takePendingLocked() {
+        if (pending.isEmpty()) return null;
+        Map<String, CompletableFuture<TripMetadata>> batch = pending;
+        pending = new HashMap<>();
+        return batch;
+    }
+
+    private void fetch(Map<String, CompletableFuture<TripMetadata>> batch) {
+        try {
+            if (batchEndpointAvailable) {
+                try {
+                    fetchBatch(batch);
+                } catch (HttpJsonClient.HttpStatusException e) {
+                    if (e.statusCode != 404 && e.statusCode != 405 && e.statusCode != 501) throw e;
+                    System.err.println("[HttpTripMetadata] " + BATCH_PATH + " not supported (HTTP "
+                            + e.statusCode + "), falling back to per-trip requests");
+                    batchEndpointAvailable = false;
+                }
+            }
+            for (Map.Entry<String, CompletableFuture<TripMetadata>> e : batch.entrySet()) {
+                if (!e.getValue().isDone()) {
+                    try {
+                        e.getValue().complete(fetchSingle(e.getKey()));
+                    } catch (RuntimeException ex) {
+                        e.getValue().completeExceptionally(ex);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            batch.values().forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    private void fetchBatch(Map<String, CompletableFuture<TripMetadata>> batch) {
+        try (InputStream in = client.post(BATCH_PATH, Map.of("tripIds", new ArrayList<>(batch.keySet())));
+             JsonParser p = client.mapper().getFactory().createParser(in)) {
+            JsonToken token = p.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.currentName();
+                    p.nextToken();
+                    if ("trips".equals(field)) break;
+                    p.skipChildren();
+                }
+            }
+            if (p.currentToken() != JsonToken.START_ARRAY) {
+                throw new IllegalStateException("Batch response has no trips array");
+            }
+            while (p.nextToken() == JsonToken.START_OBJECT) {
+                HttpJsonClient.TripBundleResponse b = client.mapper().readValue(p, HttpJsonClient.TripBundleResponse.class);
+                CompletableFuture<TripMetadata> f = (b.tripId == null) ? null : batch.get(b.tripId);
+                if (f != null) {
+                    f.complete(toMetadata(b.shapeId, b.stops, b.points, b.scheduledStartTimeMillis));
+                }
+            }
+        } catch (HttpJsonClient.HttpStatusException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Batch trip metadata request failed", e);
+        }
+        for (Map.Entry<String, CompletableFuture<TripMetadata>> e : batch.entrySet()) {
+            if (!e.getValue().isDone()) {
+                e.getValue().completeExceptionally(new HttpJsonClient.HttpStatusException(404, BATCH_PATH + " [" + e.getKey() + "]"));
+            }
+        }
+    }
+
+    private TripMetadata fetchSingle(String tripId) {
+        HttpJsonClient.StopsResponse stops =
+                client.get("/api/trips/" + tripId + "/stops", HttpJsonClient.StopsResponse.class);
+        HttpJsonClient.ShapeResponse shape =
+                client.get("/api/trips/" + tripId + "/shape", HttpJsonClient.ShapeResponse.class);
+        return toMetadata(shape.shapeId, stops.stops, shape.points, null);
+    }
+
+    private TripMetadata toMetadata(
+            String shapeId,
+            List<HttpJsonClient.StopsResponse.StopDto> stopDtos,
+            List<HttpJsonClient.ShapeResponse.Point> pointDtos,
+            Long scheduledStartTimeMillis
+    ) {
+        String sid = (shapeId == null || shapeId.isEmpty()) ? null : shapeId;
+
+        List<Types.StopPoint> stops = (stopDtos == null) ? List.of() : stopDtos.stream()
+                .sorted(Comparator.comparingInt(s -> s.sequence))
+                .map(s -> new Types.StopPoint(s.stopId, s.lat, s.lon, s.sequence))
+                .toList();
+
+        List<Types.ShapePoint> points = (pointDtos == null) ? List.of() : pointDtos.stream()
+                .sorted(Comparator.comparingInt(pt -> pt.sequence))
+                .map(pt -> new Types.ShapePoint(pt.lat, pt.lon))
+                .toList();
+        if (sid != null && !points.isEmpty()) {
+            List<Types.ShapePoint> parsed = points;
+            points = pointsByShapeId.get(sid, id -> parsed);
+        }
+        return new TripMetadata(sid, stops, points, scheduledStartTimeMillis);
+    }
+
+    private record TripMetadata(
+            String shapeId,
+            List<Types.StopPoint> stops,
+            List<Types.ShapePoint> points,
+            Long scheduledStartTimeMillis
+    ) {}
+}
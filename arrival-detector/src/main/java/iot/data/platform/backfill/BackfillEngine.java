@@ -0,0 +1,311 @@
+package iot.data.platform.backfill;
+
+import iot.data.platform.core.Config;
+import iot.data.platform.core.StopArrivalAlgorithm;
+import iot.data.platform.core.TripRuntime;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.core.Types;
+import iot.data.platform.core.VehicleState;
+import iot.data.platform.streams.StopArrivalEvent;
+import iot.data.platform.streams.StopArrivalEvents;
+import iot.data.platform.streams.VehicleKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Replays historical positions one service day at a time. A first pass splits every input into per-day spill
+// files, so only one day of samples is ever held in memory; vehicle state is carried from one day to the next.
+// Arrivals are written out day by day, sorted within the day; an arrival detected just after the rollover may be
+// timed slightly before the previous day's last one.
+public final class BackfillEngine {
+    private static final Comparator<StopArrivalEvent> EVENT_ORDER = Comparator
+            .comparingLong(StopArrivalEvent::arrivalTimeMillis)
+            .thenComparing(StopArrivalEvent::agency)
+            .thenComparing(e -> String.valueOf(e.vehicleId()))
+            .thenComparingInt(StopArrivalEvent::stopSequence);
+    private static final int SPILL_FLUSH_BYTES = 64 * 1024;
+
+    public interface Sink {
+        void write(StopArrivalEvent event) throws IOException;
+    }
+
+    private final TripRuntimeFactory tripRuntimeFactory;
+    private final StopArrivalAlgorithm algorithm;
+    private final ZoneId arrivalZoneId;
+    private final long stateTtlMillis;
+    private final ForkJoinPool pool;
+    private final Path spillRoot;
+
+    private final Map<VehicleKey, VehicleState> states = new ConcurrentHashMap<>();
+    private final LongAdder samplesRead = new LongAdder();
+    private final LongAdder samplesSkipped = new LongAdder();
+    private final LongAdder tripsFailed = new LongAdder();
+
+    public BackfillEngine(
+            TripRuntimeFactory tripRuntimeFactory,
+            Config cfg,
+            ZoneId arrivalZoneId,
+            Duration stateTtl,
+            ForkJoinPool pool,
+            Path spillRoot
+    ) {
+        this.tripRuntimeFactory = tripRuntimeFactory;
+        this.algorithm = new StopArrivalAlgorithm(cfg);
+        this.arrivalZoneId = arrivalZoneId;
+        this.stateTtlMillis = stateTtl.toMillis();
+        this.pool = pool;
+        this.spillRoot = spillRoot;
+    }
+
+    public long run(List<Path> inputs, Sink sink) throws IOException, InterruptedException {
+        List<Path> files = PositionFiles.expand(inputs);
+        Files.createDirectories(spillRoot);
+        Path spillDir = Files.createTempDirectory(spillRoot, "backfill-");
+        try {
+            long t0 = System.nanoTime();
+            DaySpills spills = new DaySpills(spillDir);
+            try {
+                submit(() -> {
+                    files.parallelStream().forEach(file -> readFile(file, spills));
+                    return null;
+                });
+            } finally {
+                spills.close();
+            }
+            System.err.printf("[Backfill] Split %d samples from %d files into %d service days in %d ms%n",
+                    samplesRead.sum(), files.size(), spills.files.size(), (System.nanoTime() - t0) / 1_000_000);
+
+            long arrivals = 0;
+            for (Map.Entry<LocalDate, Path> day : spills.files.entrySet()) {
+                arrivals += replayDay(day.getKey(), day.getValue(), sink);
+                Files.delete(day.getValue());
+            }
+            System.err.printf("[Backfill] Detected %d arrivals in %d ms (skipped %d samples, %d trips failed to load)%n",
+                    arrivals, (System.nanoTime() - t0) / 1_000_000, samplesSkipped.sum(), tripsFailed.sum());
+            return arrivals;
+        } finally {
+            deleteRecursively(spillDir);
+        }
+    }
+
+    private long replayDay(LocalDate day, Path spill, Sink sink) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        Collection<List<Keyed>> vehicles = readSpill(spill);
+        List<StopArrivalEvent> events = submit(() -> vehicles.parallelStream()
+                .flatMap(samples -> replay(samples).stream())
+                .sorted(EVENT_ORDER)
+                .toList());
+        for (StopArrivalEvent e : events) {
+            sink.write(e);
+        }
+
+        // State older than the TTL would be dropped on its next sample anyway; forgetting it keeps a long
+        // backfill from accumulating every vehicle it has ever seen.
+        long horizon = vehicles.stream()
+                .mapToLong(samples -> samples.get(samples.size() - 1).sample.tsMillis())
+                .max().orElse(Long.MIN_VALUE) - stateTtlMillis;
+        states.values().removeIf(s -> s.lastTsMillis() < horizon);
+
+        System.err.printf("[Backfill] %s: %d vehicles, %d arrivals in %d ms%n",
+                day, vehicles.size(), events.size(), (System.nanoTime() - t0) / 1_000_000);
+        return events.size();
+    }
+
+    // Each reader buffers its own per-day records and hands them to the shared spill files in large chunks.
+    private void readFile(Path file, DaySpills spills) {
+        Map<LocalDate, ByteArrayOutputStream> buffers = new HashMap<>();
+        try {
+            long n = PositionFiles.read(file, (key, sample) -> {
+                if (key == null || sample == null || sample.tripId() == null) {
+                    samplesSkipped.increment();
+                    return;
+                }
+                LocalDate day = tripRuntimeFactory.serviceDateAt(sample.tsMillis());
+                ByteArrayOutputStream buf = buffers.computeIfAbsent(day, d -> new ByteArrayOutputStream(SPILL_FLUSH_BYTES));
+                try {
+                    writeRecord(new DataOutputStream(buf), key, sample);
+                    if (buf.size() >= SPILL_FLUSH_BYTES) {
+                        spills.append(day, buf);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            for (Map.Entry<LocalDate, ByteArrayOutputStream> e : buffers.entrySet()) {
+                spills.append(e.getKey(), e.getValue());
+            }
+            samplesRead.add(n);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
+        }
+    }
+
+    private static Collection<List<Keyed>> readSpill(Path spill) throws IOException {
+        Map<VehicleKey, List<Keyed>> buckets = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spill), 1 << 16))) {
+            while (true) {
+                String agency;
+                try {
+                    agency = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String vehicleId = readNullable(in);
+                String tripId = readNullable(in);
+                VehicleKey key = new VehicleKey(agency, vehicleId, tripId);
+                Types.PositionSample sample = new Types.PositionSample(
+                        vehicleId, tripId, in.readDouble(), in.readDouble(), in.readLong());
+                buckets.computeIfAbsent(vehicleOf(key), k -> new ArrayList<>()).add(new Keyed(key, sample));
+            }
+        }
+        return buckets.values();
+    }
+
+    // Mirrors ArrivalDetectorProcessor: state is keyed by (agency, vehicle, trip) and expires after the state TTL.
+    private List<StopArrivalEvent> replay(List<Keyed> samples) {
+        samples.sort(Comparator.comparingLong(k -> k.sample.tsMillis()));
+
+        Map<String, Run> runs = new HashMap<>();
+        List<StopArrivalEvent> events = new ArrayList<>();
+        for (Keyed k : samples) {
+            // a trip id that runs every day gets its own scheduled start per service day
+            Run run = runs.get(k.sample.tripId());
+            if (run == null || !tripRuntimeFactory.isSameRun(run.trip, run.loadedAtMillis, k.sample.tsMillis())) {
+                TripRuntime loaded = loadTrip(k.sample.tripId(), k.sample.tsMillis());
+                if (loaded == null) {
+                    samplesSkipped.increment();
+                    continue;
+                }
+                run = new Run(loaded, k.sample.tsMillis());
+                runs.put(k.sample.tripId(), run);
+            }
+            TripRuntime trip = run.trip;
+            VehicleState prev = states.get(k.key);
+            if (prev != null && k.sample.tsMillis() - prev.lastTsMillis() > stateTtlMillis) {
+                prev = null;
+            }
+            StopArrivalAlgorithm.Result result = algorithm.detect(k.sample, trip, prev);
+            states.put(k.key, result.newState());
+            if (result.arrivals().isEmpty()) {
+                continue;
+            }
+            String serviceDate = tripRuntimeFactory.serviceDate(trip, k.sample.tsMillis()).toString();
+            for (Types.StopArrival a : result.arrivals()) {
+                events.add(StopArrivalEvents.of(k.key.agency(), a, serviceDate, arrivalZoneId));
+            }
+        }
+        return events;
+    }
+
+    private TripRuntime loadTrip(String tripId, long atMillis) {
+        try {
+            return tripRuntimeFactory.getAt(tripId, atMillis);
+        } catch (RuntimeException e) {
+            tripsFailed.increment();
+            System.err.println("[Backfill] Trip " + tripId + " failed to load: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private <T> T submit(Callable<T> task) throws InterruptedException {
+        try {
+            return pool.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, VehicleKey key, Types.PositionSample sample) throws IOException {
+        out.writeUTF(key.agency());
+        writeNullable(out, key.vehicleId());
+        writeNullable(out, key.tripId());
+        out.writeDouble(sample.lat());
+        out.writeDouble(sample.lon());
+        out.writeLong(sample.tsMillis());
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static VehicleKey vehicleOf(VehicleKey key) {
+        return (key.vehicleId() != null)
+                ? new VehicleKey(key.agency(), key.vehicleId(), null)
+                : new VehicleKey(key.agency(), null, key.tripId());
+    }
+
+    private static final class DaySpills {
+        private final Path dir;
+        private final Map<LocalDate, Path> files = new TreeMap<>();
+        private final Map<LocalDate, OutputStream> outs = new HashMap<>();
+
+        DaySpills(Path dir) {
+            this.dir = dir;
+        }
+
+        synchronized void append(LocalDate day, ByteArrayOutputStream buf) throws IOException {
+            if (buf.size() == 0) return;
+            OutputStream out = outs.get(day);
+            if (out == null) {
+                Path file = dir.resolve(day + ".bin");
+                out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+                files.put(day, file);
+                outs.put(day, out);
+            }
+            buf.writeTo(out);
+            buf.reset();
+        }
+
+        synchronized void close() throws IOException {
+            for (OutputStream out : outs.values()) {
+                out.close();
+            }
+            outs.clear();
+        }
+    }
+
+    private record Keyed(VehicleKey key, Types.PositionSample sample) {}
+
+    private record Run(TripRuntime trip, long loadedAtMillis) {}
+}
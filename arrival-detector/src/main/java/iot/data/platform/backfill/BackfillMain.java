@@ -0,0 +1,139 @@
+package iot.data.platform.backfill;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import iot.data.platform.backend.HttpTripMetadataProvider;
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.core.Config;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.gtfs.GtfsStaticProvider;
+import iot.data.platform.spi.ShapeProvider;
+import iot.data.platform.spi.StopProvider;
+import iot.data.platform.spi.TripScheduleProvider;
+import iot.data.platform.streams.ArrivalDetectorTopology;
+import iot.data.platform.streams.StopArrivalEvent;
+import iot.data.platform.streams.StopArrivalEvents;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+public class BackfillMain {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BackfillMain <output.ndjson|output.avro> <input file or directory>...");
+            System.exit(2);
+        }
+        Path output = Path.of(args[0]);
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            inputs.add(Path.of(args[i]));
+        }
+
+        String backendBaseUrl = env("GTFS_BACKEND_URL", "http://localhost:8082");
+        String gtfsStaticZip = env("GTFS_STATIC_ZIP", "");
+        ZoneId arrivalZoneId = ZoneId.of(env("ARRIVAL_TIME_ZONE", "UTC+1"));
+        int parallelism = Integer.parseInt(env("BACKFILL_PARALLELISM",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int loaderThreads = Integer.parseInt(env("TRIP_LOADER_THREADS", "8"));
+        Duration stateTtl = Duration.ofHours(Long.parseLong(env("STATE_TTL_HOURS", "6")));
+        Path spillRoot = Path.of(env("BACKFILL_SPILL_DIR", System.getProperty("java.io.tmpdir")));
+
+        CacheSpec cacheSpec = CacheSpec.defaults(arrivalZoneId);
+        ExecutorService loaders = ArrivalDetectorTopology.tripLoaderExecutor(loaderThreads);
+        StopProvider stopProvider;
+        ShapeProvider shapeProvider;
+        TripScheduleProvider scheduleProvider;
+        if (gtfsStaticZip.isEmpty()) {
+            HttpTripMetadataProvider backend = new HttpTripMetadataProvider(backendBaseUrl, cacheSpec, loaders);
+            stopProvider = backend;
+            shapeProvider = backend;
+            scheduleProvider = backend;
+        } else {
+            GtfsStaticProvider gtfs = GtfsStaticProvider.open(
+                    Path.of(gtfsStaticZip),
+                    Path.of(env("GTFS_SNAPSHOT_PATH", gtfsStaticZip + ".snapshot")),
+                    arrivalZoneId
+            );
+            stopProvider = gtfs;
+            shapeProvider = gtfs;
+            scheduleProvider = gtfs;
+        }
+
+        Config cfg = Config.defaults();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            TripRuntimeFactory tripRuntimeFactory = new TripRuntimeFactory(
+                    stopProvider,
+                    shapeProvider,
+                    scheduleProvider,
+                    cfg,
+                    cacheSpec,
+                    loaders
+            );
+            BackfillEngine engine = new BackfillEngine(tripRuntimeFactory, cfg, arrivalZoneId, stateTtl, pool, spillRoot);
+            long arrivals;
+            try (ArrivalWriter out = ArrivalWriter.open(output)) {
+                arrivals = engine.run(inputs, out::write);
+            }
+            System.err.println("[Backfill] Wrote " + arrivals + " arrivals to " + output);
+        } finally {
+            pool.shutdown();
+            loaders.shutdown();
+        }
+    }
+
+    // Arrivals are appended as the engine finishes each service day, to an Avro container or NDJSON by extension.
+    private static final class ArrivalWriter implements Closeable {
+        private final DataFileWriter<GenericRecord> avro;
+        private final BufferedWriter ndjson;
+        private final ObjectMapper mapper = new ObjectMapper();
+
+        private ArrivalWriter(DataFileWriter<GenericRecord> avro, BufferedWriter ndjson) {
+            this.avro = avro;
+            this.ndjson = ndjson;
+        }
+
+        static ArrivalWriter open(Path output) throws IOException {
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            if (output.getFileName().toString().endsWith(".avro")) {
+                DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<>(StopArrivalEvents.AVRO_SCHEMA));
+                writer.create(StopArrivalEvents.AVRO_SCHEMA, output.toFile());
+                return new ArrivalWriter(writer, null);
+            }
+            return new ArrivalWriter(null, Files.newBufferedWriter(output));
+        }
+
+        void write(StopArrivalEvent e) throws IOException {
+            if (avro != null) {
+                avro.append(StopArrivalEvents.toAvro(e));
+            } else {
+                ndjson.write(mapper.writeValueAsString(e));
+                ndjson.newLine();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (avro != null) avro.close();
+            if (ndjson != null) ndjson.close();
+        }
+    }
+
+    private static String env(String name, String def) {
+        String v = System.getenv(name);
+        return (v == null || v.isBlank()) ? def : v;
+    }
+}
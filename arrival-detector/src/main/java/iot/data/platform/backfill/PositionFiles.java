@@ -0,0 +1,115 @@
+package iot.data.platform.backfill;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import iot.data.platform.core.Types;
+import iot.data.platform.streams.VehicleKey;
+import iot.data.platform.streams.VehiclePositions;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+final class PositionFiles {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private PositionFiles() {
+    }
+
+    static List<Path> expand(List<Path> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> walk = Files.walk(input)) {
+                    walk.filter(Files::isRegularFile).filter(PositionFiles::isSupported).sorted().forEach(files::add);
+                }
+            } else {
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+    static long read(Path file, BiConsumer<VehicleKey, Types.PositionSample> sink) throws IOException {
+        String name = file.getFileName().toString();
+        return name.endsWith(".avro") ? readAvro(file, sink) : readNdjson(file, sink);
+    }
+
+    private static boolean isSupported(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".avro") || name.endsWith(".ndjson") || name.endsWith(".ndjson.gz")
+                || name.endsWith(".jsonl") || name.endsWith(".jsonl.gz");
+    }
+
+    private static long readAvro(Path file, BiConsumer<VehicleKey, Types.PositionSample> sink) throws IOException {
+        long n = 0;
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file.toFile(), new GenericDatumReader<>())) {
+            GenericRecord rec = null;
+            while (reader.hasNext()) {
+                rec = reader.next(rec);
+                sink.accept(VehiclePositions.key(rec), VehiclePositions.sample(rec));
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // Accepts both bare VehiclePosition objects and the file-dump sink's {"topic":..,"value":{..}} lines.
+    private static long readNdjson(Path file, BiConsumer<VehicleKey, Types.PositionSample> sink) throws IOException {
+        long n = 0;
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (line.isBlank()) continue;
+                JsonNode node;
+                try {
+                    node = MAPPER.readTree(line);
+                } catch (IOException e) {
+                    System.err.println("[Backfill] Skipping malformed line " + file + ":" + lineNo + ": " + e.getMessage());
+                    continue;
+                }
+                if (node.has("value") && node.get("value").isObject()) {
+                    node = node.get("value");
+                }
+                if (!node.hasNonNull("agency") || !node.hasNonNull("ts_ms")) continue;
+
+                String vehicleId = emptyToNull(node.path("vehicle_id").asText(null));
+                String tripId = emptyToNull(node.path("trip_id").asText(null));
+                sink.accept(
+                        new VehicleKey(node.get("agency").asText(), vehicleId, tripId),
+                        new Types.PositionSample(
+                                vehicleId,
+                                tripId,
+                                node.path("latitude").asDouble(),
+                                node.path("longitude").asDouble(),
+                                node.get("ts_ms").asLong()
+                        )
+                );
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static String emptyToNull(String s) {
+        return (s == null || s.isEmpty()) ? null : s;
+    }
+}
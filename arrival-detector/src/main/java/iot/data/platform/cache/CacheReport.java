@@ -0,0 +1,15 @@
+package iot.data.platform.cache;
+
+public record CacheReport(
+        String name,
+        long size,
+        long estimatedBytes,
+        long hitCount,
+        long missCount,
+        double hitRate,
+        long loadSuccessCount,
+        long loadFailureCount,
+        double averageLoadMillis,
+        long evictionCount
+) {
+}
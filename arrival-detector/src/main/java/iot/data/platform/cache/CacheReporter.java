@@ -0,0 +1,7 @@
+package iot.data.platform.cache;
+
+import java.util.List;
+
+public interface CacheReporter {
+    List<CacheReport> cacheReports();
+}
@@ -0,0 +1,46 @@
+package iot.data.platform.cache;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Objects;
+
+public record CacheSpec(
+        long maxWeightBytes,
+        Duration idleTimeout,
+        ZoneId serviceDayZone,
+        LocalTime serviceDayRollover,
+        Duration refreshAfterWrite,
+        Duration missingInitialBackoff,
+        Duration missingMaxBackoff
+) {
+    public CacheSpec {
+        if (maxWeightBytes <= 0) throw new IllegalArgumentException("maxWeightBytes must be > 0");
+        Objects.requireNonNull(idleTimeout, "idleTimeout");
+        Objects.requireNonNull(serviceDayZone, "serviceDayZone");
+        Objects.requireNonNull(serviceDayRollover, "serviceDayRollover");
+        Objects.requireNonNull(refreshAfterWrite, "refreshAfterWrite");
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) throw new IllegalArgumentException("idleTimeout must be > 0");
+        if (refreshAfterWrite.isNegative()) throw new IllegalArgumentException("refreshAfterWrite must be >= 0");
+        Objects.requireNonNull(missingInitialBackoff, "missingInitialBackoff");
+        Objects.requireNonNull(missingMaxBackoff, "missingMaxBackoff");
+        if (missingInitialBackoff.isNegative() || missingInitialBackoff.isZero()) throw new IllegalArgumentException("missingInitialBackoff must be > 0");
+        if (missingMaxBackoff.compareTo(missingInitialBackoff) < 0) throw new IllegalArgumentException("missingMaxBackoff must be >= missingInitialBackoff");
+    }
+
+    public static CacheSpec defaults() {
+        return defaults(ZoneId.of("UTC"));
+    }
+
+    public static CacheSpec defaults(ZoneId serviceDayZone) {
+        return new CacheSpec(
+                256L * 1024 * 1024,
+                Duration.ofHours(2),
+                serviceDayZone,
+                LocalTime.of(3, 0),
+                Duration.ofHours(4),
+                Duration.ofSeconds(30),
+                Duration.ofMinutes(30)
+        );
+    }
+}
@@ -0,0 +1,52 @@
+package iot.data.platform.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.time.Clock;
+
+public final class Caches {
+    private Caches() {}
+
+    public static <K, V> Caffeine<K, V> builder(CacheSpec spec, Weigher<? super K, ? super V> weigher) {
+        return Caffeine.newBuilder()
+                .maximumWeight(spec.maxWeightBytes())
+                .weigher(weigher)
+                .expireAfter(new ServiceDayExpiry<K, V>(
+                        spec.idleTimeout(),
+                        spec.serviceDayZone(),
+                        spec.serviceDayRollover(),
+                        Clock.systemUTC()
+                ))
+                .recordStats();
+    }
+
+    public static <K, V> Caffeine<K, V> refreshingBuilder(CacheSpec spec, Weigher<? super K, ? super V> weigher) {
+        Caffeine<K, V> builder = builder(spec, weigher);
+        if (!spec.refreshAfterWrite().isZero()) {
+            builder.refreshAfterWrite(spec.refreshAfterWrite());
+        }
+        return builder;
+    }
+
+    public static CacheReport report(String name, Cache<?, ?> cache) {
+        CacheStats stats = cache.stats();
+        long weight = cache.policy().eviction()
+                .map(e -> e.weightedSize().orElse(0L))
+                .orElse(0L);
+        return new CacheReport(
+                name,
+                cache.estimatedSize(),
+                weight,
+                stats.hitCount(),
+                stats.missCount(),
+                stats.hitRate(),
+                stats.loadSuccessCount(),
+                stats.loadFailureCount(),
+                stats.averageLoadPenalty() / 1_000_000.0,
+                stats.evictionCount()
+        );
+    }
+}
@@ -0,0 +1,58 @@
+package iot.data.platform.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+
+public final class NegativeCache<K> {
+    private static final long MAX_ENTRIES = 100_000;
+
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Cache<K, Miss> misses;
+
+    public NegativeCache(Duration initialBackoff, Duration maxBackoff) {
+        if (initialBackoff.isNegative() || initialBackoff.isZero()) throw new IllegalArgumentException("initialBackoff must be > 0");
+        if (maxBackoff.compareTo(initialBackoff) < 0) throw new IllegalArgumentException("maxBackoff must be >= initialBackoff");
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        // failures are remembered for a while past the longest backoff so a key that keeps failing stays at the cap
+        this.misses = Caffeine.newBuilder()
+                .maximumSize(MAX_ENTRIES)
+                .expireAfterWrite(maxBackoff.multipliedBy(2))
+                .recordStats()
+                .build();
+    }
+
+    public boolean isBlocked(K key) {
+        Miss m = misses.getIfPresent(key);
+        return m != null && System.nanoTime() - m.retryAtNanos() < 0;
+    }
+
+    public Duration failed(K key) {
+        Miss m = misses.asMap().compute(key, (k, prev) -> {
+            int failures = (prev == null) ? 1 : prev.failures() + 1;
+            return new Miss(failures, System.nanoTime() + backoffNanos(failures));
+        });
+        return Duration.ofNanos(backoffNanos(m.failures()));
+    }
+
+    public void succeeded(K key) {
+        misses.invalidate(key);
+    }
+
+    public CacheReport report(String name) {
+        return Caches.report(name, misses);
+    }
+
+    private long backoffNanos(int failures) {
+        long backoff = initialBackoffNanos;
+        for (int i = 1; i < failures && backoff < maxBackoffNanos; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, maxBackoffNanos);
+    }
+
+    private record Miss(int failures, long retryAtNanos) {}
+}
@@ -0,0 +1,58 @@
+package iot.data.platform.cache;
+
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+// Entries live until the idle timeout or the service day rollover, whichever comes first. Each key expires at
+// its own offset within ROLLOVER_SPREAD after the rollover, so a full cache does not reload in one burst.
+final class ServiceDayExpiry<K, V> implements Expiry<K, V> {
+    static final Duration ROLLOVER_SPREAD = Duration.ofMinutes(10);
+
+    private final long idleNanos;
+    private final ZoneId zone;
+    private final LocalTime rollover;
+    private final Clock clock;
+
+    ServiceDayExpiry(Duration idleTimeout, ZoneId zone, LocalTime rollover, Clock clock) {
+        this.idleNanos = idleTimeout.toNanos();
+        this.zone = zone;
+        this.rollover = rollover;
+        this.clock = clock;
+    }
+
+    @Override
+    public long expireAfterCreate(K key, V value, long currentTime) {
+        return Math.min(idleNanos, nanosUntilRollover(key));
+    }
+
+    @Override
+    public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+        return Math.min(idleNanos, nanosUntilRollover(key));
+    }
+
+    @Override
+    public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+        return Math.min(idleNanos, nanosUntilRollover(key));
+    }
+
+    private long nanosUntilRollover(K key) {
+        ZonedDateTime now = ZonedDateTime.now(clock.withZone(zone));
+        Duration offset = Duration.ofNanos(spreadNanos(key));
+        ZonedDateTime next = now.with(rollover).plus(offset);
+        if (!next.isAfter(now)) {
+            next = now.plusDays(1).with(rollover).plus(offset);
+        }
+        return Duration.between(now, next).toNanos();
+    }
+
+    // Derived from the key rather than drawn per call, so reads and updates keep the entry's own expiry point.
+    static long spreadNanos(Object key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        return Math.floorMod(h ^ (h >>> 29), ROLLOVER_SPREAD.toNanos());
+    }
+}
@@ -0,0 +1,37 @@
+package iot.data.platform.cache;
+
+import iot.data.platform.core.Types;
+
+import java.util.List;
+
+public final class Weights {
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 8;
+    private static final int LIST_OVERHEAD = 48;
+    private static final int STOP_POINT = OBJECT_HEADER + 2 * 8 + 4 + REFERENCE;
+    private static final int SHAPE_POINT = OBJECT_HEADER + 2 * 8;
+
+    private Weights() {}
+
+    public static long string(String s) {
+        return (s == null) ? 0 : 40L + s.length();
+    }
+
+    public static long stops(List<Types.StopPoint> stops) {
+        if (stops == null) return 0;
+        long bytes = LIST_OVERHEAD;
+        for (Types.StopPoint s : stops) {
+            bytes += REFERENCE + STOP_POINT + string(s.stopId());
+        }
+        return bytes;
+    }
+
+    public static long shapePoints(List<Types.ShapePoint> points) {
+        if (points == null) return 0;
+        return LIST_OVERHEAD + (long) points.size() * (REFERENCE + SHAPE_POINT);
+    }
+
+    public static int clamp(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1L, bytes));
+    }
+}
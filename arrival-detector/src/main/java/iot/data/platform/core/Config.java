@@ -3,15 +3,32 @@ package iot.data.platform.core;
 public record Config(
         double densifyStepM,
         double toleranceM,
-        long maxScheduleAnchorGapMillis
+        long maxScheduleAnchorGapMillis,
+        double planarMaxErrorM,
+        boolean windowedProjection,
+        double maxSpeedMps,
+        double windowSlackM,
+        double windowMatchMaxDistM,
+        double simplifyToleranceM,
+        double maxSegmentM,
+        double curvatureTurnDeg,
+        boolean stopProximityEarlyOut,
+        boolean monotonicStopProjection
 ) {
     public Config {
         if (densifyStepM <= 0) throw new IllegalArgumentException("densifyStepM must be > 0");
         if (toleranceM < 0) throw new IllegalArgumentException("toleranceM must be >= 0");
         if (maxScheduleAnchorGapMillis <= 0) throw new IllegalArgumentException("maxScheduleAnchorGapMillis must be > 0");
+        if (planarMaxErrorM < 0) throw new IllegalArgumentException("planarMaxErrorM must be >= 0");
+        if (maxSpeedMps <= 0) throw new IllegalArgumentException("maxSpeedMps must be > 0");
+        if (windowSlackM < 0) throw new IllegalArgumentException("windowSlackM must be >= 0");
+        if (windowMatchMaxDistM < 0) throw new IllegalArgumentException("windowMatchMaxDistM must be >= 0");
+        if (simplifyToleranceM < 0) throw new IllegalArgumentException("simplifyToleranceM must be >= 0");
+        if (maxSegmentM < densifyStepM) throw new IllegalArgumentException("maxSegmentM must be >= densifyStepM");
+        if (curvatureTurnDeg < 0 || curvatureTurnDeg > 180) throw new IllegalArgumentException("curvatureTurnDeg must be in [0, 180]");
     }
 
     public static Config defaults() {
-        return new Config(10.0, 0.0, 30 * 60 * 1000L);
+        return new Config(10.0, 0.0, 30 * 60 * 1000L, 0.5, true, 40.0, 50.0, 60.0, 0.0, 100.0, 20.0, false, true);
     }
 }
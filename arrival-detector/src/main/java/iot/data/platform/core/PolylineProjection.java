@@ -3,49 +3,175 @@ package iot.data.platform.core;
 import net.sf.geographiclib.Geodesic;
 import net.sf.geographiclib.GeodesicData;
 
+import java.util.ArrayList;
 import java.util.List;
 
 final class PolylineProjection {
+    private static final double FORWARD_SKIP_MARGIN = 0.02;
+    private static final double FORWARD_PASS_SLACK_M = 10.0;
+
     private PolylineProjection() {}
 
-    static double projectAlongMeters(double plat, double plon, List<Types.ShapePoint> shape) {
+    record Projection(
+            double alongM,
+            double distM
+    ) {}
+
+    static double projectAlongMeters(double plat, double plon, ShapeGeometry shape) {
         if (shape == null || shape.size() <= 1) return 0.0;
+        return projectSegments(plat, plon, shape, 0, shape.segLen.length - 1).alongM();
+    }
 
-        double bestCum = 0.0;
-        double bestDist = Double.POSITIVE_INFINITY;
-        double acc = 0.0;
+    static Projection projectNear(
+            double plat,
+            double plon,
+            ShapeGeometry shape,
+            double fromM,
+            double toM,
+            double acceptDistM
+    ) {
+        if (shape == null || shape.size() <= 1) return new Projection(0.0, Double.POSITIVE_INFINITY);
 
-        for (int i = 0; i < shape.size() - 1; i++) {
-            Types.ShapePoint A = shape.get(i);
-            Types.ShapePoint B = shape.get(i + 1);
+        int lastSeg = shape.segLen.length - 1;
+        int lo = shape.segmentAt(fromM);
+        int hi = shape.segmentAt(toM);
 
-            GeodesicData invAB = Geodesic.WGS84.Inverse(A.lat(), A.lon(), B.lat(), B.lon());
-            double dAB = invAB.s12;
+        Projection best = projectSegments(plat, plon, shape, lo, hi);
+        int width = Math.max(1, hi - lo + 1);
+        while (best.distM() > acceptDistM && (lo > 0 || hi < lastSeg)) {
+            int newLo = Math.max(0, lo - width);
+            int newHi = Math.min(lastSeg, hi + width);
+            if (newLo < lo) {
+                best = better(best, projectSegments(plat, plon, shape, newLo, lo - 1));
+            }
+            if (newHi > hi) {
+                best = better(best, projectSegments(plat, plon, shape, hi + 1, newHi));
+            }
+            lo = newLo;
+            hi = newHi;
+            width *= 2;
+        }
+        return best;
+    }
 
-            if (dAB == 0.0) continue;
+    private static Projection better(Projection a, Projection b) {
+        return (b.distM() < a.distM()) ? b : a;
+    }
 
-            GeodesicData invAP = Geodesic.WGS84.Inverse(A.lat(), A.lon(), plat, plon);
-            double dAP = invAP.s12;
+    // Match at or after segment fromSeg for a point visited in order along the shape. Every stretch of shape
+    // within acceptDistM is a pass; the earliest pass that comes within FORWARD_PASS_SLACK_M of the closest one
+    // wins, so a later crossing or the return leg of a loop does not pull the match ahead of where the vehicle
+    // actually gets there. The shape cannot come closer than the straight-line distance to a vertex minus the
+    // arc length travelled from it, so far-away stretches are skipped in one step; the margin covers the drift
+    // of the local planar frame over long shapes. Returns the overall closest point when no pass is found.
+    static Projection projectForward(
+            double plat,
+            double plon,
+            ShapeGeometry shape,
+            int fromSeg,
+            double acceptDistM
+    ) {
+        if (shape == null || shape.size() <= 1) return new Projection(0.0, Double.POSITIVE_INFINITY);
 
-            double t = Math.max(0.0, Math.min(1.0, dAP / dAB));
-            double tM = dAB * t;
+        double px = shape.toX(plon);
+        double py = shape.toY(plat);
+        double[] along = new double[1];
+        int segs = shape.segLen.length;
 
-            GeodesicData proj = Geodesic.WGS84.Direct(A.lat(), A.lon(), invAB.azi1, tM);
-            double dProjP = Geodesic.WGS84.Inverse(proj.lat2, proj.lon2, plat, plon).s12;
+        double bestCum = shape.cum[fromSeg];
+        double bestDist = Double.POSITIVE_INFINITY;
+        List<Projection> passes = new ArrayList<>();
+        Projection pass = null;
 
-            double distToSeg = dProjP;
-            if (Double.isNaN(distToSeg)) {
-                double dBP = Geodesic.WGS84.Inverse(B.lat(), B.lon(), plat, plon).s12;
-                distToSeg = dBP;
+        int i = fromSeg;
+        while (i < segs) {
+            double distToSeg = distanceToSegment(plat, plon, px, py, shape, i, along);
+            double cumM = shape.cum[i] + along[0];
+            if (distToSeg < bestDist) {
+                bestDist = distToSeg;
+                bestCum = cumM;
             }
+            if (distToSeg <= acceptDistM) {
+                if (pass == null || distToSeg < pass.distM()) pass = new Projection(cumM, distToSeg);
+            } else if (pass != null) {
+                passes.add(pass);
+                pass = null;
+            }
+
+            double dx = shape.x[i] - px, dy = shape.y[i] - py;
+            double skipM = Math.sqrt(dx * dx + dy * dy) * (1.0 - FORWARD_SKIP_MARGIN) - bestDist;
+            int next = (skipM > shape.segLen[i]) ? Math.max(i + 1, shape.segmentAt(shape.cum[i] + skipM)) : i + 1;
+            if (next > i + 1 && pass != null) {
+                passes.add(pass);
+                pass = null;
+            }
+            i = next;
+        }
+        if (pass != null) passes.add(pass);
 
+        for (Projection p : passes) {
+            if (p.distM() <= bestDist + FORWARD_PASS_SLACK_M) return p;
+        }
+        return new Projection(bestCum, bestDist);
+    }
+
+    private static Projection projectSegments(double plat, double plon, ShapeGeometry shape, int fromSeg, int toSeg) {
+        double px = shape.toX(plon);
+        double py = shape.toY(plat);
+        double[] along = new double[1];
+
+        double bestCum = shape.cum[fromSeg];
+        double bestDist = Double.POSITIVE_INFINITY;
+
+        for (int i = fromSeg; i <= toSeg; i++) {
+            double distToSeg = distanceToSegment(plat, plon, px, py, shape, i, along);
             if (distToSeg < bestDist) {
                 bestDist = distToSeg;
-                bestCum = acc + tM;
+                bestCum = shape.cum[i] + along[0];
             }
+        }
+        return new Projection(bestCum, bestDist);
+    }
+
+    private static double distanceToSegment(
+            double plat,
+            double plon,
+            double px,
+            double py,
+            ShapeGeometry shape,
+            int i,
+            double[] alongOut
+    ) {
+        double dAB = shape.segLen[i];
+        if (dAB == 0.0) return Double.POSITIVE_INFINITY;
 
-            acc += dAB;
+        if (shape.geodesicSeg[i]) {
+            double dAP = Geodesic.WGS84.Inverse(shape.lat[i], shape.lon[i], plat, plon).s12;
+
+            double t = Math.max(0.0, Math.min(1.0, dAP / dAB));
+            double tM = dAB * t;
+
+            GeodesicData proj = Geodesic.WGS84.Direct(shape.lat[i], shape.lon[i], shape.heading[i], tM);
+            double distToSeg = Geodesic.WGS84.Inverse(proj.lat2, proj.lon2, plat, plon).s12;
+            if (Double.isNaN(distToSeg)) {
+                distToSeg = Geodesic.WGS84.Inverse(shape.lat[i + 1], shape.lon[i + 1], plat, plon).s12;
+            }
+            alongOut[0] = tM;
+            return distToSeg;
         }
-        return bestCum;
+
+        double ax = shape.x[i], ay = shape.y[i];
+        double abx = shape.x[i + 1] - ax, aby = shape.y[i + 1] - ay;
+        double apx = px - ax, apy = py - ay;
+        double len2 = abx * abx + aby * aby;
+
+        double t = (len2 == 0.0) ? 0.0 : (apx * abx + apy * aby) / len2;
+        if (t < 0.0) t = 0.0;
+        else if (t > 1.0) t = 1.0;
+
+        double dx = apx - t * abx;
+        double dy = apy - t * aby;
+        alongOut[0] = dAB * t;
+        return Math.sqrt(dx * dx + dy * dy);
     }
 }
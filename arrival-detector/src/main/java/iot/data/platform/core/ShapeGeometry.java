@@ -0,0 +1,194 @@
+package iot.data.platform.core;
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicData;
+
+import java.util.Arrays;
+import java.util.List;
+
+final class ShapeGeometry {
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1.0 / 298.257223563;
+    private static final double WGS84_E2 = WGS84_F * (2.0 - WGS84_F);
+    private static final double MAX_PLANAR_ABS_LAT = 75.0;
+
+    final double[] lat;
+    final double[] lon;
+    final double[] x;
+    final double[] y;
+    final double[] cum;
+    final double[] segLen;
+    final double[] heading;
+    final boolean[] geodesicSeg;
+    final int sourcePoints;
+
+    final double lat0;
+    final double lon0;
+    final double mPerDegLat;
+    final double mPerDegLon;
+
+    private ShapeGeometry(
+            double[] lat,
+            double[] lon,
+            Frame frame,
+            double maxErrorM,
+            int sourcePoints
+    ) {
+        int n = lat.length;
+        this.sourcePoints = sourcePoints;
+        this.lat = lat;
+        this.lon = lon;
+        this.lat0 = frame.lat0();
+        this.lon0 = frame.lon0();
+        this.mPerDegLat = frame.mPerDegLat();
+        this.mPerDegLon = frame.mPerDegLon();
+
+        this.x = new double[n];
+        this.y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = toX(lon[i]);
+            y[i] = toY(lat[i]);
+        }
+
+        int segs = Math.max(0, n - 1);
+        this.cum = new double[n];
+        this.segLen = new double[segs];
+        this.heading = new double[segs];
+        this.geodesicSeg = new boolean[segs];
+
+        boolean planarAllowed = maxErrorM > 0 && planarFrameUsable(lat, lon);
+        for (int i = 0; i < segs; i++) {
+            GeodesicData inv = Geodesic.WGS84.Inverse(lat[i], lon[i], lat[i + 1], lon[i + 1]);
+            double geo = inv.s12;
+            segLen[i] = geo;
+            heading[i] = inv.azi1;
+            cum[i + 1] = cum[i] + geo;
+
+            if (!planarAllowed) {
+                geodesicSeg[i] = true;
+                continue;
+            }
+            double planar = Math.hypot(x[i + 1] - x[i], y[i + 1] - y[i]);
+            geodesicSeg[i] = Math.abs(planar - geo) > maxErrorM;
+        }
+    }
+
+    ShapeGeometry(
+            double[] lat,
+            double[] lon,
+            double[] x,
+            double[] y,
+            double[] cum,
+            double[] segLen,
+            double[] heading,
+            boolean[] geodesicSeg,
+            double lat0,
+            double lon0,
+            double mPerDegLat,
+            double mPerDegLon,
+            int sourcePoints
+    ) {
+        this.lat = lat;
+        this.lon = lon;
+        this.x = x;
+        this.y = y;
+        this.cum = cum;
+        this.segLen = segLen;
+        this.heading = heading;
+        this.geodesicSeg = geodesicSeg;
+        this.lat0 = lat0;
+        this.lon0 = lon0;
+        this.mPerDegLat = mPerDegLat;
+        this.mPerDegLon = mPerDegLon;
+        this.sourcePoints = sourcePoints;
+    }
+
+    static ShapeGeometry of(List<Types.ShapePoint> shape, double maxErrorM) {
+        return of(shape, maxErrorM, (shape == null) ? 0 : shape.size());
+    }
+
+    static ShapeGeometry of(List<Types.ShapePoint> shape, double maxErrorM, int sourcePoints) {
+        int n = (shape == null) ? 0 : shape.size();
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            Types.ShapePoint p = shape.get(i);
+            lat[i] = p.lat();
+            lon[i] = p.lon();
+        }
+        return new ShapeGeometry(lat, lon, frame(lat, lon), maxErrorM, sourcePoints);
+    }
+
+    // Local equirectangular frame centred on the bounding box of the points, scaled by the WGS84 radii of
+    // curvature at its middle latitude.
+    static Frame frame(double[] lat, double[] lon) {
+        int n = lat.length;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLat = Math.min(minLat, lat[i]);
+            maxLat = Math.max(maxLat, lat[i]);
+            minLon = Math.min(minLon, lon[i]);
+            maxLon = Math.max(maxLon, lon[i]);
+        }
+        double lat0 = (n == 0) ? 0.0 : (minLat + maxLat) / 2.0;
+        double lon0 = (n == 0) ? 0.0 : (minLon + maxLon) / 2.0;
+
+        double phi = Math.toRadians(lat0);
+        double sin = Math.sin(phi);
+        double w = 1.0 - WGS84_E2 * sin * sin;
+        double meridional = WGS84_A * (1.0 - WGS84_E2) / (w * Math.sqrt(w));
+        double normal = WGS84_A / Math.sqrt(w);
+        return new Frame(lat0, lon0, Math.toRadians(meridional), Math.toRadians(normal * Math.cos(phi)));
+    }
+
+    int size() {
+        return lat.length;
+    }
+
+    double lengthM() {
+        return cum.length == 0 ? 0.0 : cum[cum.length - 1];
+    }
+
+    long estimatedBytes() {
+        int n = lat.length;
+        return 96L + 7L * (16 + 8L * n) + 16 + n;
+    }
+
+    int segmentAt(double alongM) {
+        int segs = segLen.length;
+        if (segs == 0 || alongM <= 0.0) return 0;
+        int idx = Arrays.binarySearch(cum, alongM);
+        int seg = (idx >= 0) ? idx : -idx - 2;
+        return Math.max(0, Math.min(segs - 1, seg));
+    }
+
+    double toX(double lonDeg) {
+        return (lonDeg - lon0) * mPerDegLon;
+    }
+
+    double toY(double latDeg) {
+        return (latDeg - lat0) * mPerDegLat;
+    }
+
+    static boolean planarFrameUsable(double[] lat, double[] lon) {
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < lat.length; i++) {
+            if (Math.abs(lat[i]) > MAX_PLANAR_ABS_LAT) return false;
+            minLon = Math.min(minLon, lon[i]);
+            maxLon = Math.max(maxLon, lon[i]);
+        }
+        // shapes crossing the antimeridian would be torn apart by the linear longitude mapping
+        return maxLon - minLon < 180.0;
+    }
+
+    record Frame(double lat0, double lon0, double mPerDegLat, double mPerDegLon) {
+        double toX(double lonDeg) {
+            return (lonDeg - lon0) * mPerDegLon;
+        }
+
+        double toY(double latDeg) {
+            return (latDeg - lat0) * mPerDegLat;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package iot.data.platform.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class ShapeSimplifier {
+    private ShapeSimplifier() {}
+
+    static List<Types.ShapePoint> prepare(List<Types.ShapePoint> raw, Config cfg) {
+        if (cfg.simplifyToleranceM() <= 0) {
+            return PolylineUtils.densify(raw, cfg.densifyStepM());
+        }
+        List<Types.ShapePoint> simplified = simplify(raw, cfg.simplifyToleranceM());
+        return refine(simplified, cfg.densifyStepM(), cfg.maxSegmentM(), cfg.curvatureTurnDeg());
+    }
+
+    // Douglas-Peucker in a local equirectangular frame; iterative so long shapes cannot overflow the stack.
+    static List<Types.ShapePoint> simplify(List<Types.ShapePoint> src, double toleranceM) {
+        int n = (src == null) ? 0 : src.size();
+        if (n <= 2 || toleranceM <= 0) return (src == null) ? List.of() : List.copyOf(src);
+
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            lat[i] = src.get(i).lat();
+            lon[i] = src.get(i).lon();
+        }
+        if (!ShapeGeometry.planarFrameUsable(lat, lon)) return List.copyOf(src);
+        ShapeGeometry.Frame f = ShapeGeometry.frame(lat, lon);
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = f.toX(lon[i]);
+            y[i] = f.toY(lat[i]);
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        double tol2 = toleranceM * toleranceM;
+        int[] stack = new int[2 * n];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int to = stack[--sp];
+            int from = stack[--sp];
+            if (to - from < 2) continue;
+
+            double maxD2 = -1.0;
+            int worst = -1;
+            for (int i = from + 1; i < to; i++) {
+                double d2 = segmentDist2(x[i], y[i], x[from], y[from], x[to], y[to]);
+                if (d2 > maxD2) {
+                    maxD2 = d2;
+                    worst = i;
+                }
+            }
+            if (maxD2 > tol2) {
+                keep[worst] = true;
+                stack[sp++] = from;
+                stack[sp++] = worst;
+                stack[sp++] = worst;
+                stack[sp++] = to;
+            }
+        }
+
+        List<Types.ShapePoint> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) out.add(src.get(i));
+        }
+        return out;
+    }
+
+    // Segments touching a vertex that turns by at least turnDeg are cut into stepM pieces, all others
+    // only into maxSegmentM pieces, so straight runs stay cheap while bends keep fine resolution.
+    static List<Types.ShapePoint> refine(List<Types.ShapePoint> src, double stepM, double maxSegmentM, double turnDeg) {
+        int n = (src == null) ? 0 : src.size();
+        if (n <= 1) return (src == null) ? List.of() : List.copyOf(src);
+
+        boolean[] sharp = new boolean[n];
+        for (int i = 1; i < n - 1; i++) {
+            sharp[i] = turnDeg(src.get(i - 1), src.get(i), src.get(i + 1)) >= turnDeg;
+        }
+
+        List<Types.ShapePoint> out = new ArrayList<>();
+        out.add(src.getFirst());
+        for (int i = 0; i < n - 1; i++) {
+            Types.ShapePoint a = src.get(i);
+            Types.ShapePoint b = src.get(i + 1);
+            double step = (sharp[i] || sharp[i + 1]) ? stepM : maxSegmentM;
+            double seg = Geo.distanceM(a.lat(), a.lon(), b.lat(), b.lon());
+            int pieces = (int) Math.ceil(seg / step);
+            for (int k = 1; k < pieces; k++) {
+                double t = (double) k / pieces;
+                out.add(new Types.ShapePoint(a.lat() + (b.lat() - a.lat()) * t, a.lon() + (b.lon() - a.lon()) * t));
+            }
+            out.add(b);
+        }
+        return out;
+    }
+
+    private static double turnDeg(Types.ShapePoint a, Types.ShapePoint b, Types.ShapePoint c) {
+        double cos = Math.cos(Math.toRadians(b.lat()));
+        double ux = (b.lon() - a.lon()) * cos, uy = b.lat() - a.lat();
+        double vx = (c.lon() - b.lon()) * cos, vy = c.lat() - b.lat();
+        if ((ux == 0 && uy == 0) || (vx == 0 && vy == 0)) return 0.0;
+        return Math.abs(Math.toDegrees(Math.atan2(ux * vy - uy * vx, ux * vx + uy * vy)));
+    }
+
+    private static double segmentDist2(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = (len2 == 0.0) ? 0.0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        t = Math.max(0.0, Math.min(1.0, t));
+        double ex = px - (ax + t * dx), ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -13,8 +13,13 @@ public final class StopArrivalAlgorithm {
 
     public record Result(
             VehicleState newState,
-            List<Types.StopArrival> arrivals
-    ) {}
+            List<Types.StopArrival> arrivals,
+            boolean projectionSkipped
+    ) {
+        public Result(VehicleState newState, List<Types.StopArrival> arrivals) {
+            this(newState, arrivals, false);
+        }
+    }
 
     public Result detect(
             Types.PositionSample s,
@@ -25,7 +30,7 @@ public final class StopArrivalAlgorithm {
         Objects.requireNonNull(trip, "trip");
         VehicleState vs = (prevState == null) ? VehicleState.empty() : prevState;
         if (trip.stops.isEmpty()) {
-            double sNow = PolylineProjection.projectAlongMeters(s.lat(), s.lon(), trip.shape);
+            double sNow = projectSample(s, trip, vs);
             VehicleState newState = new VehicleState(
                     Math.max(vs.progressM(), sNow),
                     vs.nextStopIdx(),
@@ -33,7 +38,13 @@ public final class StopArrivalAlgorithm {
             );
             return new Result(newState, List.of());
         }
-        double sNow = PolylineProjection.projectAlongMeters(s.lat(), s.lon(), trip.shape);
+        if (cfg.stopProximityEarlyOut()) {
+            VehicleState far = farFromNextStop(s, trip, vs);
+            if (far != null) {
+                return new Result(far, List.of(), true);
+            }
+        }
+        double sNow = projectSample(s, trip, vs);
         long t2 = s.tsMillis();
 
         double sPrev;
@@ -113,4 +124,81 @@ public final class StopArrivalAlgorithm {
 
         return new Result(newState, arrivals);
     }
+
+    // Proves without projecting that this sample cannot reach the next stop, and returns the state the full
+    // path would keep, with progress taken from a short planar descent instead of the window projection. The
+    // segment under the current progress lies in projectNear's first window; if the sample is within
+    // windowMatchMaxDistM of it the window is never widened, so the projection cannot land past the window's
+    // last segment. When that segment ends before the next stop, the full path would find no arrivals.
+    private VehicleState farFromNextStop(Types.PositionSample s, TripRuntime trip, VehicleState vs) {
+        int k = vs.nextStopIdx();
+        ShapeGeometry g = trip.geometry;
+        if (!cfg.windowedProjection() || vs.lastTsMillis() < 0 || k >= trip.stops.size() || g.size() <= 1) {
+            return null;
+        }
+        double progress = vs.progressM();
+        double elapsedS = Math.max(0L, s.tsMillis() - vs.lastTsMillis()) / 1000.0;
+        int hi = g.segmentAt(progress + cfg.maxSpeedMps() * elapsedS + cfg.windowSlackM());
+        double reachM = Math.max(progress, g.cum[hi + 1]);
+        if (trip.stopS[k] <= reachM + cfg.toleranceM()) {
+            return null;
+        }
+
+        double px = g.toX(s.lon());
+        double py = g.toY(s.lat());
+        int seg = g.segmentAt(progress);
+        double t = planarT(g, seg, px, py);
+        if (t < 0.0) {
+            return null;
+        }
+        double bestDist = planarDist(g, seg, t, px, py);
+        if (bestDist > cfg.windowMatchMaxDistM()) {
+            return null;
+        }
+        double alongM = g.cum[seg] + g.segLen[seg] * t;
+        while (seg < hi) {
+            double tNext = planarT(g, seg + 1, px, py);
+            if (tNext < 0.0) break;
+            double d = planarDist(g, seg + 1, tNext, px, py);
+            if (d >= bestDist) break;
+            bestDist = d;
+            seg++;
+            alongM = g.cum[seg] + g.segLen[seg] * tNext;
+        }
+        return new VehicleState(Math.max(progress, alongM), k, s.tsMillis());
+    }
+
+    // Clamped position of the sample's foot along a planar segment, or -1 when the segment is geodesic or empty.
+    private static double planarT(ShapeGeometry g, int seg, double px, double py) {
+        if (g.geodesicSeg[seg] || g.segLen[seg] == 0.0) {
+            return -1.0;
+        }
+        double abx = g.x[seg + 1] - g.x[seg], aby = g.y[seg + 1] - g.y[seg];
+        double len2 = abx * abx + aby * aby;
+        double t = (len2 == 0.0) ? 0.0 : ((px - g.x[seg]) * abx + (py - g.y[seg]) * aby) / len2;
+        return (t < 0.0) ? 0.0 : Math.min(t, 1.0);
+    }
+
+    private static double planarDist(ShapeGeometry g, int seg, double t, double px, double py) {
+        double dx = px - (g.x[seg] + t * (g.x[seg + 1] - g.x[seg]));
+        double dy = py - (g.y[seg] + t * (g.y[seg + 1] - g.y[seg]));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private double projectSample(Types.PositionSample s, TripRuntime trip, VehicleState vs) {
+        if (!cfg.windowedProjection() || vs.lastTsMillis() < 0) {
+            return PolylineProjection.projectAlongMeters(s.lat(), s.lon(), trip.geometry);
+        }
+        double elapsedS = Math.max(0L, s.tsMillis() - vs.lastTsMillis()) / 1000.0;
+        double fromM = vs.progressM() - cfg.windowSlackM();
+        double toM = vs.progressM() + cfg.maxSpeedMps() * elapsedS + cfg.windowSlackM();
+        return PolylineProjection.projectNear(
+                s.lat(),
+                s.lon(),
+                trip.geometry,
+                fromM,
+                toM,
+                cfg.windowMatchMaxDistM()
+        ).alongM();
+    }
 }
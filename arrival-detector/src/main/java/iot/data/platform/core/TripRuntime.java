@@ -1,5 +1,6 @@
 package iot.data.platform.core;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -7,9 +8,10 @@ import java.util.Objects;
 
 public final class TripRuntime {
     final List<Types.StopPoint> stops;
-    final List<Types.ShapePoint> shape;
+    final ShapeGeometry geometry;
     final double[] stopS;
     final long scheduledStartTimeMillis;
+    final LocalDate serviceDate;
 
     public TripRuntime(
             List<Types.StopPoint> stops,
@@ -17,29 +19,134 @@ public final class TripRuntime {
             long scheduledStartTimeMillis,
             double densifyStepM
     ) {
-        this.stops = new ArrayList<>(Objects.requireNonNull(stops, "stops"));
-        this.stops.sort(Comparator.comparingInt(Types.StopPoint::stopSequence));
+        this(stops, rawShape, scheduledStartTimeMillis, densifyStepM, Config.defaults().planarMaxErrorM());
+    }
+
+    public TripRuntime(
+            List<Types.StopPoint> stops,
+            List<Types.ShapePoint> rawShape,
+            long scheduledStartTimeMillis,
+            double densifyStepM,
+            double planarMaxErrorM
+    ) {
+        this(stops, rawShape, scheduledStartTimeMillis, geometryConfig(densifyStepM, planarMaxErrorM));
+    }
+
+    public TripRuntime(
+            List<Types.StopPoint> stops,
+            List<Types.ShapePoint> rawShape,
+            long scheduledStartTimeMillis,
+            Config cfg
+    ) {
+        this.stops = sortedStops(stops);
+        this.geometry = buildGeometry(this.stops, rawShape, cfg);
+        this.stopS = projectStops(this.geometry, this.stops, cfg);
+        this.scheduledStartTimeMillis = scheduledStartTimeMillis;
+        this.serviceDate = null;
+    }
+
+    TripRuntime(
+            ShapeGeometry geometry,
+            List<Types.StopPoint> sortedStops,
+            double[] stopS,
+            long scheduledStartTimeMillis,
+            LocalDate serviceDate
+    ) {
+        this.geometry = geometry;
+        this.stops = sortedStops;
+        this.stopS = stopS;
+        this.scheduledStartTimeMillis = scheduledStartTimeMillis;
+        this.serviceDate = serviceDate;
+    }
 
+    TripRuntime withSchedule(long scheduledStartTimeMillis, LocalDate serviceDate) {
+        return new TripRuntime(geometry, stops, stopS, scheduledStartTimeMillis, serviceDate);
+    }
+
+    public int stopCount() {
+        return stops.size();
+    }
+
+    public Types.StopPoint stop(int idx) {
+        return stops.get(idx);
+    }
+
+    public int shapePointCount() {
+        return geometry.size();
+    }
+
+    public int rawShapePointCount() {
+        return geometry.sourcePoints;
+    }
+
+    static List<Types.StopPoint> sortedStops(List<Types.StopPoint> stops) {
+        List<Types.StopPoint> sorted = new ArrayList<>(Objects.requireNonNull(stops, "stops"));
+        sorted.sort(Comparator.comparingInt(Types.StopPoint::stopSequence));
+        return List.copyOf(sorted);
+    }
+
+    static ShapeGeometry buildGeometry(
+            List<Types.StopPoint> sortedStops,
+            List<Types.ShapePoint> rawShape,
+            Config cfg
+    ) {
         List<Types.ShapePoint> baseShape = (rawShape == null || rawShape.isEmpty())
-                ? pseudoShapeFromStops(this.stops)
+                ? pseudoShapeFromStops(sortedStops)
                 : rawShape;
+        return ShapeGeometry.of(ShapeSimplifier.prepare(baseShape, cfg), cfg.planarMaxErrorM(), baseShape.size());
+    }
 
-        this.shape = PolylineUtils.densify(baseShape, densifyStepM);
-        this.stopS = new double[this.stops.size()];
+    private static Config geometryConfig(double densifyStepM, double planarMaxErrorM) {
+        Config d = Config.defaults();
+        return new Config(
+                densifyStepM,
+                d.toleranceM(),
+                d.maxScheduleAnchorGapMillis(),
+                planarMaxErrorM,
+                d.windowedProjection(),
+                d.maxSpeedMps(),
+                d.windowSlackM(),
+                d.windowMatchMaxDistM(),
+                d.simplifyToleranceM(),
+                Math.max(d.maxSegmentM(), densifyStepM),
+                d.curvatureTurnDeg(),
+                d.stopProximityEarlyOut(),
+                d.monotonicStopProjection()
+        );
+    }
 
-        for (int i = 0; i < this.stops.size(); i++) {
-            Types.StopPoint sp = this.stops.get(i);
-            this.stopS[i] = PolylineProjection.projectAlongMeters(sp.lat(), sp.lon(), this.shape);
+    static double[] projectStops(ShapeGeometry geometry, List<Types.StopPoint> sortedStops, Config cfg) {
+        double[] stopS = new double[sortedStops.size()];
+        if (!cfg.monotonicStopProjection()) {
+            for (int i = 0; i < sortedStops.size(); i++) {
+                Types.StopPoint sp = sortedStops.get(i);
+                stopS[i] = PolylineProjection.projectAlongMeters(sp.lat(), sp.lon(), geometry);
+            }
+            return stopS;
         }
 
-        this.scheduledStartTimeMillis = scheduledStartTimeMillis;
+        // Stops are ordered along the shape, so each one is searched for from the previous stop's segment
+        // onwards. A stop with no close match ahead (out-of-order geometry, a stop far off the shape) falls back
+        // to the whole shape without moving the cursor, so one bad stop cannot strand the rest of the trip.
+        double acceptDistM = cfg.windowMatchMaxDistM();
+        int fromSeg = 0;
+        for (int i = 0; i < sortedStops.size(); i++) {
+            Types.StopPoint sp = sortedStops.get(i);
+            PolylineProjection.Projection p =
+                    PolylineProjection.projectForward(sp.lat(), sp.lon(), geometry, fromSeg, acceptDistM);
+            if (p.distM() <= acceptDistM) {
+                stopS[i] = p.alongM();
+                fromSeg = geometry.segmentAt(p.alongM());
+            } else {
+                stopS[i] = PolylineProjection.projectAlongMeters(sp.lat(), sp.lon(), geometry);
+            }
+        }
+        return stopS;
     }
 
-    private static List<Types.ShapePoint> pseudoShapeFromStops(List<Types.StopPoint> stops) {
-        List<Types.StopPoint> sorted = new ArrayList<>(stops);
-        sorted.sort(Comparator.comparingInt(Types.StopPoint::stopSequence));
-        List<Types.ShapePoint> pts = new ArrayList<>(sorted.size());
-        for (Types.StopPoint s : sorted) {
+    private static List<Types.ShapePoint> pseudoShapeFromStops(List<Types.StopPoint> sortedStops) {
+        List<Types.ShapePoint> pts = new ArrayList<>(sortedStops.size());
+        for (Types.StopPoint s : sortedStops) {
             pts.add(new Types.ShapePoint(s.lat(), s.lon()));
         }
         return pts;
@@ -1,48 +1,352 @@
 package iot.data.platform.core;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import iot.data.platform.cache.CacheReport;
+import iot.data.platform.cache.CacheReporter;
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.cache.Caches;
+import iot.data.platform.cache.NegativeCache;
+import iot.data.platform.cache.Weights;
 import iot.data.platform.spi.ShapeProvider;
 import iot.data.platform.spi.StopProvider;
 import iot.data.platform.spi.TripScheduleProvider;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+public final class TripRuntimeFactory implements CacheReporter {
+    private static final String TRIP_SCOPED_SHAPE_PREFIX = "#trip:";
+    private static final int TRIP_VIEW_BYTES = 64;
+    private static final Types.TripSchedule NO_SCHEDULE = new Types.TripSchedule(-1L);
+    private static final long MAX_REPLAY_START_SKEW_MS = Duration.ofHours(12).toMillis();
 
-public final class TripRuntimeFactory {
     private final StopProvider stopProvider;
     private final ShapeProvider shapeProvider;
     private final TripScheduleProvider scheduleProvider;
     private final Config cfg;
+    private final CacheSpec cacheSpec;
+
+    private final AsyncLoadingCache<String, TripRuntime> cache;
+    private final Cache<String, ShapeGeometry> geometryByShapeKey;
+    private final Cache<PatternKey, SharedPattern> patterns;
+    private final NegativeCache<String> missingTrips;
 
-    private final Map<String, TripRuntime> cache = new ConcurrentHashMap<>();
+    private final Path snapshotFile;
+    private final long snapshotFingerprint;
+    private final Map<String, TripSnapshotWriter.Entry> unsaved = new ConcurrentHashMap<>();
+    private volatile TripSnapshot snapshot;
 
     public TripRuntimeFactory(
             StopProvider stopProvider,
             ShapeProvider shapeProvider,
             TripScheduleProvider scheduleProvider,
             Config cfg
+    ) {
+        this(stopProvider, shapeProvider, scheduleProvider, cfg, CacheSpec.defaults(), ForkJoinPool.commonPool());
+    }
+
+    public TripRuntimeFactory(
+            StopProvider stopProvider,
+            ShapeProvider shapeProvider,
+            TripScheduleProvider scheduleProvider,
+            Config cfg,
+            CacheSpec cacheSpec,
+            Executor loaderExecutor
+    ) {
+        this(stopProvider, shapeProvider, scheduleProvider, cfg, cacheSpec, loaderExecutor, null, 0L);
+    }
+
+    public TripRuntimeFactory(
+            StopProvider stopProvider,
+            ShapeProvider shapeProvider,
+            TripScheduleProvider scheduleProvider,
+            Config cfg,
+            CacheSpec cacheSpec,
+            Executor loaderExecutor,
+            Path snapshotFile,
+            long feedFingerprint
     ) {
         this.stopProvider = stopProvider;
         this.shapeProvider = shapeProvider;
         this.scheduleProvider = scheduleProvider;
         this.cfg = (cfg == null) ? Config.defaults() : cfg;
+
+        CacheSpec spec = (cacheSpec == null) ? CacheSpec.defaults() : cacheSpec;
+        this.cacheSpec = spec;
+        this.snapshotFile = snapshotFile;
+        this.snapshotFingerprint = snapshotFingerprint(feedFingerprint, this.cfg);
+        this.snapshot = (snapshotFile == null) ? null : tryMap(snapshotFile, this.snapshotFingerprint);
+        this.cache = Caches.<String, TripRuntime>refreshingBuilder(spec,
+                        (tripId, trip) -> Weights.clamp(TRIP_VIEW_BYTES + Weights.string(tripId)))
+                .executor(loaderExecutor == null ? ForkJoinPool.commonPool() : loaderExecutor)
+                .buildAsync(new CacheLoader<>() {
+                    @Override
+                    public TripRuntime load(String tripId) {
+                        return loadOrBackOff(tripId);
+                    }
+
+                    @Override
+                    public TripRuntime reload(String tripId, TripRuntime oldValue) {
+                        return build(tripId);
+                    }
+                });
+        this.geometryByShapeKey = Caches.<String, ShapeGeometry>builder(spec,
+                        (shapeKey, geometry) -> Weights.clamp(Weights.string(shapeKey) + geometry.estimatedBytes()))
+                .build();
+        this.patterns = Caches.<PatternKey, SharedPattern>builder(spec,
+                        (key, pattern) -> Weights.clamp(Weights.stops(pattern.stops()) + 16L + 8L * pattern.stopS().length))
+                .build();
+        this.missingTrips = new NegativeCache<>(spec.missingInitialBackoff(), spec.missingMaxBackoff());
     }
 
     public TripRuntime get(String tripId) {
-        return cache.computeIfAbsent(tripId, this::build);
+        if (missingTrips.isBlocked(tripId)) throw unavailable(tripId);
+        return cache.synchronous().get(tripId);
+    }
+
+    // For replaying history: the trip's cached geometry with the run the provider resolves nearest to atMillis
+    // instead of nearest to now. A start more than half a day from atMillis, as from a provider that only knows
+    // the current run, is dropped rather than anchoring old samples to another day's schedule.
+    public TripRuntime getAt(String tripId, long atMillis) {
+        TripRuntime trip = get(tripId);
+        Types.TripSchedule sched = (scheduleProvider == null) ? null : scheduleProvider.getSchedule(tripId, atMillis);
+        if (sched == null || sched.scheduledStartTimeMillis() < 0
+                || Math.abs(sched.scheduledStartTimeMillis() - atMillis) > MAX_REPLAY_START_SKEW_MS) {
+            sched = NO_SCHEDULE;
+        }
+        return trip.withSchedule(sched.scheduledStartTimeMillis(), sched.serviceDate());
+    }
+
+    // Whether a runtime getAt resolved at loadedAtMillis is still the run nearest to atMillis. A trip id that runs
+    // every day needs a new one once its samples are closer to another day's start.
+    public boolean isSameRun(TripRuntime trip, long loadedAtMillis, long atMillis) {
+        if (trip.scheduledStartTimeMillis >= 0) {
+            return Math.abs(trip.scheduledStartTimeMillis - atMillis) <= MAX_REPLAY_START_SKEW_MS;
+        }
+        return serviceDateAt(loadedAtMillis).equals(serviceDateAt(atMillis));
+    }
+
+    public CompletableFuture<TripRuntime> load(String tripId) {
+        if (missingTrips.isBlocked(tripId)) return CompletableFuture.failedFuture(unavailable(tripId));
+        return cache.get(tripId);
+    }
+
+    // True while a trip that recently failed to load is backing off; callers should skip its samples.
+    public boolean isKnownMissing(String tripId) {
+        return missingTrips.isBlocked(tripId);
+    }
+
+    public TripRuntime getIfReady(String tripId) {
+        CompletableFuture<TripRuntime> f = cache.get(tripId);
+        return (f.isDone() && !f.isCompletedExceptionally()) ? f.join() : null;
+    }
+
+    // Like getIfReady, but never starts a load on a miss; for callers that only inspect trips already in use.
+    public TripRuntime getIfPresent(String tripId) {
+        CompletableFuture<TripRuntime> f = cache.getIfPresent(tripId);
+        return (f != null && f.isDone() && !f.isCompletedExceptionally()) ? f.join() : null;
+    }
+
+    // Includes the caches of providers that keep their own; one backend often serves as all three providers.
+    @Override
+    public List<CacheReport> cacheReports() {
+        List<CacheReport> reports = new ArrayList<>(List.of(
+                Caches.report("trip-runtimes", cache.synchronous()),
+                Caches.report("shape-geometry", geometryByShapeKey),
+                Caches.report("stop-patterns", patterns),
+                missingTrips.report("missing-trips")
+        ));
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object provider : new Object[]{stopProvider, shapeProvider, scheduleProvider}) {
+            if (provider instanceof CacheReporter r && seen.add(provider)) {
+                reports.addAll(r.cacheReports());
+            }
+        }
+        return reports;
+    }
+
+    // Writes every trip built since the last flush into the snapshot file and switches lookups over to it.
+    public synchronized void flushSnapshot() {
+        if (snapshotFile == null || unsaved.isEmpty()) return;
+        Map<String, TripSnapshotWriter.Entry> batch = new HashMap<>(unsaved);
+        long t0 = System.nanoTime();
+        try {
+            TripSnapshotWriter.write(snapshotFile, snapshotFingerprint, snapshot, batch);
+            snapshot = TripSnapshot.map(snapshotFile);
+            batch.forEach(unsaved::remove);
+            System.err.printf("[TripRuntimeFactory] Saved %d new trips to %s (%d total) in %d ms%n",
+                    batch.size(), snapshotFile, snapshot.tripCount(), (System.nanoTime() - t0) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[TripRuntimeFactory] Failed to write snapshot " + snapshotFile + ": " + e);
+        }
+    }
+
+    private TripRuntime loadOrBackOff(String tripId) {
+        if (missingTrips.isBlocked(tripId)) throw unavailable(tripId);
+        try {
+            TripRuntime trip = loadSnapshotOrBuild(tripId);
+            missingTrips.succeeded(tripId);
+            return trip;
+        } catch (RuntimeException e) {
+            Duration backoff = missingTrips.failed(tripId);
+            System.err.println("[TripRuntimeFactory] Trip " + tripId + " failed to load, retrying in "
+                    + backoff.toSeconds() + "s: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    private static TripUnavailableException unavailable(String tripId) {
+        return new TripUnavailableException("Trip " + tripId + " recently failed to load, backing off");
+    }
+
+    private TripRuntime loadSnapshotOrBuild(String tripId) {
+        TripSnapshot snap = snapshot;
+        int trip = (snap == null) ? -1 : snap.tripIndex(tripId);
+        if (trip < 0) return build(tripId);
+
+        int p = snap.patternOf(trip);
+        int g = snap.geometryOf(p);
+        String shapeKey = snap.geometryKey(g);
+        SharedPattern pattern = patterns.get(
+                new PatternKey(shapeKey, snap.patternStops(p)),
+                key -> new SharedPattern(
+                        (shapeKey == null) ? snap.geometry(g) : geometryByShapeKey.get(shapeKey, id -> snap.geometry(g)),
+                        key.stops(),
+                        snap.patternStopS(p)
+                )
+        );
+        Types.TripSchedule sched = (snap.serviceDay(trip) == serviceDay())
+                ? new Types.TripSchedule(snap.scheduledStart(trip), dateOf(snap.scheduleDay(trip)))
+                : schedule(tripId);
+        return new TripRuntime(pattern.geometry(), pattern.stops(), pattern.stopS(),
+                sched.scheduledStartTimeMillis(), sched.serviceDate());
     }
 
     private TripRuntime build(String tripId) {
-        List<Types.StopPoint> stops = stopProvider.getStops(tripId);
-        List<Types.ShapePoint> shape = (shapeProvider == null) ? List.of() : shapeProvider.getShape(tripId);
-        Types.TripSchedule sched = (scheduleProvider == null) ? null : scheduleProvider.getSchedule(tripId);
+        List<Types.StopPoint> stops = TripRuntime.sortedStops(stopProvider.getStops(tripId));
+        if (stops.isEmpty()) throw new TripUnavailableException("Trip " + tripId + " has no stops");
+        String shapeKey = (shapeProvider == null) ? null : shapeProvider.getShapeId(tripId);
+        Types.TripSchedule sched = schedule(tripId);
 
-        long startMs = (sched == null) ? -1L : sched.scheduledStartTimeMillis();
-        return new TripRuntime(
-                stops,
-                shape,
-                startMs,
-                cfg.densifyStepM()
+        if (shapeKey == null && shapeProvider != null) {
+            List<Types.ShapePoint> shape = shapeProvider.getShape(tripId);
+            if (shape != null && !shape.isEmpty()) {
+                shapeKey = TRIP_SCOPED_SHAPE_PREFIX + tripId;
+            }
+        }
+
+        SharedPattern pattern = patterns.get(
+                new PatternKey(shapeKey, stops),
+                key -> buildPattern(tripId, key)
         );
+        if (snapshotFile != null) {
+            int scheduleDay = (sched.serviceDate() == null) ? TripSnapshot.NO_DAY : (int) sched.serviceDate().toEpochDay();
+            unsaved.put(tripId, new TripSnapshotWriter.Entry(shapeKey, pattern.geometry(), pattern.stops(),
+                    pattern.stopS(), serviceDay(), scheduleDay, sched.scheduledStartTimeMillis()));
+        }
+        return new TripRuntime(pattern.geometry(), pattern.stops(), pattern.stopS(),
+                sched.scheduledStartTimeMillis(), sched.serviceDate());
+    }
+
+    private Types.TripSchedule schedule(String tripId) {
+        Types.TripSchedule sched = (scheduleProvider == null) ? null : scheduleProvider.getSchedule(tripId);
+        return (sched == null) ? NO_SCHEDULE : sched;
+    }
+
+    private static LocalDate dateOf(int epochDay) {
+        return (epochDay == TripSnapshot.NO_DAY) ? null : LocalDate.ofEpochDay(epochDay);
     }
+
+    // The service date the schedule provider resolved the trip on. Without one it is taken from the trip's
+    // scheduled start, so every arrival of one trip shares a date even across midnight, and from the given time
+    // otherwise; both use the clock-time rollover, which misdates trips starting between midnight and the rollover
+    // that the feed writes as 00:xx rather than 24:xx.
+    public LocalDate serviceDate(TripRuntime trip, long fallbackMillis) {
+        if (trip.serviceDate != null) return trip.serviceDate;
+        long at = (trip.scheduledStartTimeMillis >= 0) ? trip.scheduledStartTimeMillis : fallbackMillis;
+        return serviceDate(Instant.ofEpochMilli(at).atZone(cacheSpec.serviceDayZone()));
+    }
+
+    // The service date a sample taken at the given time falls on, by the clock-time rollover.
+    public LocalDate serviceDateAt(long millis) {
+        return serviceDate(Instant.ofEpochMilli(millis).atZone(cacheSpec.serviceDayZone()));
+    }
+
+    private int serviceDay() {
+        return (int) serviceDate(ZonedDateTime.now(cacheSpec.serviceDayZone())).toEpochDay();
+    }
+
+    private LocalDate serviceDate(ZonedDateTime at) {
+        LocalDate day = at.toLocalDate();
+        return at.toLocalTime().isBefore(cacheSpec.serviceDayRollover()) ? day.minusDays(1) : day;
+    }
+
+    // Geometry depends on the shaping config as much as on the feed, so both go into the fingerprint.
+    private static long snapshotFingerprint(long feedFingerprint, Config cfg) {
+        long h = feedFingerprint * 31 + TripSnapshot.VERSION;
+        h = h * 31 + Double.doubleToLongBits(cfg.densifyStepM());
+        h = h * 31 + Double.doubleToLongBits(cfg.planarMaxErrorM());
+        h = h * 31 + Double.doubleToLongBits(cfg.simplifyToleranceM());
+        h = h * 31 + Double.doubleToLongBits(cfg.maxSegmentM());
+        h = h * 31 + Double.doubleToLongBits(cfg.curvatureTurnDeg());
+        h = h * 31 + (cfg.monotonicStopProjection() ? 1 : 0);
+        return h;
+    }
+
+    private static TripSnapshot tryMap(Path file, long fingerprint) {
+        if (!Files.exists(file)) return null;
+        try {
+            TripSnapshot snap = TripSnapshot.map(file);
+            if (snap.fingerprint() != fingerprint) {
+                System.err.println("[TripRuntimeFactory] Ignoring snapshot " + file + " built for another feed or config");
+                return null;
+            }
+            System.err.println("[TripRuntimeFactory] Mapped snapshot " + file + " with " + snap.tripCount() + " trips");
+            return snap;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[TripRuntimeFactory] Ignoring unreadable snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private SharedPattern buildPattern(String tripId, PatternKey key) {
+        ShapeGeometry geometry = (key.shapeKey() == null) ? null : geometryByShapeKey.get(key.shapeKey(), id -> {
+            List<Types.ShapePoint> shape = shapeProvider.getShape(tripId);
+            if (shape == null || shape.isEmpty()) return null;
+            return TripRuntime.buildGeometry(key.stops(), shape, cfg);
+        });
+        if (geometry == null) {
+            geometry = TripRuntime.buildGeometry(key.stops(), List.of(), cfg);
+        }
+        return new SharedPattern(geometry, key.stops(), TripRuntime.projectStops(geometry, key.stops(), cfg));
+    }
+
+    private record PatternKey(
+            String shapeKey,
+            List<Types.StopPoint> stops
+    ) {}
+
+    private record SharedPattern(
+            ShapeGeometry geometry,
+            List<Types.StopPoint> stops,
+            double[] stopS
+    ) {}
 }
@@ -0,0 +1,238 @@
+package iot.data.platform.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+final class TripSnapshot {
+    static final long MAGIC = 0x5452_4950_534e_4150L; // "TRIPSNAP"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 8 + 4 + 8 + 3 * 8;
+    static final int NO_DAY = Integer.MIN_VALUE;
+
+    private final ByteBuffer buf;
+    private final long fingerprint;
+
+    private final int geometryCount;
+    private final int geometryOffsetsPos;
+    private final int geometryBlobsPos;
+
+    private final int patternCount;
+    private final int patternOffsetsPos;
+    private final int patternBlobsPos;
+
+    private final int tripCount;
+    private final int tripIdOffsetsPos;
+    private final int tripPatternPos;
+    private final int tripServiceDayPos;
+    private final int tripScheduleDayPos;
+    private final int tripStartPos;
+    private final int tripIdBytesPos;
+
+    private TripSnapshot(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.getLong(0) != MAGIC) throw new IllegalStateException("Not a trip runtime snapshot");
+        if (buf.getInt(8) != VERSION) throw new IllegalStateException("Unsupported trip snapshot version " + buf.getInt(8));
+        this.fingerprint = buf.getLong(12);
+
+        int geometriesOff = (int) buf.getLong(20);
+        int patternsOff = (int) buf.getLong(28);
+        int tripsOff = (int) buf.getLong(36);
+
+        this.geometryCount = buf.getInt(geometriesOff);
+        this.geometryOffsetsPos = geometriesOff + 4;
+        this.geometryBlobsPos = geometryOffsetsPos + 4 * (geometryCount + 1);
+
+        this.patternCount = buf.getInt(patternsOff);
+        this.patternOffsetsPos = patternsOff + 4;
+        this.patternBlobsPos = patternOffsetsPos + 4 * (patternCount + 1);
+
+        this.tripCount = buf.getInt(tripsOff);
+        this.tripIdOffsetsPos = tripsOff + 4;
+        this.tripPatternPos = tripIdOffsetsPos + 4 * (tripCount + 1);
+        this.tripServiceDayPos = tripPatternPos + 4 * tripCount;
+        this.tripScheduleDayPos = tripServiceDayPos + 4 * tripCount;
+        this.tripStartPos = tripScheduleDayPos + 4 * tripCount;
+        this.tripIdBytesPos = tripStartPos + 8 * tripCount;
+    }
+
+    static TripSnapshot map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TripSnapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    int tripCount() {
+        return tripCount;
+    }
+
+    int geometryCount() {
+        return geometryCount;
+    }
+
+    int patternCount() {
+        return patternCount;
+    }
+
+    String tripId(int trip) {
+        int from = buf.getInt(tripIdOffsetsPos + 4 * trip);
+        int to = buf.getInt(tripIdOffsetsPos + 4 * (trip + 1));
+        byte[] bytes = new byte[to - from];
+        buf.get(tripIdBytesPos + from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int tripIndex(String tripId) {
+        if (tripId == null) return -1;
+        byte[] key = tripId.getBytes(StandardCharsets.UTF_8);
+        int lo = 0, hi = tripCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareTripId(mid, key);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    int patternOf(int trip) {
+        return buf.getInt(tripPatternPos + 4 * trip);
+    }
+
+    // scheduled starts are absolute, so they are only reused within the service day they were resolved in
+    int serviceDay(int trip) {
+        return buf.getInt(tripServiceDayPos + 4 * trip);
+    }
+
+    // the service date the schedule provider resolved the start on, NO_DAY when it gave only the start
+    int scheduleDay(int trip) {
+        return buf.getInt(tripScheduleDayPos + 4 * trip);
+    }
+
+    long scheduledStart(int trip) {
+        return buf.getLong(tripStartPos + 8 * trip);
+    }
+
+    // geometry blob: key, n, sourcePoints, frame, lat/lon/x/y/cum [n], segLen/heading [n-1], geodesic flags [n-1]
+    String geometryKey(int g) {
+        int pos = geometryBlob(g);
+        int len = buf.getInt(pos);
+        if (len == 0) return null;
+        byte[] bytes = new byte[len];
+        buf.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    ShapeGeometry geometry(int g) {
+        int pos = geometryBlob(g);
+        pos += 4 + buf.getInt(pos);
+        int n = buf.getInt(pos);
+        int sourcePoints = buf.getInt(pos + 4);
+        double lat0 = buf.getDouble(pos + 8);
+        double lon0 = buf.getDouble(pos + 16);
+        double mPerDegLat = buf.getDouble(pos + 24);
+        double mPerDegLon = buf.getDouble(pos + 32);
+        pos += 40;
+        int segs = Math.max(0, n - 1);
+        double[] lat = doubles(pos, n);
+        double[] lon = doubles(pos += 8 * n, n);
+        double[] x = doubles(pos += 8 * n, n);
+        double[] y = doubles(pos += 8 * n, n);
+        double[] cum = doubles(pos += 8 * n, n);
+        double[] segLen = doubles(pos += 8 * n, segs);
+        double[] heading = doubles(pos += 8 * segs, segs);
+        pos += 8 * segs;
+        boolean[] geodesicSeg = new boolean[segs];
+        for (int i = 0; i < segs; i++) {
+            geodesicSeg[i] = buf.get(pos + i) != 0;
+        }
+        return new ShapeGeometry(lat, lon, x, y, cum, segLen, heading, geodesicSeg,
+                lat0, lon0, mPerDegLat, mPerDegLon, sourcePoints);
+    }
+
+    // pattern blob: geometry index, k, k length-prefixed stop ids, lat/lon [k], sequence [k], stopS [k]
+    int geometryOf(int p) {
+        return buf.getInt(patternBlob(p));
+    }
+
+    List<Types.StopPoint> patternStops(int p) {
+        int pos = patternBlob(p);
+        int k = buf.getInt(pos + 4);
+        pos += 8;
+        String[] ids = new String[k];
+        for (int i = 0; i < k; i++) {
+            int len = buf.getInt(pos);
+            byte[] bytes = new byte[len];
+            buf.get(pos + 4, bytes);
+            ids[i] = new String(bytes, StandardCharsets.UTF_8);
+            pos += 4 + len;
+        }
+        List<Types.StopPoint> stops = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            stops.add(new Types.StopPoint(
+                    ids[i],
+                    buf.getDouble(pos + 8 * i),
+                    buf.getDouble(pos + 8 * (k + i)),
+                    buf.getInt(pos + 16 * k + 4 * i)
+            ));
+        }
+        return List.copyOf(stops);
+    }
+
+    double[] patternStopS(int p) {
+        int pos = patternBlob(p);
+        int k = buf.getInt(pos + 4);
+        pos += 8;
+        for (int i = 0; i < k; i++) {
+            pos += 4 + buf.getInt(pos);
+        }
+        return doubles(pos + 20 * k, k);
+    }
+
+    ByteBuffer geometryBytes(int g) {
+        int from = geometryBlob(g);
+        return buf.slice(from, geometryBlobsPos + buf.getInt(geometryOffsetsPos + 4 * (g + 1)) - from);
+    }
+
+    ByteBuffer patternBytes(int p) {
+        int from = patternBlob(p);
+        return buf.slice(from, patternBlobsPos + buf.getInt(patternOffsetsPos + 4 * (p + 1)) - from);
+    }
+
+    private int geometryBlob(int g) {
+        return geometryBlobsPos + buf.getInt(geometryOffsetsPos + 4 * g);
+    }
+
+    private int patternBlob(int p) {
+        return patternBlobsPos + buf.getInt(patternOffsetsPos + 4 * p);
+    }
+
+    private double[] doubles(int pos, int n) {
+        double[] out = new double[n];
+        buf.slice(pos, 8 * n).asDoubleBuffer().get(out);
+        return out;
+    }
+
+    private int compareTripId(int trip, byte[] key) {
+        int from = buf.getInt(tripIdOffsetsPos + 4 * trip);
+        int to = buf.getInt(tripIdOffsetsPos + 4 * (trip + 1));
+        int len = to - from;
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf.get(tripIdBytesPos + from + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) return a - b;
+        }
+        return len - key.length;
+    }
+}
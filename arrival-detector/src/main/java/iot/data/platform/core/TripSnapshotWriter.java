@@ -0,0 +1,214 @@
+package iot.data.platform.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class TripSnapshotWriter {
+    private final List<Object> geometries = new ArrayList<>();
+    private final List<Object> patterns = new ArrayList<>();
+    private final Map<ShapeGeometry, Integer> newGeometryIndex = new IdentityHashMap<>();
+    private final Map<double[], Integer> newPatternIndex = new IdentityHashMap<>();
+    private int[] oldGeometryIndex = new int[0];
+    private int[] oldPatternIndex = new int[0];
+
+    private TripSnapshotWriter() {}
+
+    // Trips already in the previous snapshot are carried over as raw bytes unless they were rebuilt since;
+    // geometry and patterns no surviving trip refers to are dropped.
+    static void write(Path out, long fingerprint, TripSnapshot previous, Map<String, Entry> updates) throws IOException {
+        TripSnapshotWriter w = new TripSnapshotWriter();
+        List<TripRow> rows = new ArrayList<>();
+        if (previous != null) {
+            w.oldGeometryIndex = new int[previous.geometryCount()];
+            w.oldPatternIndex = new int[previous.patternCount()];
+            Arrays.fill(w.oldGeometryIndex, -1);
+            Arrays.fill(w.oldPatternIndex, -1);
+            for (int t = 0; t < previous.tripCount(); t++) {
+                String tripId = previous.tripId(t);
+                if (updates.containsKey(tripId)) continue;
+                int pattern = w.oldPattern(previous, previous.patternOf(t));
+                rows.add(new TripRow(tripId.getBytes(StandardCharsets.UTF_8), pattern,
+                        previous.serviceDay(t), previous.scheduleDay(t), previous.scheduledStart(t)));
+            }
+        }
+        for (Map.Entry<String, Entry> e : updates.entrySet()) {
+            Entry entry = e.getValue();
+            rows.add(new TripRow(e.getKey().getBytes(StandardCharsets.UTF_8), w.newPattern(entry),
+                    entry.serviceDay(), entry.scheduleDay(), entry.scheduledStartTimeMillis()));
+        }
+        rows.sort((a, b) -> Arrays.compareUnsigned(a.id(), b.id()));
+
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            w.write(os, fingerprint, rows);
+        }
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int oldPattern(TripSnapshot previous, int p) {
+        if (oldPatternIndex[p] >= 0) return oldPatternIndex[p];
+        int g = previous.geometryOf(p);
+        if (oldGeometryIndex[g] < 0) {
+            oldGeometryIndex[g] = geometries.size();
+            geometries.add(previous.geometryBytes(g));
+        }
+        ByteBuffer blob = ByteBuffer.allocate(previous.patternBytes(p).remaining());
+        blob.put(previous.patternBytes(p)).putInt(0, oldGeometryIndex[g]).flip();
+        oldPatternIndex[p] = patterns.size();
+        patterns.add(blob);
+        return oldPatternIndex[p];
+    }
+
+    private int newPattern(Entry entry) {
+        Integer known = newPatternIndex.get(entry.stopS());
+        if (known != null) return known;
+        Integer g = newGeometryIndex.get(entry.geometry());
+        if (g == null) {
+            g = geometries.size();
+            newGeometryIndex.put(entry.geometry(), g);
+            geometries.add(entry);
+        }
+        int p = patterns.size();
+        newPatternIndex.put(entry.stopS(), p);
+        patterns.add(new PatternRef(g, entry));
+        return p;
+    }
+
+    private void write(OutputStream os, long fingerprint, List<TripRow> rows) throws IOException {
+        ByteArrayOutputStream geometriesSec = new ByteArrayOutputStream();
+        writeBlobs(new DataOutputStream(geometriesSec), geometries, this::writeGeometry);
+
+        ByteArrayOutputStream patternsSec = new ByteArrayOutputStream();
+        writeBlobs(new DataOutputStream(patternsSec), patterns, this::writePattern);
+
+        ByteArrayOutputStream tripsSec = new ByteArrayOutputStream();
+        DataOutputStream trips = new DataOutputStream(tripsSec);
+        trips.writeInt(rows.size());
+        int idOffset = 0;
+        trips.writeInt(0);
+        for (TripRow r : rows) {
+            idOffset += r.id().length;
+            trips.writeInt(idOffset);
+        }
+        for (TripRow r : rows) trips.writeInt(r.pattern());
+        for (TripRow r : rows) trips.writeInt(r.serviceDay());
+        for (TripRow r : rows) trips.writeInt(r.scheduleDay());
+        for (TripRow r : rows) trips.writeLong(r.start());
+        for (TripRow r : rows) trips.write(r.id());
+        trips.flush();
+
+        long geometriesOff = TripSnapshot.HEADER_BYTES;
+        long patternsOff = geometriesOff + geometriesSec.size();
+        long tripsOff = patternsOff + patternsSec.size();
+        if (tripsOff + tripsSec.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Trip runtime snapshot exceeds 2 GiB");
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeLong(TripSnapshot.MAGIC);
+        out.writeInt(TripSnapshot.VERSION);
+        out.writeLong(fingerprint);
+        out.writeLong(geometriesOff);
+        out.writeLong(patternsOff);
+        out.writeLong(tripsOff);
+        geometriesSec.writeTo(out);
+        patternsSec.writeTo(out);
+        tripsSec.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeBlobs(DataOutputStream out, List<Object> blobs, BlobWriter writer) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        out.writeInt(blobs.size());
+        out.writeInt(0);
+        for (Object blob : blobs) {
+            if (blob instanceof ByteBuffer raw) {
+                byte[] bytes = new byte[raw.remaining()];
+                raw.duplicate().get(bytes);
+                bodyOut.write(bytes);
+            } else {
+                writer.write(bodyOut, blob);
+            }
+            bodyOut.flush();
+            out.writeInt(body.size());
+        }
+        body.writeTo(out);
+        out.flush();
+    }
+
+    private void writeGeometry(DataOutputStream out, Object blob) throws IOException {
+        Entry entry = (Entry) blob;
+        ShapeGeometry g = entry.geometry();
+        writeString(out, (entry.shapeKey() == null) ? "" : entry.shapeKey());
+        out.writeInt(g.size());
+        out.writeInt(g.sourcePoints);
+        out.writeDouble(g.lat0);
+        out.writeDouble(g.lon0);
+        out.writeDouble(g.mPerDegLat);
+        out.writeDouble(g.mPerDegLon);
+        writeDoubles(out, g.lat);
+        writeDoubles(out, g.lon);
+        writeDoubles(out, g.x);
+        writeDoubles(out, g.y);
+        writeDoubles(out, g.cum);
+        writeDoubles(out, g.segLen);
+        writeDoubles(out, g.heading);
+        for (boolean geodesic : g.geodesicSeg) {
+            out.writeByte(geodesic ? 1 : 0);
+        }
+    }
+
+    private void writePattern(DataOutputStream out, Object blob) throws IOException {
+        PatternRef ref = (PatternRef) blob;
+        List<Types.StopPoint> stops = ref.entry().stops();
+        out.writeInt(ref.geometry());
+        out.writeInt(stops.size());
+        for (Types.StopPoint s : stops) writeString(out, s.stopId());
+        for (Types.StopPoint s : stops) out.writeDouble(s.lat());
+        for (Types.StopPoint s : stops) out.writeDouble(s.lon());
+        for (Types.StopPoint s : stops) out.writeInt(s.stopSequence());
+        writeDoubles(out, ref.entry().stopS());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double v : values) out.writeDouble(v);
+    }
+
+    record Entry(
+            String shapeKey,
+            ShapeGeometry geometry,
+            List<Types.StopPoint> stops,
+            double[] stopS,
+            int serviceDay,
+            int scheduleDay,
+            long scheduledStartTimeMillis
+    ) {}
+
+    private record PatternRef(int geometry, Entry entry) {}
+
+    private record TripRow(byte[] id, int pattern, int serviceDay, int scheduleDay, long start) {}
+
+    private interface BlobWriter {
+        void write(DataOutputStream out, Object blob) throws IOException;
+    }
+}
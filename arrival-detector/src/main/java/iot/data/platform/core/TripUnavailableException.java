@@ -0,0 +1,9 @@
+package iot.data.platform.core;
+
+public class TripUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TripUnavailableException(String message) {
+        super(message);
+    }
+}
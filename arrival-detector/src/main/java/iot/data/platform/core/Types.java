@@ -1,5 +1,6 @@
 package iot.data.platform.core;
 
+import java.time.LocalDate;
 import java.util.List;
 
 public final class Types {
@@ -33,9 +34,16 @@ public final class Types {
             long arrivalTimeMillis
     ) {}
 
+    // serviceDate is the GTFS service day the start was resolved on, or null when the provider only knows the
+    // absolute start.
     public record TripSchedule(
-            long scheduledStartTimeMillis
-    ) {}
+            long scheduledStartTimeMillis,
+            LocalDate serviceDate
+    ) {
+        public TripSchedule(long scheduledStartTimeMillis) {
+            this(scheduledStartTimeMillis, null);
+        }
+    }
 
     public interface StopArrivalListener {
         void onStopArrival(StopArrival arrival);
@@ -0,0 +1,103 @@
+package iot.data.platform.gtfs;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class GtfsCsvReader implements Closeable {
+    private final BufferedReader in;
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<String> row = new ArrayList<>();
+
+    GtfsCsvReader(BufferedReader in) throws IOException {
+        this.in = in;
+        String header = in.readLine();
+        if (header == null) return;
+        if (!header.isEmpty() && header.charAt(0) == '\uFEFF') {
+            header = header.substring(1);
+        }
+        List<String> names = new ArrayList<>();
+        split(header, names);
+        for (int i = 0; i < names.size(); i++) {
+            columns.put(names.get(i).trim(), i);
+        }
+    }
+
+    int column(String name) {
+        return columns.getOrDefault(name, -1);
+    }
+
+    int requireColumn(String name) {
+        int idx = column(name);
+        if (idx < 0) throw new IllegalStateException("Missing GTFS column: " + name);
+        return idx;
+    }
+
+    boolean next() throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null) return false;
+        } while (line.isBlank());
+
+        // quoted fields may contain line breaks
+        while (countQuotes(line) % 2 != 0) {
+            String more = in.readLine();
+            if (more == null) break;
+            line = line + "\n" + more;
+        }
+        row.clear();
+        split(line, row);
+        return true;
+    }
+
+    String get(int column) {
+        if (column < 0 || column >= row.size()) return "";
+        return row.get(column);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static int countQuotes(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '"') n++;
+        }
+        return n;
+    }
+
+    private static void split(String line, List<String> out) {
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        out.add(field.toString());
+    }
+}
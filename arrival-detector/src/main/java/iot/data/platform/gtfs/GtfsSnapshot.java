@@ -0,0 +1,230 @@
+package iot.data.platform.gtfs;
+
+import iot.data.platform.core.Types;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class GtfsSnapshot {
+    static final long MAGIC = 0x4754_4653_534e_4150L; // "GTFSSNAP"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 8 + 4 + 8 + 6 * 8;
+
+    private final ByteBuffer buf;
+    private final long fingerprint;
+
+    private final int stringCount;
+    private final int stringOffsetsPos;
+    private final int stringBytesPos;
+
+    private final int stopCount;
+    private final int stopIdPos;
+    private final int stopLatPos;
+    private final int stopLonPos;
+
+    private final int shapeCount;
+    private final int shapeIdPos;
+    private final int shapePointOffsetsPos;
+    private final int shapeLatPos;
+    private final int shapeLonPos;
+
+    private final int tripCount;
+    private final int tripIdPos;
+    private final int tripShapePos;
+    private final int tripStartPos;
+    private final int tripEndPos;
+    private final int tripServicePos;
+    private final int tripStopTimeOffsetsPos;
+
+    private final int stopTimeStopPos;
+    private final int stopTimeSeqPos;
+
+    private final int serviceCount;
+    private final int serviceWeekdaysPos;
+    private final int serviceStartPos;
+    private final int serviceEndPos;
+    private final int serviceExceptionOffsetsPos;
+    private final int serviceExceptionDatePos;
+    private final int serviceExceptionTypePos;
+
+    private GtfsSnapshot(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.getLong(0) != MAGIC) throw new IllegalStateException("Not a GTFS snapshot");
+        if (buf.getInt(8) != VERSION) throw new IllegalStateException("Unsupported GTFS snapshot version " + buf.getInt(8));
+        this.fingerprint = buf.getLong(12);
+
+        int stringsOff = (int) buf.getLong(20);
+        int stopsOff = (int) buf.getLong(28);
+        int shapesOff = (int) buf.getLong(36);
+        int tripsOff = (int) buf.getLong(44);
+        int stopTimesOff = (int) buf.getLong(52);
+        int servicesOff = (int) buf.getLong(60);
+
+        this.stringCount = buf.getInt(stringsOff);
+        this.stringOffsetsPos = stringsOff + 4;
+        this.stringBytesPos = stringOffsetsPos + 4 * (stringCount + 1);
+
+        this.stopCount = buf.getInt(stopsOff);
+        this.stopIdPos = stopsOff + 4;
+        this.stopLatPos = stopIdPos + 4 * stopCount;
+        this.stopLonPos = stopLatPos + 8 * stopCount;
+
+        this.shapeCount = buf.getInt(shapesOff);
+        this.shapeIdPos = shapesOff + 4;
+        this.shapePointOffsetsPos = shapeIdPos + 4 * shapeCount;
+        int shapePoints = buf.getInt(shapePointOffsetsPos + 4 * shapeCount);
+        this.shapeLatPos = shapePointOffsetsPos + 4 * (shapeCount + 1);
+        this.shapeLonPos = shapeLatPos + 8 * shapePoints;
+
+        this.tripCount = buf.getInt(tripsOff);
+        this.tripIdPos = tripsOff + 4;
+        this.tripShapePos = tripIdPos + 4 * tripCount;
+        this.tripStartPos = tripShapePos + 4 * tripCount;
+        this.tripEndPos = tripStartPos + 4 * tripCount;
+        this.tripServicePos = tripEndPos + 4 * tripCount;
+        this.tripStopTimeOffsetsPos = tripServicePos + 4 * tripCount;
+
+        int stopTimeCount = buf.getInt(stopTimesOff);
+        this.stopTimeStopPos = stopTimesOff + 4;
+        this.stopTimeSeqPos = stopTimeStopPos + 4 * stopTimeCount;
+
+        this.serviceCount = buf.getInt(servicesOff);
+        this.serviceWeekdaysPos = servicesOff + 4;
+        this.serviceStartPos = serviceWeekdaysPos + 4 * serviceCount;
+        this.serviceEndPos = serviceStartPos + 4 * serviceCount;
+        this.serviceExceptionOffsetsPos = serviceEndPos + 4 * serviceCount;
+        int exceptionCount = buf.getInt(serviceExceptionOffsetsPos + 4 * serviceCount);
+        this.serviceExceptionDatePos = serviceExceptionOffsetsPos + 4 * (serviceCount + 1);
+        this.serviceExceptionTypePos = serviceExceptionDatePos + 4 * exceptionCount;
+    }
+
+    public static GtfsSnapshot map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new GtfsSnapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    static GtfsSnapshot wrap(ByteBuffer buf) {
+        return new GtfsSnapshot(buf);
+    }
+
+    public long fingerprint() {
+        return fingerprint;
+    }
+
+    public int tripCount() {
+        return tripCount;
+    }
+
+    public String tripId(int trip) {
+        return string(buf.getInt(tripIdPos + 4 * trip));
+    }
+
+    public int tripIndex(String tripId) {
+        if (tripId == null) return -1;
+        byte[] key = tripId.getBytes(StandardCharsets.UTF_8);
+        int lo = 0, hi = tripCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareString(buf.getInt(tripIdPos + 4 * mid), key);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    public int scheduledStartSeconds(int trip) {
+        return buf.getInt(tripStartPos + 4 * trip);
+    }
+
+    // Arrival at the last stop, in seconds from the service day origin; -1 when the feed has no times.
+    public int scheduledEndSeconds(int trip) {
+        return buf.getInt(tripEndPos + 4 * trip);
+    }
+
+    public int shapeCount() {
+        return shapeCount;
+    }
+
+    // Trips whose service_id has no calendar.txt or calendar_dates.txt entry are treated as running every day.
+    public boolean runsOn(int trip, LocalDate date) {
+        int service = buf.getInt(tripServicePos + 4 * trip);
+        if (service < 0 || service >= serviceCount) return true;
+        int day = date.getYear() * 10_000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+        int from = buf.getInt(serviceExceptionOffsetsPos + 4 * service);
+        int to = buf.getInt(serviceExceptionOffsetsPos + 4 * (service + 1));
+        for (int i = from; i < to; i++) {
+            if (buf.getInt(serviceExceptionDatePos + 4 * i) == day) {
+                return buf.getInt(serviceExceptionTypePos + 4 * i) == 1;
+            }
+        }
+        int weekdays = buf.getInt(serviceWeekdaysPos + 4 * service);
+        return (weekdays & (1 << (date.getDayOfWeek().getValue() - 1))) != 0
+                && day >= buf.getInt(serviceStartPos + 4 * service)
+                && day <= buf.getInt(serviceEndPos + 4 * service);
+    }
+
+    public int shapeIndex(int trip) {
+        return buf.getInt(tripShapePos + 4 * trip);
+    }
+
+    public String shapeId(int shape) {
+        return string(buf.getInt(shapeIdPos + 4 * shape));
+    }
+
+    public List<Types.ShapePoint> shapePoints(int shape) {
+        int from = buf.getInt(shapePointOffsetsPos + 4 * shape);
+        int to = buf.getInt(shapePointOffsetsPos + 4 * (shape + 1));
+        List<Types.ShapePoint> pts = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            pts.add(new Types.ShapePoint(buf.getDouble(shapeLatPos + 8 * i), buf.getDouble(shapeLonPos + 8 * i)));
+        }
+        return pts;
+    }
+
+    public List<Types.StopPoint> stops(int trip) {
+        int from = buf.getInt(tripStopTimeOffsetsPos + 4 * trip);
+        int to = buf.getInt(tripStopTimeOffsetsPos + 4 * (trip + 1));
+        List<Types.StopPoint> stops = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            int stop = buf.getInt(stopTimeStopPos + 4 * i);
+            stops.add(new Types.StopPoint(
+                    string(buf.getInt(stopIdPos + 4 * stop)),
+                    buf.getDouble(stopLatPos + 8 * stop),
+                    buf.getDouble(stopLonPos + 8 * stop),
+                    buf.getInt(stopTimeSeqPos + 4 * i)
+            ));
+        }
+        return stops;
+    }
+
+    String string(int idx) {
+        if (idx < 0 || idx >= stringCount) return null;
+        int from = buf.getInt(stringOffsetsPos + 4 * idx);
+        int to = buf.getInt(stringOffsetsPos + 4 * (idx + 1));
+        byte[] bytes = new byte[to - from];
+        buf.get(stringBytesPos + from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int compareString(int idx, byte[] key) {
+        int from = buf.getInt(stringOffsetsPos + 4 * idx);
+        int to = buf.getInt(stringOffsetsPos + 4 * (idx + 1));
+        int len = to - from;
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf.get(stringBytesPos + from + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) return a - b;
+        }
+        return len - key.length;
+    }
+}
@@ -0,0 +1,427 @@
+package iot.data.platform.gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+final class GtfsSnapshotCompiler {
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<byte[]> stringBytes = new ArrayList<>();
+
+    private final Map<String, Integer> stopIndex = new HashMap<>();
+    private final IntList stopIds = new IntList();
+    private final DoubleList stopLat = new DoubleList();
+    private final DoubleList stopLon = new DoubleList();
+
+    private final Map<String, ShapeAcc> shapes = new HashMap<>();
+    private final Map<String, TripAcc> trips = new HashMap<>();
+    private final Map<String, Integer> serviceIndex = new HashMap<>();
+    private final List<ServiceAcc> services = new ArrayList<>();
+
+    private GtfsSnapshotCompiler() {}
+
+    static void compile(Path zip, Path out, long fingerprint) throws IOException {
+        GtfsSnapshotCompiler c = new GtfsSnapshotCompiler();
+        try (ZipFile zf = new ZipFile(zip.toFile(), StandardCharsets.UTF_8)) {
+            c.readStops(open(zf, "stops.txt"));
+            c.readShapes(open(zf, "shapes.txt"));
+            c.readCalendar(open(zf, "calendar.txt"));
+            c.readCalendarDates(open(zf, "calendar_dates.txt"));
+            c.readTrips(open(zf, "trips.txt"));
+            c.readStopTimes(open(zf, "stop_times.txt"));
+        }
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            c.write(os, fingerprint);
+        }
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static GtfsCsvReader open(ZipFile zf, String name) throws IOException {
+        ZipEntry e = zf.getEntry(name);
+        if (e == null) return null;
+        return new GtfsCsvReader(new BufferedReader(new InputStreamReader(zf.getInputStream(e), StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    private void readStops(GtfsCsvReader r) throws IOException {
+        if (r == null) throw new IllegalStateException("GTFS feed has no stops.txt");
+        try (r) {
+            int id = r.requireColumn("stop_id");
+            int lat = r.requireColumn("stop_lat");
+            int lon = r.requireColumn("stop_lon");
+            while (r.next()) {
+                String stopId = r.get(id);
+                if (stopId.isEmpty() || r.get(lat).isEmpty() || r.get(lon).isEmpty()) continue;
+                stopIndex.put(stopId, stopIds.size());
+                stopIds.add(intern(stopId));
+                stopLat.add(Double.parseDouble(r.get(lat)));
+                stopLon.add(Double.parseDouble(r.get(lon)));
+            }
+        }
+    }
+
+    private void readShapes(GtfsCsvReader r) throws IOException {
+        if (r == null) return;
+        try (r) {
+            int id = r.requireColumn("shape_id");
+            int lat = r.requireColumn("shape_pt_lat");
+            int lon = r.requireColumn("shape_pt_lon");
+            int seq = r.requireColumn("shape_pt_sequence");
+            while (r.next()) {
+                ShapeAcc acc = shapes.computeIfAbsent(r.get(id), k -> new ShapeAcc());
+                acc.seq.add(Integer.parseInt(r.get(seq).trim()));
+                acc.lat.add(Double.parseDouble(r.get(lat)));
+                acc.lon.add(Double.parseDouble(r.get(lon)));
+            }
+        }
+    }
+
+    private void readTrips(GtfsCsvReader r) throws IOException {
+        if (r == null) throw new IllegalStateException("GTFS feed has no trips.txt");
+        try (r) {
+            int id = r.requireColumn("trip_id");
+            int shape = r.column("shape_id");
+            int service = r.column("service_id");
+            while (r.next()) {
+                TripAcc acc = trips.computeIfAbsent(r.get(id), k -> new TripAcc());
+                String shapeId = r.get(shape);
+                acc.shapeId = shapeId.isEmpty() ? null : shapeId;
+                acc.service = serviceIndex.getOrDefault(r.get(service), -1);
+            }
+        }
+    }
+
+    private void readCalendar(GtfsCsvReader r) throws IOException {
+        if (r == null) return;
+        try (r) {
+            int id = r.requireColumn("service_id");
+            int start = r.requireColumn("start_date");
+            int end = r.requireColumn("end_date");
+            int[] days = new int[7];
+            for (DayOfWeek d : DayOfWeek.values()) {
+                days[d.ordinal()] = r.requireColumn(d.name().toLowerCase());
+            }
+            while (r.next()) {
+                ServiceAcc acc = service(r.get(id));
+                for (int d = 0; d < 7; d++) {
+                    if ("1".equals(r.get(days[d]).trim())) acc.weekdays |= 1 << d;
+                }
+                acc.startDate = Integer.parseInt(r.get(start).trim());
+                acc.endDate = Integer.parseInt(r.get(end).trim());
+            }
+        }
+    }
+
+    private void readCalendarDates(GtfsCsvReader r) throws IOException {
+        if (r == null) return;
+        try (r) {
+            int id = r.requireColumn("service_id");
+            int date = r.requireColumn("date");
+            int type = r.requireColumn("exception_type");
+            while (r.next()) {
+                ServiceAcc acc = service(r.get(id));
+                acc.exceptionDates.add(Integer.parseInt(r.get(date).trim()));
+                acc.exceptionTypes.add(Integer.parseInt(r.get(type).trim()));
+            }
+        }
+    }
+
+    private ServiceAcc service(String serviceId) {
+        Integer idx = serviceIndex.get(serviceId);
+        if (idx != null) return services.get(idx);
+        serviceIndex.put(serviceId, services.size());
+        ServiceAcc acc = new ServiceAcc();
+        services.add(acc);
+        return acc;
+    }
+
+    private void readStopTimes(GtfsCsvReader r) throws IOException {
+        if (r == null) throw new IllegalStateException("GTFS feed has no stop_times.txt");
+        try (r) {
+            int trip = r.requireColumn("trip_id");
+            int stop = r.requireColumn("stop_id");
+            int seq = r.requireColumn("stop_sequence");
+            int arr = r.column("arrival_time");
+            int dep = r.column("departure_time");
+            while (r.next()) {
+                TripAcc acc = trips.get(r.get(trip));
+                Integer stopIdx = stopIndex.get(r.get(stop));
+                if (acc == null || stopIdx == null) continue;
+
+                int sequence = Integer.parseInt(r.get(seq).trim());
+                acc.stop.add(stopIdx);
+                acc.seq.add(sequence);
+                if (sequence < acc.firstSeq) {
+                    int secs = parseSeconds(r.get(dep));
+                    if (secs < 0) secs = parseSeconds(r.get(arr));
+                    acc.firstSeq = sequence;
+                    acc.startSecs = secs;
+                }
+                if (sequence > acc.lastSeq) {
+                    int secs = parseSeconds(r.get(arr));
+                    if (secs < 0) secs = parseSeconds(r.get(dep));
+                    acc.lastSeq = sequence;
+                    acc.endSecs = secs;
+                }
+            }
+        }
+    }
+
+    static int parseSeconds(String hhmmss) {
+        String t = hhmmss.trim();
+        if (t.isEmpty()) return -1;
+        String[] parts = t.split(":");
+        if (parts.length != 3) return -1;
+        return Integer.parseInt(parts[0]) * 3600 + Integer.parseInt(parts[1]) * 60 + Integer.parseInt(parts[2]);
+    }
+
+    private int intern(String s) {
+        Integer idx = strings.get(s);
+        if (idx != null) return idx;
+        int next = stringBytes.size();
+        strings.put(s, next);
+        stringBytes.add(s.getBytes(StandardCharsets.UTF_8));
+        return next;
+    }
+
+    private void write(OutputStream os, long fingerprint) throws IOException {
+        List<String> shapeIds = new ArrayList<>(shapes.keySet());
+        shapeIds.sort(null);
+        Map<String, Integer> shapeIndex = new HashMap<>();
+        for (int i = 0; i < shapeIds.size(); i++) {
+            shapeIndex.put(shapeIds.get(i), i);
+        }
+
+        List<byte[]> tripKeys = new ArrayList<>(trips.size());
+        for (String tripId : trips.keySet()) {
+            tripKeys.add(tripId.getBytes(StandardCharsets.UTF_8));
+        }
+        tripKeys.sort(Arrays::compareUnsigned);
+
+        ByteArrayOutputStream shapesSec = new ByteArrayOutputStream();
+        DataOutputStream sh = new DataOutputStream(shapesSec);
+        sh.writeInt(shapeIds.size());
+        for (String shapeId : shapeIds) {
+            sh.writeInt(intern(shapeId));
+        }
+        int pointOffset = 0;
+        for (String shapeId : shapeIds) {
+            sh.writeInt(pointOffset);
+            pointOffset += shapes.get(shapeId).seq.size();
+        }
+        sh.writeInt(pointOffset);
+        for (String shapeId : shapeIds) {
+            ShapeAcc acc = shapes.get(shapeId);
+            for (int i : acc.order()) sh.writeDouble(acc.lat.get(i));
+        }
+        for (String shapeId : shapeIds) {
+            ShapeAcc acc = shapes.get(shapeId);
+            for (int i : acc.order()) sh.writeDouble(acc.lon.get(i));
+        }
+
+        ByteArrayOutputStream tripsSec = new ByteArrayOutputStream();
+        DataOutputStream tr = new DataOutputStream(tripsSec);
+        ByteArrayOutputStream stopTimesSec = new ByteArrayOutputStream();
+        DataOutputStream st = new DataOutputStream(stopTimesSec);
+
+        List<TripAcc> ordered = new ArrayList<>(tripKeys.size());
+        tr.writeInt(tripKeys.size());
+        for (byte[] key : tripKeys) {
+            String tripId = new String(key, StandardCharsets.UTF_8);
+            ordered.add(trips.get(tripId));
+            tr.writeInt(intern(tripId));
+        }
+        for (TripAcc acc : ordered) {
+            Integer shape = (acc.shapeId == null) ? null : shapeIndex.get(acc.shapeId);
+            tr.writeInt(shape == null ? -1 : shape);
+        }
+        for (TripAcc acc : ordered) {
+            tr.writeInt(acc.startSecs);
+        }
+        for (TripAcc acc : ordered) {
+            tr.writeInt(acc.endSecs);
+        }
+        for (TripAcc acc : ordered) {
+            tr.writeInt(acc.service);
+        }
+        int stopTimeOffset = 0;
+        for (TripAcc acc : ordered) {
+            tr.writeInt(stopTimeOffset);
+            stopTimeOffset += acc.seq.size();
+        }
+        tr.writeInt(stopTimeOffset);
+
+        st.writeInt(stopTimeOffset);
+        List<int[]> orders = new ArrayList<>(ordered.size());
+        for (TripAcc acc : ordered) {
+            int[] order = acc.order();
+            orders.add(order);
+            for (int i : order) st.writeInt(acc.stop.get(i));
+        }
+        for (int t = 0; t < ordered.size(); t++) {
+            TripAcc acc = ordered.get(t);
+            for (int i : orders.get(t)) st.writeInt(acc.seq.get(i));
+        }
+
+        ByteArrayOutputStream stopsSec = new ByteArrayOutputStream();
+        DataOutputStream sp = new DataOutputStream(stopsSec);
+        sp.writeInt(stopIds.size());
+        for (int i = 0; i < stopIds.size(); i++) sp.writeInt(stopIds.get(i));
+        for (int i = 0; i < stopIds.size(); i++) sp.writeDouble(stopLat.get(i));
+        for (int i = 0; i < stopIds.size(); i++) sp.writeDouble(stopLon.get(i));
+
+        ByteArrayOutputStream servicesSec = new ByteArrayOutputStream();
+        DataOutputStream sv = new DataOutputStream(servicesSec);
+        sv.writeInt(services.size());
+        for (ServiceAcc acc : services) sv.writeInt(acc.weekdays);
+        for (ServiceAcc acc : services) sv.writeInt(acc.startDate);
+        for (ServiceAcc acc : services) sv.writeInt(acc.endDate);
+        int exceptionOffset = 0;
+        for (ServiceAcc acc : services) {
+            sv.writeInt(exceptionOffset);
+            exceptionOffset += acc.exceptionDates.size();
+        }
+        sv.writeInt(exceptionOffset);
+        for (ServiceAcc acc : services) {
+            for (int i : acc.exceptionDates.sortedOrder()) sv.writeInt(acc.exceptionDates.get(i));
+        }
+        for (ServiceAcc acc : services) {
+            for (int i : acc.exceptionDates.sortedOrder()) sv.writeInt(acc.exceptionTypes.get(i));
+        }
+
+        // the string table is written last into its section because the sections above intern more ids
+        ByteArrayOutputStream stringsSec = new ByteArrayOutputStream();
+        DataOutputStream ss = new DataOutputStream(stringsSec);
+        ss.writeInt(stringBytes.size());
+        int byteOffset = 0;
+        for (byte[] b : stringBytes) {
+            ss.writeInt(byteOffset);
+            byteOffset += b.length;
+        }
+        ss.writeInt(byteOffset);
+        for (byte[] b : stringBytes) ss.write(b);
+
+        long stringsOff = GtfsSnapshot.HEADER_BYTES;
+        long stopsOff = stringsOff + stringsSec.size();
+        long shapesOff = stopsOff + stopsSec.size();
+        long tripsOff = shapesOff + shapesSec.size();
+        long stopTimesOff = tripsOff + tripsSec.size();
+        long servicesOff = stopTimesOff + stopTimesSec.size();
+        if (servicesOff + servicesSec.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("GTFS snapshot exceeds 2 GiB");
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeLong(GtfsSnapshot.MAGIC);
+        out.writeInt(GtfsSnapshot.VERSION);
+        out.writeLong(fingerprint);
+        out.writeLong(stringsOff);
+        out.writeLong(stopsOff);
+        out.writeLong(shapesOff);
+        out.writeLong(tripsOff);
+        out.writeLong(stopTimesOff);
+        out.writeLong(servicesOff);
+        stringsSec.writeTo(out);
+        stopsSec.writeTo(out);
+        shapesSec.writeTo(out);
+        tripsSec.writeTo(out);
+        stopTimesSec.writeTo(out);
+        servicesSec.writeTo(out);
+        out.flush();
+    }
+
+    private static final class ShapeAcc {
+        final IntList seq = new IntList();
+        final DoubleList lat = new DoubleList();
+        final DoubleList lon = new DoubleList();
+
+        int[] order() {
+            return seq.sortedOrder();
+        }
+    }
+
+    private static final class TripAcc {
+        String shapeId;
+        final IntList stop = new IntList();
+        final IntList seq = new IntList();
+        int service = -1;
+        int firstSeq = Integer.MAX_VALUE;
+        int startSecs = -1;
+        int lastSeq = Integer.MIN_VALUE;
+        int endSecs = -1;
+
+        int[] order() {
+            return seq.sortedOrder();
+        }
+    }
+
+    // A service only listed in calendar_dates.txt keeps an empty weekday mask and runs on its added dates.
+    private static final class ServiceAcc {
+        int weekdays;
+        int startDate;
+        int endDate;
+        final IntList exceptionDates = new IntList();
+        final IntList exceptionTypes = new IntList();
+    }
+
+    private static final class IntList {
+        private int[] a = new int[8];
+        private int n;
+
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        int get(int i) {
+            return a[i];
+        }
+
+        int size() {
+            return n;
+        }
+
+        int[] sortedOrder() {
+            long[] keyed = new long[n];
+            for (int i = 0; i < n; i++) {
+                keyed[i] = ((long) a[i] << 32) | i;
+            }
+            Arrays.sort(keyed);
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (int) keyed[i];
+            }
+            return order;
+        }
+    }
+
+    private static final class DoubleList {
+        private double[] a = new double[8];
+        private int n;
+
+        void add(double v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        double get(int i) {
+            return a[i];
+        }
+    }
+}
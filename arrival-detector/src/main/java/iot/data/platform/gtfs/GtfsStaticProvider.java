@@ -0,0 +1,123 @@
+package iot.data.platform.gtfs;
+
+import iot.data.platform.core.Types;
+import iot.data.platform.spi.ShapeProvider;
+import iot.data.platform.spi.StopProvider;
+import iot.data.platform.spi.TripScheduleProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.List;
+
+public class GtfsStaticProvider implements StopProvider, ShapeProvider, TripScheduleProvider {
+    private final GtfsSnapshot snapshot;
+    private final ZoneId serviceZone;
+    private final Clock clock;
+
+    public GtfsStaticProvider(GtfsSnapshot snapshot, ZoneId serviceZone, Clock clock) {
+        this.snapshot = snapshot;
+        this.serviceZone = serviceZone;
+        this.clock = clock;
+    }
+
+    public static GtfsStaticProvider open(Path gtfsZip, Path snapshotFile, ZoneId serviceZone) {
+        try {
+            long fingerprint = fingerprint(gtfsZip);
+            GtfsSnapshot snapshot = tryMap(snapshotFile);
+            if (snapshot == null || snapshot.fingerprint() != fingerprint) {
+                long t0 = System.nanoTime();
+                GtfsSnapshotCompiler.compile(gtfsZip, snapshotFile, fingerprint);
+                snapshot = GtfsSnapshot.map(snapshotFile);
+                System.err.printf("[GtfsStatic] Compiled %s into %s (%d trips) in %d ms%n",
+                        gtfsZip, snapshotFile, snapshot.tripCount(), (System.nanoTime() - t0) / 1_000_000);
+            }
+            return new GtfsStaticProvider(snapshot, serviceZone, Clock.systemUTC());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load GTFS static feed " + gtfsZip, e);
+        }
+    }
+
+    public GtfsSnapshot snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public List<Types.StopPoint> getStops(String tripId) {
+        int trip = snapshot.tripIndex(tripId);
+        return (trip < 0) ? List.of() : snapshot.stops(trip);
+    }
+
+    @Override
+    public List<Types.ShapePoint> getShape(String tripId) {
+        int trip = snapshot.tripIndex(tripId);
+        if (trip < 0) return List.of();
+        int shape = snapshot.shapeIndex(trip);
+        return (shape < 0) ? List.of() : snapshot.shapePoints(shape);
+    }
+
+    @Override
+    public String getShapeId(String tripId) {
+        int trip = snapshot.tripIndex(tripId);
+        if (trip < 0) return null;
+        int shape = snapshot.shapeIndex(trip);
+        return (shape < 0) ? null : snapshot.shapeId(shape);
+    }
+
+    @Override
+    public Types.TripSchedule getSchedule(String tripId) {
+        return getSchedule(tripId, clock.millis());
+    }
+
+    @Override
+    public Types.TripSchedule getSchedule(String tripId, long atMillis) {
+        int trip = snapshot.tripIndex(tripId);
+        if (trip < 0) return null;
+        int startSecs = snapshot.scheduledStartSeconds(trip);
+        if (startSecs < 0) return null;
+        return nearestSchedule(startSecs, atMillis, serviceZone);
+    }
+
+    // The run of the trip whose start is closest to nowMillis, out of yesterday's, today's and tomorrow's.
+    public static Types.TripSchedule nearestSchedule(int startSecs, long nowMillis, ZoneId zone) {
+        LocalDate today = LocalDate.ofInstant(Instant.ofEpochMilli(nowMillis), zone);
+        LocalDate bestDate = null;
+        long best = -1L;
+        for (int d = -1; d <= 1; d++) {
+            LocalDate date = today.plusDays(d);
+            long candidate = serviceDayOrigin(date, zone) + startSecs * 1000L;
+            if (best < 0 || Math.abs(candidate - nowMillis) < Math.abs(best - nowMillis)) {
+                best = candidate;
+                bestDate = date;
+            }
+        }
+        return new Types.TripSchedule(best, bestDate);
+    }
+
+    // GTFS times are measured from "noon minus 12h" of the service date, which differs from midnight on DST days
+    public static long serviceDayOrigin(LocalDate date, ZoneId zone) {
+        return date.atTime(LocalTime.NOON).atZone(zone).minusHours(12).toInstant().toEpochMilli();
+    }
+
+    private static GtfsSnapshot tryMap(Path snapshotFile) {
+        if (!Files.exists(snapshotFile)) return null;
+        try {
+            return GtfsSnapshot.map(snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[GtfsStatic] Ignoring unreadable snapshot " + snapshotFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static long fingerprint(Path gtfsZip) throws IOException {
+        long size = Files.size(gtfsZip);
+        long mtime = Files.getLastModifiedTime(gtfsZip).toMillis();
+        return (size * 31 + mtime) * 31 + GtfsSnapshot.VERSION;
+    }
+}
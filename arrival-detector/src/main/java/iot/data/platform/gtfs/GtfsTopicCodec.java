@@ -0,0 +1,153 @@
+package iot.data.platform.gtfs;
+
+import iot.data.platform.core.Types;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Records published to the compacted GTFS topics. Coordinates are stored as 1e-7 degree integers, delta and
+// zigzag varint encoded, so a typical shape costs two to four bytes per point.
+public final class GtfsTopicCodec {
+    static final int VERSION = 1;
+    private static final double E7 = 1e7;
+
+    private GtfsTopicCodec() {
+    }
+
+    public record TripRecord(
+            String shapeId,
+            int scheduledStartSeconds,
+            List<Types.StopPoint> stops
+    ) {}
+
+    public static byte[] encodeTrip(TripRecord trip) {
+        Writer w = new Writer(32 + trip.stops().size() * 16);
+        w.varint(VERSION);
+        w.varint(trip.scheduledStartSeconds() + 1L);
+        w.string(trip.shapeId());
+        w.varint(trip.stops().size());
+        long lat = 0, lon = 0, seq = 0;
+        for (Types.StopPoint s : trip.stops()) {
+            long sLat = Math.round(s.lat() * E7);
+            long sLon = Math.round(s.lon() * E7);
+            w.string(s.stopId());
+            w.zigzag(s.stopSequence() - seq);
+            w.zigzag(sLat - lat);
+            w.zigzag(sLon - lon);
+            seq = s.stopSequence();
+            lat = sLat;
+            lon = sLon;
+        }
+        return w.toByteArray();
+    }
+
+    public static TripRecord decodeTrip(byte[] data) {
+        Reader r = new Reader(data);
+        int startSecs = (int) (r.varint() - 1);
+        String shapeId = r.string();
+        int n = (int) r.varint();
+        List<Types.StopPoint> stops = new ArrayList<>(n);
+        long lat = 0, lon = 0, seq = 0;
+        for (int i = 0; i < n; i++) {
+            String stopId = r.string();
+            seq += r.zigzag();
+            lat += r.zigzag();
+            lon += r.zigzag();
+            stops.add(new Types.StopPoint(stopId, lat / E7, lon / E7, (int) seq));
+        }
+        return new TripRecord(shapeId, startSecs, List.copyOf(stops));
+    }
+
+    public static byte[] encodeShape(List<Types.ShapePoint> points) {
+        Writer w = new Writer(8 + points.size() * 4);
+        w.varint(VERSION);
+        w.varint(points.size());
+        long lat = 0, lon = 0;
+        for (Types.ShapePoint p : points) {
+            long pLat = Math.round(p.lat() * E7);
+            long pLon = Math.round(p.lon() * E7);
+            w.zigzag(pLat - lat);
+            w.zigzag(pLon - lon);
+            lat = pLat;
+            lon = pLon;
+        }
+        return w.toByteArray();
+    }
+
+    public static List<Types.ShapePoint> decodeShape(byte[] data) {
+        Reader r = new Reader(data);
+        int n = (int) r.varint();
+        List<Types.ShapePoint> points = new ArrayList<>(n);
+        long lat = 0, lon = 0;
+        for (int i = 0; i < n; i++) {
+            lat += r.zigzag();
+            lon += r.zigzag();
+            points.add(new Types.ShapePoint(lat / E7, lon / E7));
+        }
+        return List.copyOf(points);
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+        Writer(int size) {
+            super(size);
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void zigzag(long v) {
+            varint((v << 1) ^ (v >> 63));
+        }
+
+        // Length + 1, so that 0 can stand for null.
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length + 1L);
+            write(b, 0, b.length);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+            int version = (int) varint();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported GTFS record version " + version);
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+        }
+
+        long zigzag() {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String string() {
+            int len = (int) varint();
+            if (len == 0) return null;
+            String s = new String(data, pos, len - 1, StandardCharsets.UTF_8);
+            pos += len - 1;
+            return s;
+        }
+    }
+}
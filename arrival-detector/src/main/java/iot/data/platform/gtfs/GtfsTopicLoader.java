@@ -0,0 +1,116 @@
+package iot.data.platform.gtfs;
+
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.config.TopicConfig;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+// Publishes a static GTFS feed to the compacted topics read by the detector's global stores: one record per
+// shape keyed by shape_id and one per trip keyed by trip_id. Re-running it with a new feed overwrites changed
+// keys; trips dropped from the feed stay in the topics until deleted.
+public class GtfsTopicLoader {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: GtfsTopicLoader <gtfs.zip>");
+            System.exit(2);
+        }
+        Path gtfsZip = Path.of(args[0]);
+        String bootstrap = env("KAFKA_BOOTSTRAP_SERVERS", "localhost:9094");
+        String tripsTopic = env("GTFS_TRIPS_TOPIC", "gtfs.static.trips");
+        String shapesTopic = env("GTFS_SHAPES_TOPIC", "gtfs.static.shapes");
+
+        long t0 = System.nanoTime();
+        GtfsSnapshot snapshot = GtfsStaticProvider.open(
+                gtfsZip,
+                Path.of(env("GTFS_SNAPSHOT_PATH", gtfsZip + ".snapshot")),
+                ZoneOffset.UTC
+        ).snapshot();
+
+        createCompactedTopics(bootstrap, List.of(tripsTopic, shapesTopic));
+
+        Properties props = new Properties();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
+        props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "zstd");
+        props.put(ProducerConfig.LINGER_MS_CONFIG, 50);
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, 256 * 1024);
+
+        long shapeBytes = 0, tripBytes = 0;
+        int shapes = 0;
+        try (KafkaProducer<String, byte[]> producer =
+                     new KafkaProducer<>(props, new StringSerializer(), new ByteArraySerializer())) {
+            // Shapes go first so that a trip is never visible before the shape it points at.
+            Set<Integer> published = new HashSet<>();
+            for (int trip = 0; trip < snapshot.tripCount(); trip++) {
+                int shape = snapshot.shapeIndex(trip);
+                if (shape < 0 || !published.add(shape)) continue;
+                byte[] value = GtfsTopicCodec.encodeShape(snapshot.shapePoints(shape));
+                producer.send(new ProducerRecord<>(shapesTopic, snapshot.shapeId(shape), value));
+                shapeBytes += value.length;
+                shapes++;
+            }
+            producer.flush();
+
+            for (int trip = 0; trip < snapshot.tripCount(); trip++) {
+                int shape = snapshot.shapeIndex(trip);
+                byte[] value = GtfsTopicCodec.encodeTrip(new GtfsTopicCodec.TripRecord(
+                        (shape < 0) ? null : snapshot.shapeId(shape),
+                        snapshot.scheduledStartSeconds(trip),
+                        snapshot.stops(trip)
+                ));
+                producer.send(new ProducerRecord<>(tripsTopic, snapshot.tripId(trip), value));
+                tripBytes += value.length;
+            }
+            producer.flush();
+        }
+
+        System.err.printf("[GtfsLoader] Published %d shapes (%d KiB) to %s and %d trips (%d KiB) to %s in %d ms%n",
+                shapes, shapeBytes / 1024, shapesTopic, snapshot.tripCount(), tripBytes / 1024, tripsTopic,
+                (System.nanoTime() - t0) / 1_000_000);
+        // detectors reading these topics with a trip snapshot need it as TRIP_SNAPSHOT_FINGERPRINT
+        System.err.printf("[GtfsLoader] Feed fingerprint %d%n", snapshot.fingerprint());
+    }
+
+    private static void createCompactedTopics(String bootstrap, List<String> topics) throws InterruptedException {
+        try (Admin admin = Admin.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap))) {
+            List<NewTopic> newTopics = new ArrayList<>();
+            for (String topic : topics) {
+                newTopics.add(new NewTopic(topic, Optional.empty(), Optional.empty())
+                        .configs(Map.of(TopicConfig.CLEANUP_POLICY_CONFIG, TopicConfig.CLEANUP_POLICY_COMPACT)));
+            }
+            for (Map.Entry<String, KafkaFuture<Void>> e : admin.createTopics(newTopics).values().entrySet()) {
+                try {
+                    e.getValue().get();
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof TopicExistsException)) {
+                        throw new IllegalStateException("Failed to create topic " + e.getKey(), ex.getCause());
+                    }
+                }
+            }
+        }
+    }
+
+    private static String env(String name, String def) {
+        String v = System.getenv(name);
+        return (v == null || v.isBlank()) ? def : v;
+    }
+}
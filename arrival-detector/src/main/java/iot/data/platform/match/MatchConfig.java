@@ -0,0 +1,65 @@
+package iot.data.platform.match;
+
+import java.time.Duration;
+
+public record MatchConfig(
+        double cellSizeM,
+        double maxDistanceM,
+        double gpsSigmaM,
+        double scheduleSigmaS,
+        double scheduleDriftRatio,
+        int maxEarlyS,
+        int maxLateS,
+        int minSamples,
+        double minProgressM,
+        double minConfidence,
+        int historySamples,
+        int maxHeldSamples,
+        double maxBacktrackM,
+        double maxSpeedMps,
+        Duration maxSampleGap,
+        int releaseAfterMisses,
+        Duration idleTimeout
+) {
+    public MatchConfig {
+        if (cellSizeM <= 0) throw new IllegalArgumentException("cellSizeM must be > 0");
+        if (maxDistanceM <= 0) throw new IllegalArgumentException("maxDistanceM must be > 0");
+        if (gpsSigmaM <= 0) throw new IllegalArgumentException("gpsSigmaM must be > 0");
+        if (scheduleSigmaS <= 0) throw new IllegalArgumentException("scheduleSigmaS must be > 0");
+        if (scheduleDriftRatio < 0) throw new IllegalArgumentException("scheduleDriftRatio must be >= 0");
+        if (maxEarlyS < 0) throw new IllegalArgumentException("maxEarlyS must be >= 0");
+        if (maxLateS < 0) throw new IllegalArgumentException("maxLateS must be >= 0");
+        if (minSamples <= 0) throw new IllegalArgumentException("minSamples must be > 0");
+        if (minProgressM < 0) throw new IllegalArgumentException("minProgressM must be >= 0");
+        if (minConfidence <= 0 || minConfidence > 1) throw new IllegalArgumentException("minConfidence must be in (0, 1]");
+        if (historySamples < minSamples) throw new IllegalArgumentException("historySamples must be >= minSamples");
+        if (maxHeldSamples < 0) throw new IllegalArgumentException("maxHeldSamples must be >= 0");
+        if (maxBacktrackM < 0) throw new IllegalArgumentException("maxBacktrackM must be >= 0");
+        if (maxSpeedMps <= 0) throw new IllegalArgumentException("maxSpeedMps must be > 0");
+        if (maxSampleGap == null || maxSampleGap.isNegative() || maxSampleGap.isZero()) throw new IllegalArgumentException("maxSampleGap must be > 0");
+        if (releaseAfterMisses <= 0) throw new IllegalArgumentException("releaseAfterMisses must be > 0");
+        if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero()) throw new IllegalArgumentException("idleTimeout must be > 0");
+    }
+
+    public static MatchConfig defaults() {
+        return new MatchConfig(
+                250.0,
+                60.0,
+                20.0,
+                120.0,
+                0.1,
+                600,
+                1800,
+                3,
+                150.0,
+                0.95,
+                12,
+                40,
+                30.0,
+                40.0,
+                Duration.ofMinutes(5),
+                3,
+                Duration.ofMinutes(30)
+        );
+    }
+}
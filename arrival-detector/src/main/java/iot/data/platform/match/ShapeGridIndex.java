@@ -0,0 +1,276 @@
+package iot.data.platform.match;
+
+import iot.data.platform.core.Types;
+import iot.data.platform.gtfs.GtfsSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A uniform lat/lon grid over every shape segment of a feed. A segment is listed in each cell its bounding box
+// touches; the cells are one sorted key array plus offsets into a flat segment array, so a lookup is a binary
+// search per cell and a scan of a short int range, with no allocation.
+public final class ShapeGridIndex {
+    private final int[] shapeStart;
+    private final int[] segShape;
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] cum;
+
+    private final double cellLatDeg;
+    private final double cellLonDeg;
+    private final long[] cellKeys;
+    private final int[] cellStart;
+    private final int[] cellSegs;
+
+    private ShapeGridIndex(
+            int[] shapeStart,
+            int[] segShape,
+            double[] lat,
+            double[] lon,
+            double[] cum,
+            double cellLatDeg,
+            double cellLonDeg,
+            long[] cellKeys,
+            int[] cellStart,
+            int[] cellSegs
+    ) {
+        this.shapeStart = shapeStart;
+        this.segShape = segShape;
+        this.lat = lat;
+        this.lon = lon;
+        this.cum = cum;
+        this.cellLatDeg = cellLatDeg;
+        this.cellLonDeg = cellLonDeg;
+        this.cellKeys = cellKeys;
+        this.cellStart = cellStart;
+        this.cellSegs = cellSegs;
+    }
+
+    public static ShapeGridIndex build(GtfsSnapshot snapshot, double cellSizeM) {
+        int shapes = snapshot.shapeCount();
+        int[] shapeStart = new int[shapes + 1];
+        List<List<Types.ShapePoint>> points = new ArrayList<>(shapes);
+        for (int s = 0; s < shapes; s++) {
+            points.add(snapshot.shapePoints(s));
+            shapeStart[s + 1] = shapeStart[s] + points.get(s).size();
+        }
+
+        int n = shapeStart[shapes];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        double[] cum = new double[n];
+        int[] segShape = new int[n];
+        double maxAbsLat = 0.0;
+        for (int s = 0; s < shapes; s++) {
+            int i = shapeStart[s];
+            for (Types.ShapePoint p : points.get(s)) {
+                lat[i] = p.lat();
+                lon[i] = p.lon();
+                segShape[i] = s;
+                maxAbsLat = Math.max(maxAbsLat, Math.abs(p.lat()));
+                if (i > shapeStart[s]) {
+                    double midLat = 0.5 * (lat[i - 1] + lat[i]);
+                    double dx = (lon[i] - lon[i - 1]) * metersPerDegLon(midLat);
+                    double dy = (lat[i] - lat[i - 1]) * metersPerDegLat(midLat);
+                    cum[i] = cum[i - 1] + Math.sqrt(dx * dx + dy * dy);
+                }
+                i++;
+            }
+        }
+
+        // Cells are at least cellSizeM on each side everywhere in the feed.
+        double cellLatDeg = cellSizeM / metersPerDegLat(0.0);
+        double cellLonDeg = cellSizeM / metersPerDegLon(Math.min(maxAbsLat, 85.0));
+
+        Map<Long, int[]> counts = new HashMap<>();
+        int entries = 0;
+        for (int s = 0; s < shapes; s++) {
+            for (int i = shapeStart[s]; i < shapeStart[s + 1] - 1; i++) {
+                int iy0 = cell(Math.min(lat[i], lat[i + 1]), cellLatDeg);
+                int iy1 = cell(Math.max(lat[i], lat[i + 1]), cellLatDeg);
+                int ix0 = cell(Math.min(lon[i], lon[i + 1]), cellLonDeg);
+                int ix1 = cell(Math.max(lon[i], lon[i + 1]), cellLonDeg);
+                for (int iy = iy0; iy <= iy1; iy++) {
+                    for (int ix = ix0; ix <= ix1; ix++) {
+                        counts.computeIfAbsent(key(ix, iy), k -> new int[1])[0]++;
+                        entries++;
+                    }
+                }
+            }
+        }
+
+        long[] cellKeys = new long[counts.size()];
+        int c = 0;
+        for (Long k : counts.keySet()) {
+            cellKeys[c++] = k;
+        }
+        Arrays.sort(cellKeys);
+        int[] cellStart = new int[cellKeys.length + 1];
+        for (int k = 0; k < cellKeys.length; k++) {
+            cellStart[k + 1] = cellStart[k] + counts.get(cellKeys[k])[0];
+        }
+        int[] fill = Arrays.copyOf(cellStart, cellKeys.length);
+        int[] cellSegs = new int[entries];
+        for (int s = 0; s < shapes; s++) {
+            for (int i = shapeStart[s]; i < shapeStart[s + 1] - 1; i++) {
+                int iy0 = cell(Math.min(lat[i], lat[i + 1]), cellLatDeg);
+                int iy1 = cell(Math.max(lat[i], lat[i + 1]), cellLatDeg);
+                int ix0 = cell(Math.min(lon[i], lon[i + 1]), cellLonDeg);
+                int ix1 = cell(Math.max(lon[i], lon[i + 1]), cellLonDeg);
+                for (int iy = iy0; iy <= iy1; iy++) {
+                    for (int ix = ix0; ix <= ix1; ix++) {
+                        cellSegs[fill[Arrays.binarySearch(cellKeys, key(ix, iy))]++] = i;
+                    }
+                }
+            }
+        }
+        return new ShapeGridIndex(shapeStart, segShape, lat, lon, cum, cellLatDeg, cellLonDeg, cellKeys, cellStart, cellSegs);
+    }
+
+    public int shapeCount() {
+        return shapeStart.length - 1;
+    }
+
+    public int segmentCount() {
+        return cellSegs.length;
+    }
+
+    public int cellCount() {
+        return cellKeys.length;
+    }
+
+    public double shapeLengthM(int shape) {
+        int last = shapeStart[shape + 1] - 1;
+        return (last < shapeStart[shape]) ? 0.0 : cum[last];
+    }
+
+    // Collects, per shape, every separate pass within radiusM of the point: the nearest point of each pass with
+    // its distance and its position along the shape. Distances use a planar approximation scaled at the query
+    // latitude, which is well under a meter off at matching radii.
+    public void query(double qLat, double qLon, double radiusM, Hits hits) {
+        hits.clear();
+        double kLat = metersPerDegLat(qLat);
+        double kLon = metersPerDegLon(qLat);
+        int iy0 = cell(qLat - radiusM / kLat, cellLatDeg);
+        int iy1 = cell(qLat + radiusM / kLat, cellLatDeg);
+        int ix0 = cell(qLon - radiusM / kLon, cellLonDeg);
+        int ix1 = cell(qLon + radiusM / kLon, cellLonDeg);
+        for (int iy = iy0; iy <= iy1; iy++) {
+            for (int ix = ix0; ix <= ix1; ix++) {
+                int c = Arrays.binarySearch(cellKeys, key(ix, iy));
+                if (c < 0) continue;
+                for (int e = cellStart[c]; e < cellStart[c + 1]; e++) {
+                    int i = cellSegs[e];
+                    double ax = (lon[i] - qLon) * kLon;
+                    double ay = (lat[i] - qLat) * kLat;
+                    double abx = (lon[i + 1] - qLon) * kLon - ax;
+                    double aby = (lat[i + 1] - qLat) * kLat - ay;
+                    double len2 = abx * abx + aby * aby;
+                    double t = (len2 == 0.0) ? 0.0 : -(ax * abx + ay * aby) / len2;
+                    if (t < 0.0) t = 0.0;
+                    else if (t > 1.0) t = 1.0;
+                    double dx = ax + t * abx;
+                    double dy = ay + t * aby;
+                    double dist = Math.sqrt(dx * dx + dy * dy);
+                    if (dist <= radiusM) {
+                        hits.offer(segShape[i], dist, cum[i] + t * (cum[i + 1] - cum[i]), radiusM);
+                    }
+                }
+            }
+        }
+    }
+
+    public Hits newHits() {
+        return new Hits(shapeCount());
+    }
+
+    private static int cell(double deg, double cellDeg) {
+        return (int) Math.floor(deg / cellDeg);
+    }
+
+    private static long key(int ix, int iy) {
+        return ((long) iy << 32) | (ix & 0xFFFFFFFFL);
+    }
+
+    static double metersPerDegLat(double latDeg) {
+        double phi = Math.toRadians(latDeg);
+        return 111_132.954 - 559.822 * Math.cos(2 * phi) + 1.175 * Math.cos(4 * phi);
+    }
+
+    static double metersPerDegLon(double latDeg) {
+        double phi = Math.toRadians(latDeg);
+        return 111_412.84 * Math.cos(phi) - 93.5 * Math.cos(3 * phi);
+    }
+
+    // Reusable per-caller result buffer. Segment hits of one shape whose along positions lie within four radii
+    // of each other are one pass of the vehicle's road; a shape that comes back to the same street later, e.g. an
+    // out-and-back route, gets a separate pass.
+    public static final class Hits {
+        private final int[] firstPass;
+        private int[] shape = new int[32];
+        private double[] dist = new double[32];
+        private double[] along = new double[32];
+        private int[] nextPass = new int[32];
+        private int size;
+
+        private Hits(int shapeCount) {
+            this.firstPass = new int[shapeCount];
+            Arrays.fill(firstPass, -1);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int shape(int hit) {
+            return shape[hit];
+        }
+
+        public double distanceM(int hit) {
+            return dist[hit];
+        }
+
+        public double alongM(int hit) {
+            return along[hit];
+        }
+
+        public boolean containsShape(int s) {
+            return firstPass[s] >= 0;
+        }
+
+        void clear() {
+            for (int h = 0; h < size; h++) {
+                firstPass[shape[h]] = -1;
+            }
+            size = 0;
+        }
+
+        private void offer(int s, double d, double a, double radiusM) {
+            for (int h = firstPass[s]; h >= 0; h = nextPass[h]) {
+                if (Math.abs(along[h] - a) <= 4 * radiusM) {
+                    if (d < dist[h]) {
+                        dist[h] = d;
+                        along[h] = a;
+                    }
+                    return;
+                }
+            }
+            if (size == shape.length) {
+                int cap = size * 2;
+                shape = Arrays.copyOf(shape, cap);
+                dist = Arrays.copyOf(dist, cap);
+                along = Arrays.copyOf(along, cap);
+                nextPass = Arrays.copyOf(nextPass, cap);
+            }
+            shape[size] = s;
+            dist[size] = d;
+            along[size] = a;
+            nextPass[size] = firstPass[s];
+            firstPass[s] = size;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package iot.data.platform.match;
+
+import iot.data.platform.gtfs.GtfsSnapshot;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Everything the trip matcher needs from the static feed, built once and shared read-only by all stream tasks:
+// the segment grid plus, per shape, its scheduled trips sorted by start time. Trips without a shape or without
+// stop times cannot be matched and are left out.
+public final class TripMatchIndex {
+    private static final int MAX_CACHED_DAYS = 8;
+
+    final GtfsSnapshot snapshot;
+    final ShapeGridIndex grid;
+    final MatchConfig cfg;
+    final ZoneId serviceZone;
+
+    final int[] tripStart;
+    final int[] tripEnd;
+    final int[] shapeTripStart;
+    final int[] shapeTrips;
+    final int[] shapeMaxSpan;
+    final double[] shapeLength;
+
+    private final Map<LocalDate, BitSet> activeTrips = new ConcurrentHashMap<>();
+
+    private TripMatchIndex(GtfsSnapshot snapshot, ShapeGridIndex grid, MatchConfig cfg, ZoneId serviceZone) {
+        this.snapshot = snapshot;
+        this.grid = grid;
+        this.cfg = cfg;
+        this.serviceZone = serviceZone;
+
+        int trips = snapshot.tripCount();
+        int shapes = grid.shapeCount();
+        this.tripStart = new int[trips];
+        this.tripEnd = new int[trips];
+        this.shapeTripStart = new int[shapes + 1];
+        this.shapeMaxSpan = new int[shapes];
+        this.shapeLength = new double[shapes];
+
+        long[] byShape = new long[trips];
+        int n = 0;
+        for (int t = 0; t < trips; t++) {
+            tripStart[t] = snapshot.scheduledStartSeconds(t);
+            tripEnd[t] = snapshot.scheduledEndSeconds(t);
+            int shape = snapshot.shapeIndex(t);
+            if (shape < 0 || tripStart[t] < 0 || tripStart[t] >= 1 << 18) continue;
+            // shape, then start time, then trip: all non-negative and small enough to pack into one sortable long
+            byShape[n++] = ((long) shape << 42) | ((long) tripStart[t] << 24) | t;
+            shapeTripStart[shape + 1]++;
+            shapeMaxSpan[shape] = Math.max(shapeMaxSpan[shape], Math.max(0, tripEnd[t] - tripStart[t]));
+        }
+        Arrays.sort(byShape, 0, n);
+        this.shapeTrips = new int[n];
+        for (int i = 0; i < n; i++) {
+            shapeTrips[i] = (int) (byShape[i] & 0xFFFFFF);
+        }
+        for (int s = 0; s < shapes; s++) {
+            shapeTripStart[s + 1] += shapeTripStart[s];
+            shapeLength[s] = grid.shapeLengthM(s);
+        }
+    }
+
+    public static TripMatchIndex build(GtfsSnapshot snapshot, MatchConfig cfg, ZoneId serviceZone) {
+        Objects.requireNonNull(snapshot, "snapshot");
+        MatchConfig c = (cfg == null) ? MatchConfig.defaults() : cfg;
+        if (snapshot.tripCount() > 0xFFFFFF) {
+            throw new IllegalArgumentException("Too many trips to index: " + snapshot.tripCount());
+        }
+        long t0 = System.nanoTime();
+        ShapeGridIndex grid = ShapeGridIndex.build(snapshot, c.cellSizeM());
+        TripMatchIndex index = new TripMatchIndex(snapshot, grid, c, Objects.requireNonNull(serviceZone, "serviceZone"));
+        System.err.printf("[TripMatch] Indexed %d shapes (%d segment entries in %d cells) and %d trips in %d ms%n",
+                grid.shapeCount(), grid.segmentCount(), grid.cellCount(), index.shapeTrips.length,
+                (System.nanoTime() - t0) / 1_000_000);
+        return index;
+    }
+
+    public <T> TripMatcher<T> newMatcher() {
+        return new TripMatcher<>(this);
+    }
+
+    public MatchConfig config() {
+        return cfg;
+    }
+
+    // First position in shapeTrips, within the shape's range, whose trip starts at or after startSecs.
+    int firstStartingAt(int shape, int startSecs) {
+        int lo = shapeTripStart[shape], hi = shapeTripStart[shape + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tripStart[shapeTrips[mid]] < startSecs) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    BitSet activeOn(LocalDate date) {
+        BitSet active = activeTrips.get(date);
+        if (active != null) {
+            return active;
+        }
+        active = new BitSet(snapshot.tripCount());
+        for (int t = 0; t < snapshot.tripCount(); t++) {
+            if (snapshot.runsOn(t, date)) active.set(t);
+        }
+        if (activeTrips.size() >= MAX_CACHED_DAYS) {
+            activeTrips.clear();
+        }
+        activeTrips.put(date, active);
+        return active;
+    }
+}
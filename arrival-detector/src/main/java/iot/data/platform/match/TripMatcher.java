@@ -0,0 +1,332 @@
+package iot.data.platform.match;
+
+import iot.data.platform.gtfs.GtfsStaticProvider;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Infers the trip of vehicles that report positions without one. Every sample is matched against the shapes within
+// maxDistanceM and, through them, against the trips active on the service day whose schedule window covers the
+// sample. Each surviving candidate keeps a cost, the negative log-likelihood of the vehicle's recent samples under
+// that trip: the decayed sum of squared GPS distances over gpsSigmaM, plus the squared lateness of the latest
+// sample, where the schedule is interpolated linearly between the first and last stop along the shape. The
+// lateness spread starts at scheduleSigmaS and widens by scheduleDriftRatio of the scheduled time already
+// travelled, since running time errors add up along a trip. Lateness is counted once rather than per sample
+// because a late vehicle stays late; summing it would turn one delay into many pieces of evidence. A candidate is
+// dropped when the vehicle moves backwards along its shape, faster than maxSpeedMps, or misses it on two samples
+// in a row. The vehicle is committed to the best candidate once its posterior share passes minConfidence after
+// minSamples samples and minProgressM of forward travel, which is what separates the two directions of a street
+// and routes that share a corridor.
+//
+// Until then the vehicle's last maxHeldSamples payloads are held; on commit the ones the winning candidate
+// matched are handed back together with where on the shape the candidate first saw the vehicle, so the caller
+// can replay them from a known position. One matcher per stream task; not thread-safe.
+public final class TripMatcher<T> {
+    // Posterior odds of e^-9 (about 1e-4) against the best candidate can no longer matter.
+    private static final double PRUNE_COST = 18.0;
+
+    private final TripMatchIndex index;
+    private final MatchConfig cfg;
+    private final ShapeGridIndex.Hits hits;
+    private final double missCost;
+    private final Map<String, VehicleMatch<T>> vehicles = new HashMap<>();
+
+    private LocalDate originsDate;
+    private final long[] dayOrigin = new long[2];
+    private final LocalDate[] day = new LocalDate[2];
+
+    TripMatcher(TripMatchIndex index) {
+        this.index = index;
+        this.cfg = index.cfg;
+        this.hits = index.grid.newHits();
+        double d = cfg.maxDistanceM() / cfg.gpsSigmaM();
+        this.missCost = d * d;
+    }
+
+    // Returns the trip the vehicle is committed to, or null while it is still ambiguous.
+    public String match(String vehicle, double lat, double lon, long tsMillis, T payload) {
+        VehicleMatch<T> v = vehicles.computeIfAbsent(vehicle, k -> new VehicleMatch<>());
+        if (tsMillis < v.lastTsMillis) {
+            return v.committedTripId;
+        }
+        if (tsMillis - v.lastTsMillis > cfg.maxSampleGap().toMillis()) {
+            v.reset();
+        }
+        long dtMillis = (v.lastTsMillis < 0) ? 0 : tsMillis - v.lastTsMillis;
+        v.lastTsMillis = tsMillis;
+
+        index.grid.query(lat, lon, cfg.maxDistanceM(), hits);
+
+        if (v.committedTrip >= 0) {
+            boolean onShape = hits.containsShape(index.snapshot.shapeIndex(v.committedTrip));
+            v.misses = onShape ? 0 : v.misses + 1;
+            if (v.misses < cfg.releaseAfterMisses() && tsMillis <= v.committedUntilMillis) {
+                return v.committedTripId;
+            }
+            v.reset();
+        }
+
+        v.samples++;
+        updateTracks(v, tsMillis, dtMillis);
+        String tripId = tryCommit(v);
+        if (tripId == null) {
+            while (!v.held.isEmpty() && v.held.size() >= cfg.maxHeldSamples()) {
+                v.held.pollFirst();
+            }
+            if (cfg.maxHeldSamples() > 0) {
+                v.held.addLast(new Held<>(tsMillis, lat, lon, payload));
+            }
+        }
+        return tripId;
+    }
+
+    // The commit made by the last match call for this vehicle, or null if that call did not commit.
+    public Commit<T> takeCommit(String vehicle) {
+        VehicleMatch<T> v = vehicles.get(vehicle);
+        if (v == null || v.commit == null) {
+            return null;
+        }
+        Commit<T> commit = v.commit;
+        v.commit = null;
+        return commit;
+    }
+
+    // Called once the detector has emitted the last stop of the trip, so the vehicle's next trip is matched
+    // from scratch instead of waiting for it to leave the shape.
+    public void tripCompleted(String vehicle, String tripId) {
+        VehicleMatch<T> v = vehicles.get(vehicle);
+        if (v != null && v.committedTripId != null && v.committedTripId.equals(tripId)) {
+            v.reset();
+        }
+    }
+
+    public int evictIdle(long nowMillis) {
+        long cutoff = nowMillis - cfg.idleTimeout().toMillis();
+        int evicted = 0;
+        Iterator<VehicleMatch<T>> it = vehicles.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().lastTsMillis < cutoff) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public int vehicleCount() {
+        return vehicles.size();
+    }
+
+    private void updateTracks(VehicleMatch<T> v, long tsMillis, long dtMillis) {
+        int stamp = v.samples;
+        double maxStepM = cfg.maxSpeedMps() * dtMillis / 1000.0 + 2 * cfg.maxDistanceM();
+        double bornCost = missCost * Math.min(v.samples - 1, cfg.historySamples());
+        serviceDays(tsMillis);
+
+        for (int h = 0; h < hits.size(); h++) {
+            int shape = hits.shape(h);
+            double dist = hits.distanceM(h);
+            double along = hits.alongM(h);
+            double distCost = (dist / cfg.gpsSigmaM()) * (dist / cfg.gpsSigmaM());
+            double frac = (index.shapeLength[shape] > 0) ? Math.min(1.0, along / index.shapeLength[shape]) : 0.0;
+
+            for (int d = 0; d < 2; d++) {
+                int secs = (int) Math.floorDiv(tsMillis - dayOrigin[d], 1000L);
+                BitSet active = index.activeOn(day[d]);
+                int from = index.firstStartingAt(shape, secs - index.shapeMaxSpan[shape] - cfg.maxLateS());
+                for (int i = from; i < index.shapeTripStart[shape + 1]; i++) {
+                    int trip = index.shapeTrips[i];
+                    int start = index.tripStart[trip];
+                    if (start > secs + cfg.maxEarlyS()) break;
+                    int end = Math.max(start, index.tripEnd[trip]);
+                    if (secs > end + cfg.maxLateS() || !active.get(trip)) continue;
+
+                    double elapsedS = (end - start) * frac;
+                    double lateS = secs - (start + elapsedS);
+                    double drift = cfg.scheduleDriftRatio() * elapsedS / cfg.scheduleSigmaS();
+                    double var = 1.0 + drift * drift;
+                    double lateCost = (lateS / cfg.scheduleSigmaS()) * (lateS / cfg.scheduleSigmaS()) / var + Math.log(var);
+                    long key = ((long) d << 32) | trip;
+                    Track t = v.tracks.get(key);
+                    if (t == null) {
+                        if (bornCost + distCost + lateCost > v.bestCost + PRUNE_COST + missCost) continue;
+                        t = new Track(trip, dayOrigin[d], bornCost);
+                        v.tracks.put(key, t);
+                    } else if (t.hits > 0 && (along < t.alongM - cfg.maxBacktrackM() || along - t.alongM > maxStepM)) {
+                        continue;
+                    }
+                    if (t.stamp != stamp || distCost + lateCost < t.sampleCost + t.sampleLateCost) {
+                        t.stamp = stamp;
+                        t.sampleCost = distCost;
+                        t.sampleLateCost = lateCost;
+                        t.sampleAlongM = along;
+                    }
+                }
+            }
+        }
+
+        double decay = 1.0 - 1.0 / cfg.historySamples();
+        double best = Double.POSITIVE_INFINITY;
+        Iterator<Track> it = v.tracks.values().iterator();
+        while (it.hasNext()) {
+            Track t = it.next();
+            t.cost *= decay;
+            if (t.stamp == stamp) {
+                t.cost += t.sampleCost;
+                t.lateCost = t.sampleLateCost;
+                if (t.hits == 0) {
+                    t.firstAlongM = t.sampleAlongM;
+                    t.firstTsMillis = tsMillis;
+                }
+                t.alongM = (t.hits == 0) ? t.sampleAlongM : Math.max(t.alongM, t.sampleAlongM);
+                t.hits++;
+                t.misses = 0;
+            } else if (++t.misses >= 2) {
+                it.remove();
+                continue;
+            } else {
+                t.cost += missCost;
+            }
+            best = Math.min(best, t.total());
+        }
+        v.bestCost = best;
+    }
+
+    private String tryCommit(VehicleMatch<T> v) {
+        Track best = null;
+        double norm = 0.0;
+        Iterator<Track> it = v.tracks.values().iterator();
+        while (it.hasNext()) {
+            Track t = it.next();
+            double rel = t.total() - v.bestCost;
+            if (rel > PRUNE_COST) {
+                it.remove();
+                continue;
+            }
+            norm += Math.exp(-0.5 * rel);
+            if (best == null || t.total() < best.total()) {
+                best = t;
+            }
+        }
+        if (best == null
+                || best.hits < cfg.minSamples()
+                || best.alongM - best.firstAlongM < cfg.minProgressM()
+                || 1.0 / norm < cfg.minConfidence()) {
+            return null;
+        }
+        int end = Math.max(index.tripStart[best.trip], index.tripEnd[best.trip]);
+        v.committedTrip = best.trip;
+        v.committedTripId = index.snapshot.tripId(best.trip);
+        v.committedUntilMillis = best.dayOriginMillis + (end + (long) cfg.maxLateS()) * 1000L;
+        v.tracks.clear();
+        List<T> matched = new ArrayList<>(v.held.size());
+        long fromTs = best.firstTsMillis;
+        double fromAlong = best.firstAlongM;
+        for (Held<T> h : v.held) {
+            if (h.tsMillis < best.firstTsMillis) continue;
+            if (matched.isEmpty() && h.tsMillis > best.firstTsMillis) {
+                // the candidate's first sample has already left the buffer; start from the oldest one kept
+                fromTs = h.tsMillis;
+                fromAlong = locate(h.lat, h.lon, index.snapshot.shapeIndex(best.trip), best.firstAlongM, best.alongM);
+            }
+            matched.add(h.payload);
+        }
+        v.held.clear();
+        v.commit = new Commit<>(v.committedTripId, fromTs, fromAlong, List.copyOf(matched));
+        return v.committedTripId;
+    }
+
+    private double locate(double lat, double lon, int shape, double fromAlongM, double toAlongM) {
+        index.grid.query(lat, lon, cfg.maxDistanceM(), hits);
+        double along = fromAlongM;
+        double best = Double.POSITIVE_INFINITY;
+        for (int h = 0; h < hits.size(); h++) {
+            double a = hits.alongM(h);
+            if (hits.shape(h) == shape && hits.distanceM(h) < best
+                    && a >= fromAlongM - cfg.maxBacktrackM() && a <= toAlongM + cfg.maxBacktrackM()) {
+                best = hits.distanceM(h);
+                along = a;
+            }
+        }
+        return along;
+    }
+
+    // Trips past midnight belong to the previous service day, so every sample is checked against both.
+    private void serviceDays(long tsMillis) {
+        LocalDate today = LocalDate.ofInstant(Instant.ofEpochMilli(tsMillis), index.serviceZone);
+        if (today.equals(originsDate)) {
+            return;
+        }
+        originsDate = today;
+        day[0] = today;
+        day[1] = today.minusDays(1);
+        dayOrigin[0] = GtfsStaticProvider.serviceDayOrigin(day[0], index.serviceZone);
+        dayOrigin[1] = GtfsStaticProvider.serviceDayOrigin(day[1], index.serviceZone);
+    }
+
+    // held: earlier payloads matched by the committed trip, oldest first, excluding the committing one.
+    public record Commit<T>(
+            String tripId,
+            long fromTsMillis,
+            double fromAlongM,
+            List<T> held
+    ) {}
+
+    private record Held<T>(long tsMillis, double lat, double lon, T payload) {}
+
+    private static final class VehicleMatch<T> {
+        final Map<Long, Track> tracks = new HashMap<>();
+        final ArrayDeque<Held<T>> held = new ArrayDeque<>();
+        Commit<T> commit;
+        long lastTsMillis = -1;
+        int samples;
+        double bestCost = Double.POSITIVE_INFINITY;
+        int committedTrip = -1;
+        String committedTripId;
+        long committedUntilMillis;
+        int misses;
+
+        void reset() {
+            tracks.clear();
+            held.clear();
+            samples = 0;
+            bestCost = Double.POSITIVE_INFINITY;
+            committedTrip = -1;
+            committedTripId = null;
+            misses = 0;
+        }
+    }
+
+    private static final class Track {
+        final int trip;
+        final long dayOriginMillis;
+        double firstAlongM;
+        long firstTsMillis;
+        double cost;
+        double lateCost;
+        double alongM;
+        int hits;
+        int misses;
+        int stamp = -1;
+        double sampleCost;
+        double sampleLateCost;
+        double sampleAlongM;
+
+        Track(int trip, long dayOriginMillis, double cost) {
+            this.trip = trip;
+            this.dayOriginMillis = dayOriginMillis;
+            this.cost = cost;
+        }
+
+        double total() {
+            return cost + lateCost;
+        }
+    }
+}
@@ -6,4 +6,8 @@ import java.util.List;
 
 public interface ShapeProvider {
     List<Types.ShapePoint> getShape(String tripId);
+
+    default String getShapeId(String tripId) {
+        return null;
+    }
 }
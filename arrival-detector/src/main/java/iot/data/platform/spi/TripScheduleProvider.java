@@ -4,4 +4,10 @@ import iot.data.platform.core.Types;
 
 public interface TripScheduleProvider {
     Types.TripSchedule getSchedule(String tripId);
+
+    // The run of the trip nearest to atMillis, for replaying history. Providers that only know the current run
+    // return that.
+    default Types.TripSchedule getSchedule(String tripId, long atMillis) {
+        return getSchedule(tripId);
+    }
 }
@@ -0,0 +1,142 @@
+package iot.data.platform.streams;
+
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.kstream.Grouped;
+import org.apache.kafka.streams.kstream.KStream;
+import org.apache.kafka.streams.kstream.Materialized;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.processor.api.ContextualFixedKeyProcessor;
+import org.apache.kafka.streams.processor.api.FixedKeyRecord;
+import org.apache.kafka.streams.state.WindowStore;
+
+import java.util.Arrays;
+
+final class ArrivalAggregates {
+    static final String STOP_WINDOW_STORE_NAME = "stop-arrivals-windowed";
+    static final String TRIP_WINDOW_STORE_NAME = "trip-arrivals-windowed";
+
+    private ArrivalAggregates() {
+    }
+
+    static void attach(KStream<VehicleKey, StopArrivalEvent> arrivals, DetectorOptions options) {
+        TimeWindows windows = TimeWindows.ofSizeAndGrace(options.aggregateWindow(), options.aggregateGrace());
+        JsonSerde<StopArrivalEvent> eventSerde = new JsonSerde<>(StopArrivalEvent.class);
+
+        // Records carry the timestamp of the position sample that revealed the arrival; windows should follow
+        // the interpolated arrival time instead.
+        KStream<VehicleKey, StopArrivalEvent> byArrivalTime = arrivals
+                .filter((key, event) -> event != null)
+                .processValues(() -> new ContextualFixedKeyProcessor<VehicleKey, StopArrivalEvent, StopArrivalEvent>() {
+                    @Override
+                    public void process(FixedKeyRecord<VehicleKey, StopArrivalEvent> record) {
+                        context().forward(record.withTimestamp(record.value().arrivalTimeMillis()));
+                    }
+                });
+
+        byArrivalTime
+                .groupBy((key, event) -> stopKey(event.agency(), event.stopId()),
+                        Grouped.with("arrivals-by-stop", Serdes.String(), eventSerde))
+                .windowedBy(windows)
+                .aggregate(
+                        StopWindowStats::empty,
+                        (key, event, stats) -> stats.add(event.arrivalTimeMillis()),
+                        Materialized.<String, StopWindowStats, WindowStore<Bytes, byte[]>>as(STOP_WINDOW_STORE_NAME)
+                                .withKeySerde(Serdes.String())
+                                .withValueSerde(new JsonSerde<>(StopWindowStats.class))
+                                .withRetention(options.aggregateRetention())
+                );
+
+        byArrivalTime
+                .groupBy((key, event) -> tripKey(event.agency(), event.tripId()),
+                        Grouped.with("arrivals-by-trip", Serdes.String(), eventSerde))
+                .windowedBy(windows)
+                .aggregate(
+                        TripWindowStats::empty,
+                        (key, event, stats) -> stats.add(event.arrivalTimeMillis()),
+                        Materialized.<String, TripWindowStats, WindowStore<Bytes, byte[]>>as(TRIP_WINDOW_STORE_NAME)
+                                .withKeySerde(Serdes.String())
+                                .withValueSerde(new JsonSerde<>(TripWindowStats.class))
+                                .withRetention(options.aggregateRetention())
+                );
+    }
+
+    static String stopKey(String agency, String stopId) {
+        return agency + "/" + stopId;
+    }
+
+    static String tripKey(String agency, String tripId) {
+        return agency + "/" + tripId;
+    }
+
+    // Arrivals from different vehicles reach the by-stop repartition out of order, so the window keeps its
+    // arrival times sorted (a stop sees a few dozen per window at most) and headways are taken between neighbours
+    // of the sorted list.
+    record StopWindowStats(
+            long[] arrivalTimesMillis
+    ) {
+        StopWindowStats {
+            if (arrivalTimesMillis == null) arrivalTimesMillis = new long[0];
+        }
+
+        static StopWindowStats empty() {
+            return new StopWindowStats(new long[0]);
+        }
+
+        StopWindowStats add(long arrivalMillis) {
+            int at = Arrays.binarySearch(arrivalTimesMillis, arrivalMillis);
+            if (at < 0) at = -at - 1;
+            long[] times = new long[arrivalTimesMillis.length + 1];
+            System.arraycopy(arrivalTimesMillis, 0, times, 0, at);
+            times[at] = arrivalMillis;
+            System.arraycopy(arrivalTimesMillis, at, times, at + 1, arrivalTimesMillis.length - at);
+            return new StopWindowStats(times);
+        }
+
+        long arrivals() {
+            return arrivalTimesMillis.length;
+        }
+
+        long headways() {
+            return Math.max(0, arrivalTimesMillis.length - 1);
+        }
+
+        long headwaySumMillis() {
+            return (headways() == 0) ? 0 : arrivalTimesMillis[arrivalTimesMillis.length - 1] - arrivalTimesMillis[0];
+        }
+
+        long minHeadwayMillis() {
+            long min = Long.MAX_VALUE;
+            for (int i = 1; i < arrivalTimesMillis.length; i++) {
+                min = Math.min(min, arrivalTimesMillis[i] - arrivalTimesMillis[i - 1]);
+            }
+            return min;
+        }
+
+        long maxHeadwayMillis() {
+            long max = 0;
+            for (int i = 1; i < arrivalTimesMillis.length; i++) {
+                max = Math.max(max, arrivalTimesMillis[i] - arrivalTimesMillis[i - 1]);
+            }
+            return max;
+        }
+    }
+
+    record TripWindowStats(
+            long arrivals,
+            long firstArrivalMillis,
+            long lastArrivalMillis
+    ) {
+        static TripWindowStats empty() {
+            return new TripWindowStats(0, Long.MAX_VALUE, Long.MIN_VALUE);
+        }
+
+        TripWindowStats add(long arrivalMillis) {
+            return new TripWindowStats(
+                    arrivals + 1,
+                    Math.min(firstArrivalMillis, arrivalMillis),
+                    Math.max(lastArrivalMillis, arrivalMillis)
+            );
+        }
+    }
+}
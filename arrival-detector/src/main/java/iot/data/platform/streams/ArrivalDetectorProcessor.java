@@ -1,36 +1,127 @@
 package iot.data.platform.streams;
 
 import iot.data.platform.core.*;
+import iot.data.platform.match.TripMatchIndex;
+import iot.data.platform.match.TripMatcher;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.PunctuationType;
 import org.apache.kafka.streams.processor.api.ContextualProcessor;
 import org.apache.kafka.streams.processor.api.ProcessorContext;
 import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueIterator;
 import org.apache.kafka.streams.state.KeyValueStore;
 
-import java.time.Instant;
-import java.time.LocalTime;
+import java.time.Duration;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class ArrivalDetectorProcessor extends ContextualProcessor<VehicleKey, Types.PositionSample, VehicleKey, StopArrivalEvent> {
-    public static final String VEHICLE_STATE_STORE_NAME = "vehicle-state-store";
+    public static final String VEHICLE_STATE_STORE_NAME = "vehicle-state-store-v2";
+    public static final String LEGACY_VEHICLE_STATE_STORE_NAME = "vehicle-state-store";
+    public static final String ARRIVAL_WATERMARK_STORE_NAME = "arrival-watermark-store";
+    public static final String PENDING_SAMPLES_STORE_NAME = "pending-samples-store";
+    private static final Duration PENDING_DRAIN_INTERVAL = Duration.ofMillis(200);
 
     private final TripRuntimeFactory tripRuntimeFactory;
     private final StopArrivalAlgorithm algorithm;
     private final ZoneId arrivalZoneId;
+    private final DetectorOptions options;
+    private final TripMatchIndex matchIndex;
+
+    private final Map<VehicleKey, Pending> pending = new HashMap<>();
+    private final Map<VehicleKey, UnwrittenState> unwritten = new HashMap<>();
 
     private KeyValueStore<VehicleKey, VehicleState> stateStore;
+    private KeyValueStore<VehicleKey, VehicleState> legacyStateStore;
+    private KeyValueStore<String, ArrivalWatermark> watermarkStore;
+    private KeyValueStore<PendingSampleKey, PendingSample> pendingStore;
+    private final List<StateSweeper> sweepers = new ArrayList<>();
+    private TripMatcher<Record<VehicleKey, Types.PositionSample>> matcher;
+    private DetectorMetrics metrics;
 
     public ArrivalDetectorProcessor(TripRuntimeFactory tripRuntimeFactory, Config cfg, ZoneId arrivalZoneId) {
+        this(tripRuntimeFactory, cfg, arrivalZoneId, DetectorOptions.defaults());
+    }
+
+    public ArrivalDetectorProcessor(
+            TripRuntimeFactory tripRuntimeFactory,
+            Config cfg,
+            ZoneId arrivalZoneId,
+            DetectorOptions options
+    ) {
+        this(tripRuntimeFactory, cfg, arrivalZoneId, options, null);
+    }
+
+    public ArrivalDetectorProcessor(
+            TripRuntimeFactory tripRuntimeFactory,
+            Config cfg,
+            ZoneId arrivalZoneId,
+            DetectorOptions options,
+            TripMatchIndex matchIndex
+    ) {
         this.tripRuntimeFactory = Objects.requireNonNull(tripRuntimeFactory, "tripRuntimeFactory");
         this.algorithm = new StopArrivalAlgorithm(cfg);
         this.arrivalZoneId = Objects.requireNonNull(arrivalZoneId, "arrivalZoneId");
+        this.options = (options == null) ? DetectorOptions.defaults() : options;
+        this.matchIndex = matchIndex;
     }
 
     @Override
     public void init(ProcessorContext<VehicleKey, StopArrivalEvent> context) {
         super.init(context);
+        this.metrics = new DetectorMetrics(context);
+        metrics.cacheGauges(tripRuntimeFactory);
         this.stateStore = context.getStateStore(VEHICLE_STATE_STORE_NAME);
+        sweepers.add(new StateSweeper(VEHICLE_STATE_STORE_NAME, stateStore, tripRuntimeFactory, options, metrics));
+        if (options.migrateLegacyState()) {
+            this.legacyStateStore = context.getStateStore(LEGACY_VEHICLE_STATE_STORE_NAME);
+            sweepers.add(new StateSweeper(
+                    LEGACY_VEHICLE_STATE_STORE_NAME, legacyStateStore, tripRuntimeFactory, options, metrics));
+        }
+        if (matchIndex != null) {
+            this.matcher = matchIndex.newMatcher();
+        }
+        if (options.dedupArrivals()) {
+            this.watermarkStore = context.getStateStore(ARRIVAL_WATERMARK_STORE_NAME);
+        }
+        context.schedule(options.stateSweepInterval(), PunctuationType.WALL_CLOCK_TIME, ts -> sweepState());
+        if (options.suppressStateWrites()) {
+            context.schedule(options.stateFlushInterval(), PunctuationType.WALL_CLOCK_TIME, ts -> flushUnwritten());
+        }
+        if (options.asyncTripLoading()) {
+            this.pendingStore = context.getStateStore(PENDING_SAMPLES_STORE_NAME);
+            restorePending();
+            context.schedule(PENDING_DRAIN_INTERVAL, PunctuationType.WALL_CLOCK_TIME, ts -> drainPending());
+        }
+    }
+
+    // Queued samples are committed as consumed as soon as they are queued, so each is also written to the
+    // pending store as its own row; a task that closes or fails before their trip loads hands them to whoever
+    // restores it, and that instance loads the trip again. Record headers are not kept.
+    private void restorePending() {
+        try (KeyValueIterator<PendingSampleKey, PendingSample> it = pendingStore.all()) {
+            while (it.hasNext()) {
+                KeyValue<PendingSampleKey, PendingSample> kv = it.next();
+                VehicleKey key = kv.key.vehicle();
+                Pending queued = pending.get(key);
+                if (queued == null) {
+                    String tripId = kv.value.sample().tripId();
+                    queued = new Pending(tripId, loadTripAsync(tripId), kv.key.seq());
+                    pending.put(key, queued);
+                }
+                queued.restore(kv.key.seq(), new Record<>(key, kv.value.sample(), kv.value.timestamp()));
+            }
+        }
+        if (!pending.isEmpty()) {
+            System.err.println("[ArrivalDetector] Restored " + pending.size() + " vehicles with samples waiting for a trip");
+        }
     }
 
     @Override
@@ -39,55 +130,317 @@ public class ArrivalDetectorProcessor extends ContextualProcessor<VehicleKey, Ty
             return;
         }
 
+        if (record.value().tripId() == null || record.value().tripId().isEmpty()) {
+            inferTrip(record);
+            return;
+        }
+        processWithTrip(record);
+    }
+
+    private void processWithTrip(Record<VehicleKey, Types.PositionSample> record) {
+        VehicleKey key = record.key();
+        Types.PositionSample sample = record.value();
+
+        if (tripRuntimeFactory.isKnownMissing(sample.tripId())) {
+            metrics.unknownTripSkipped(1);
+            return;
+        }
+
+        if (!options.asyncTripLoading()) {
+            detectAndForward(record, loadTripSync(sample.tripId()));
+            return;
+        }
+
+        Pending queued = pending.get(key);
+        if (queued == null) {
+            TripRuntime trip = tripRuntimeFactory.getIfReady(sample.tripId());
+            if (trip != null) {
+                metrics.tripCacheHit();
+                detectAndForward(record, trip);
+                return;
+            }
+            queued = new Pending(sample.tripId(), loadTripAsync(sample.tripId()), 0L);
+            pending.put(key, queued);
+        }
+        while (queued.samples.size() >= options.maxPendingSamplesPerVehicle()) {
+            pendingStore.delete(new PendingSampleKey(key, queued.firstSeq));
+            queued.dropOldest();
+        }
+        queued.add(record);
+        if (replayIfLoaded(queued)) {
+            pending.remove(key);
+            // the sample just queued was never written
+            deleteStored(key, queued.firstSeq, queued.nextSeq - 1);
+        } else {
+            pendingStore.put(new PendingSampleKey(key, queued.nextSeq - 1),
+                    new PendingSample(record.timestamp(), sample));
+        }
+    }
+
+    private void deleteStored(VehicleKey key, long fromSeq, long toSeq) {
+        for (long seq = fromSeq; seq < toSeq; seq++) {
+            pendingStore.delete(new PendingSampleKey(key, seq));
+        }
+    }
+
+    // A sample without a trip is only usable once the matcher has committed its vehicle to one. It is then
+    // rekeyed so that state, watermarks and output look as if the feed had carried the trip. On commit the held
+    // samples that led to it are replayed first, so the stops passed while matching are not lost; a vehicle with
+    // no state for the trip yet starts from where the matcher first placed it, because the unconstrained
+    // projection of the first sample can land on another pass of a shape that loops back on itself.
+    private void inferTrip(Record<VehicleKey, Types.PositionSample> record) {
         VehicleKey key = record.key();
         Types.PositionSample sample = record.value();
+        if (matcher == null || key.vehicleId() == null) {
+            metrics.sampleMissingTrip();
+            return;
+        }
+        String vehicle = vehicle(key);
+        long t0 = System.nanoTime();
+        String tripId = matcher.match(vehicle, sample.lat(), sample.lon(), sample.tsMillis(), record);
+        metrics.tripMatched(System.nanoTime() - t0, tripId != null);
+        if (tripId == null) {
+            metrics.sampleMissingTrip();
+            return;
+        }
+        TripMatcher.Commit<Record<VehicleKey, Types.PositionSample>> commit = matcher.takeCommit(vehicle);
+        if (commit != null) {
+            VehicleKey tripKey = new VehicleKey(key.agency(), key.vehicleId(), tripId);
+            if (!unwritten.containsKey(tripKey) && stateStore.get(tripKey) == null) {
+                stateStore.put(tripKey, new VehicleState(Math.max(0.0, commit.fromAlongM()), 0, commit.fromTsMillis()));
+                metrics.stateWritten(1);
+            }
+            for (Record<VehicleKey, Types.PositionSample> held : commit.held()) {
+                processWithTrip(withTrip(held, tripId));
+            }
+        }
+        processWithTrip(withTrip(record, tripId));
+    }
+
+    private static Record<VehicleKey, Types.PositionSample> withTrip(Record<VehicleKey, Types.PositionSample> record, String tripId) {
+        VehicleKey key = record.key();
+        Types.PositionSample s = record.value();
+        return record
+                .withKey(new VehicleKey(key.agency(), key.vehicleId(), tripId))
+                .withValue(new Types.PositionSample(s.vehicleId(), tripId, s.lat(), s.lon(), s.tsMillis()));
+    }
+
+    private void drainPending() {
+        Iterator<Map.Entry<VehicleKey, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<VehicleKey, Pending> e = it.next();
+            Pending queued = e.getValue();
+            if (replayIfLoaded(queued)) {
+                it.remove();
+                deleteStored(e.getKey(), queued.firstSeq, queued.nextSeq);
+            }
+        }
+    }
+
+    // Nothing is replayed or written here: the task's last commit has already happened, so output and store
+    // writes made now would not be part of it. Pending samples are in the pending store already; unwritten states
+    // are lost, which leaves the stored state at the same next stop with an older progress (see saveState).
+    @Override
+    public void close() {
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    private TripRuntime loadTripSync(String tripId) {
+        TripRuntime trip = tripRuntimeFactory.getIfReady(tripId);
+        if (trip != null) {
+            metrics.tripCacheHit();
+            return trip;
+        }
+        long t0 = System.nanoTime();
+        try {
+            trip = tripRuntimeFactory.get(tripId);
+        } catch (RuntimeException e) {
+            metrics.tripLoadFailed(System.nanoTime() - t0);
+            throw e;
+        }
+        metrics.tripLoaded(System.nanoTime() - t0, trip.rawShapePointCount(), trip.shapePointCount());
+        return trip;
+    }
+
+    private CompletableFuture<TripRuntime> loadTripAsync(String tripId) {
+        long t0 = System.nanoTime();
+        CompletableFuture<TripRuntime> f = tripRuntimeFactory.load(tripId);
+        f.whenComplete((trip, e) -> {
+            long elapsed = System.nanoTime() - t0;
+            if (trip != null) {
+                metrics.tripLoaded(elapsed, trip.rawShapePointCount(), trip.shapePointCount());
+            } else {
+                metrics.tripLoadFailed(elapsed);
+            }
+        });
+        return f;
+    }
 
-        if (sample == null || sample.tripId() == null || sample.tripId().isEmpty()) {
+    private void flushUnwritten() {
+        if (unwritten.isEmpty()) {
             return;
         }
+        for (Map.Entry<VehicleKey, UnwrittenState> e : unwritten.entrySet()) {
+            stateStore.put(e.getKey(), e.getValue().state);
+        }
+        metrics.stateWritten(unwritten.size());
+        unwritten.clear();
+    }
 
-        TripRuntime trip = tripRuntimeFactory.get(sample.tripId());
-        VehicleState prevState = stateStore.get(key);
+    private void sweepState() {
+        long streamTime = context().currentStreamTimeMs();
+        for (StateSweeper sweeper : sweepers) {
+            sweeper.sweep(streamTime);
+        }
+        if (matcher != null) {
+            matcher.evictIdle(streamTime);
+        }
+    }
 
+    private boolean replayIfLoaded(Pending queued) {
+        if (!queued.trip.isDone()) {
+            return false;
+        }
+        if (queued.trip.isCompletedExceptionally()) {
+            Throwable cause = queued.trip.handle((t, e) -> (e.getCause() != null) ? e.getCause() : e).join();
+            metrics.unknownTripSkipped(queued.samples.size());
+            System.err.println("[ArrivalDetector] Dropping " + queued.samples.size()
+                    + " samples, trip " + queued.tripId + " failed to load: " + cause);
+            return true;
+        }
+        TripRuntime trip = queued.trip.join();
+        for (Record<VehicleKey, Types.PositionSample> r : queued.samples) {
+            detectAndForward(r, trip);
+        }
+        return true;
+    }
+
+    private void detectAndForward(Record<VehicleKey, Types.PositionSample> record, TripRuntime trip) {
+        VehicleKey key = record.key();
+        Types.PositionSample sample = record.value();
+        UnwrittenState held = unwritten.get(key);
+        VehicleState stored = (held != null) ? null : stateStore.get(key);
+        VehicleState prevState = (held != null) ? held.state : (stored != null) ? stored : migrateLegacyState(key);
+        double storedProgressM = (held != null) ? held.storedProgressM
+                : (stored != null) ? stored.progressM() : Double.NaN;
+
+        long t0 = System.nanoTime();
         StopArrivalAlgorithm.Result result =
                 algorithm.detect(sample, trip, prevState);
+        metrics.detected(System.nanoTime() - t0, result.arrivals().size(), result.projectionSkipped());
+
+        saveState(key, prevState, storedProgressM, result.newState());
+        if (matcher != null && result.newState().nextStopIdx() >= trip.stopCount()) {
+            matcher.tripCompleted(vehicle(key), key.tripId());
+        }
+        if (result.arrivals().isEmpty()) {
+            return;
+        }
+
+        String serviceDate = tripRuntimeFactory.serviceDate(trip, sample.tsMillis()).toString();
+        List<Types.StopArrival> arrivals = (watermarkStore == null)
+                ? result.arrivals()
+                : pastWatermark(key, serviceDate, result.arrivals());
+        for (Types.StopArrival a : arrivals) {
+            context().forward(record.withValue(StopArrivalEvents.of(key.agency(), a, serviceDate, arrivalZoneId)));
+        }
+    }
+
+    // At-least-once replays can run samples through a vehicle state that is older than what was already
+    // emitted, or through a fresh state once the old one was swept. The watermark keeps only the highest stop
+    // sequence emitted for the vehicle's current trip and service date, and is written before the arrivals are
+    // forwarded.
+    private List<Types.StopArrival> pastWatermark(VehicleKey key, String serviceDate, List<Types.StopArrival> arrivals) {
+        String vehicle = vehicle(key);
+        ArrivalWatermark mark = watermarkStore.get(vehicle);
+        boolean sameTrip = mark != null && mark.tripId().equals(key.tripId()) && mark.serviceDate().equals(serviceDate);
+        int emitted = sameTrip ? mark.stopSequence() : Integer.MIN_VALUE;
+
+        List<Types.StopArrival> fresh = new ArrayList<>(arrivals.size());
+        int highest = emitted;
+        for (Types.StopArrival a : arrivals) {
+            if (a.stopSequence() > emitted) {
+                fresh.add(a);
+                highest = Math.max(highest, a.stopSequence());
+            }
+        }
+        if (fresh.size() < arrivals.size()) {
+            metrics.arrivalsDeduplicated(arrivals.size() - fresh.size());
+        }
+        if (highest != emitted) {
+            watermarkStore.put(vehicle, new ArrivalWatermark(key.tripId(), serviceDate, highest));
+        }
+        return fresh;
+    }
+
+    private static String vehicle(VehicleKey key) {
+        return key.agency() + "/" + key.vehicleId();
+    }
+
+    // With suppression on, a state is only written when the vehicle moves to another stop or has drifted
+    // stateWriteMinProgressM from what the store holds (NaN when the store has nothing yet, e.g. a state just
+    // taken from the legacy store); everything in between stays in memory until the next flush. A task restored
+    // from the changelog then resumes with the same next stop and an older progress and timestamp, which only
+    // stretches the interpolation for the next arrival and never drops or repeats one.
+    private void saveState(VehicleKey key, VehicleState prevState, double storedProgressM, VehicleState newState) {
+        if (options.suppressStateWrites()
+                && prevState != null
+                && prevState.nextStopIdx() == newState.nextStopIdx()
+                && Math.abs(newState.progressM() - storedProgressM) < options.stateWriteMinProgressM()) {
+            unwritten.put(key, new UnwrittenState(newState, storedProgressM));
+            metrics.stateWriteSuppressed();
+            return;
+        }
+        stateStore.put(key, newState);
+        unwritten.remove(key);
+        metrics.stateWritten(1);
+    }
+
+    // The binary store is keyed differently from the JSON one, so vehicles not yet seen since the upgrade
+    // are moved over lazily on their first sample. Most keys have no legacy row, and a delete would write a
+    // changelog tombstone for each of them, so the row is looked up first.
+    private VehicleState migrateLegacyState(VehicleKey key) {
+        if (legacyStateStore == null) return null;
+        VehicleState legacy = legacyStateStore.get(key);
+        if (legacy != null) {
+            legacyStateStore.delete(key);
+        }
+        return legacy;
+    }
+
+    private record UnwrittenState(VehicleState state, double storedProgressM) {}
+
+    // Samples are only added at the back and dropped from the front, so the queue's rows in the pending store
+    // are always the seqs firstSeq (inclusive) to nextSeq (exclusive).
+    private static final class Pending {
+        final String tripId;
+        final CompletableFuture<TripRuntime> trip;
+        final ArrayDeque<Record<VehicleKey, Types.PositionSample>> samples = new ArrayDeque<>();
+        long firstSeq;
+        long nextSeq;
+
+        Pending(String tripId, CompletableFuture<TripRuntime> trip, long firstSeq) {
+            this.tripId = tripId;
+            this.trip = trip;
+            this.firstSeq = firstSeq;
+            this.nextSeq = firstSeq;
+        }
+
+        void add(Record<VehicleKey, Types.PositionSample> record) {
+            samples.addLast(record);
+            nextSeq++;
+        }
+
+        void restore(long seq, Record<VehicleKey, Types.PositionSample> record) {
+            samples.addLast(record);
+            nextSeq = seq + 1;
+        }
 
-        stateStore.put(key, result.newState());
-
-        for (Types.StopArrival a : result.arrivals()) {
-            long arrivalTsMillis = a.arrivalTimeMillis();
-
-            ZonedDateTime zoned = ZonedDateTime.ofInstant(
-                    Instant.ofEpochMilli(arrivalTsMillis),
-                    arrivalZoneId
-            );
-            LocalTime localTime = zoned.toLocalTime();
-
-            int hour   = localTime.getHour();
-            int minute = localTime.getMinute();
-            int second = localTime.getSecond();
-
-            String arrivalTimeLocal = String.format("%02d:%02d:%02d", hour, minute, second);
-            String arrivalTimeLocalExtended = String.format("%02d:%02d:%02d", hour + 24, minute, second);
-
-            int arrivalTimeLocalSeconds = hour * 3600 + minute * 60 + second;
-            int arrivalTimeLocalExtendedSeconds = arrivalTimeLocalSeconds + 24 * 3600;
-
-            StopArrivalEvent event = new StopArrivalEvent(
-                    key.agency(),
-                    a.vehicleId(),
-                    a.tripId(),
-                    a.stopId(),
-                    a.stopSequence(),
-                    arrivalTsMillis,
-                    arrivalTimeLocal,
-                    arrivalTimeLocalExtended,
-                    arrivalTimeLocalSeconds,
-                    arrivalTimeLocalExtendedSeconds,
-                    zoned.toLocalDate().toString(),
-                    zoned.toLocalDate().minusDays(1).toString()
-            );
-            context().forward(record.withValue(event));
+        void dropOldest() {
+            samples.pollFirst();
+            firstSeq++;
         }
     }
 }
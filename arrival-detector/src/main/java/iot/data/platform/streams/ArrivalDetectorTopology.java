@@ -1,15 +1,15 @@
 package iot.data.platform.streams;
 
 import io.confluent.kafka.streams.serdes.avro.GenericAvroSerde;
+import iot.data.platform.cache.CacheSpec;
 import iot.data.platform.core.Config;
 import iot.data.platform.core.TripRuntimeFactory;
 import iot.data.platform.core.Types;
 import iot.data.platform.core.VehicleState;
+import iot.data.platform.match.TripMatchIndex;
 import iot.data.platform.spi.ShapeProvider;
 import iot.data.platform.spi.StopProvider;
 import iot.data.platform.spi.TripScheduleProvider;
-import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
@@ -18,44 +18,23 @@ import org.apache.kafka.streams.Topology;
 import org.apache.kafka.streams.kstream.Consumed;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.kstream.Repartitioned;
 import org.apache.kafka.streams.state.KeyValueBytesStoreSupplier;
 import org.apache.kafka.streams.state.Stores;
 import org.apache.kafka.streams.state.StoreBuilder;
 import org.apache.kafka.streams.state.KeyValueStore;
 
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class ArrivalDetectorTopology {
 
-    private static final Schema STOP_ARRIVAL_SCHEMA;
-
-    static {
-        String schemaString = """
-                {
-                  "namespace": "iot.data.platform.avro",
-                  "type": "record",
-                  "name": "StopArrivalEvent",
-                  "fields": [
-                    { "name": "agency", "type": "string" },
-                    { "name": "vehicle_id", "type": "string" },
-                    { "name": "trip_id", "type": "string" },
-                    { "name": "stop_id", "type": "string" },
-                    { "name": "stop_sequence", "type": "int" },
-                    { "name": "arrival_time_millis", "type": "long" },
-                    { "name": "arrival_time_local", "type": "string" },
-                    { "name": "arrival_time_local_extended", "type": "string" },
-                    { "name": "arrival_time_local_seconds", "type": "int" },
-                    { "name": "arrival_time_local_extended_seconds", "type": "int" },
-                    { "name": "arrival_date", "type": "string" },
-                    { "name": "arrival_prev_date", "type": "string" }
-                  ]
-                }
-                """;
-        STOP_ARRIVAL_SCHEMA = new Schema.Parser().parse(schemaString);
-    }
-
     private ArrivalDetectorTopology() {
     }
 
@@ -66,8 +45,43 @@ public final class ArrivalDetectorTopology {
             ShapeProvider shapeProvider,
             TripScheduleProvider scheduleProvider,
             Config cfg,
+            CacheSpec cacheSpec,
+            DetectorOptions options,
+            String schemaRegistryUrl,
+            ZoneId arrivalZoneId
+    ) {
+        TripRuntimeFactory tripRuntimeFactory = new TripRuntimeFactory(
+                stopProvider,
+                shapeProvider,
+                scheduleProvider,
+                cfg,
+                cacheSpec,
+                tripLoaderExecutor(options.tripLoaderThreads())
+        );
+        return build(inputTopic, outputTopic, tripRuntimeFactory, cfg, options, schemaRegistryUrl, arrivalZoneId);
+    }
+
+    public static Topology build(
+            String inputTopic,
+            String outputTopic,
+            TripRuntimeFactory tripRuntimeFactory,
+            Config cfg,
+            DetectorOptions options,
             String schemaRegistryUrl,
             ZoneId arrivalZoneId
+    ) {
+        return build(inputTopic, outputTopic, tripRuntimeFactory, cfg, options, schemaRegistryUrl, arrivalZoneId, null);
+    }
+
+    public static Topology build(
+            String inputTopic,
+            String outputTopic,
+            TripRuntimeFactory tripRuntimeFactory,
+            Config cfg,
+            DetectorOptions options,
+            String schemaRegistryUrl,
+            ZoneId arrivalZoneId,
+            TripMatchIndex matchIndex
     ) {
         StreamsBuilder builder = new StreamsBuilder();
 
@@ -81,83 +95,92 @@ public final class ArrivalDetectorTopology {
                 builder.stream(inputTopic, Consumed.with(Serdes.ByteArray(), genericAvroSerde));
 
         KStream<VehicleKey, Types.PositionSample> positions =
-                raw.selectKey((oldKey, rec) -> {
-                            if (rec == null) return null;
-
-                            String agency = rec.get("agency").toString();
-
-                            Object vehicleIdVal = rec.get("vehicle_id");
-                            Object tripIdVal = rec.get("trip_id");
-
-                            String vehicleId = "".equals(vehicleIdVal.toString()) ? null : vehicleIdVal.toString();
-                            String tripId = "".equals(tripIdVal.toString()) ? null : tripIdVal.toString();
-
-                            return new VehicleKey(agency, vehicleId, tripId);
-                        })
-                        .mapValues(rec -> {
-                            if (rec == null) return null;
-
-                            Object vehicleIdVal = rec.get("vehicle_id");
-                            Object tripIdVal = rec.get("trip_id");
-
-                            String vehicleId = "".equals(vehicleIdVal.toString()) ? null : vehicleIdVal.toString();
-                            String tripId = "".equals(tripIdVal.toString()) ? null : tripIdVal.toString();
-
-                            double lat = (double) rec.get("latitude");
-                            double lon = (double) rec.get("longitude");
-                            long tsMs = (long) rec.get("ts_ms");
-
-                            return new Types.PositionSample(
-                                    vehicleId,
-                                    tripId,
-                                    lat,
-                                    lon,
-                                    tsMs
-                            );
-                        });
+                raw.selectKey((oldKey, rec) -> VehiclePositions.key(rec))
+                        .mapValues(VehiclePositions::sample);
+
+        if (options.repartitionByVehicle()) {
+            Repartitioned<VehicleKey, Types.PositionSample> repartitioned = Repartitioned
+                    .with(new VehicleKeySerde(), new JsonSerde<>(Types.PositionSample.class))
+                    .withName("positions-by-vehicle")
+                    .withStreamPartitioner(new VehiclePartitioner());
+            if (options.repartitionPartitions() > 0) {
+                repartitioned = repartitioned.withNumberOfPartitions(options.repartitionPartitions());
+            }
+            positions = positions.repartition(repartitioned);
+        }
 
         KeyValueBytesStoreSupplier storeSupplier =
                 Stores.persistentKeyValueStore(ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME);
 
-        Serde<VehicleKey> vehicleKeySerde = new JsonSerde<>(VehicleKey.class);
-        Serde<VehicleState> vehicleStateSerde = new JsonSerde<>(VehicleState.class);
+        Serde<VehicleKey> vehicleKeySerde = new VehicleKeySerde();
+        Serde<VehicleState> vehicleStateSerde = new VehicleStateSerde();
 
         StoreBuilder<KeyValueStore<VehicleKey, VehicleState>> storeBuilder =
                 Stores.keyValueStoreBuilder(storeSupplier, vehicleKeySerde, vehicleStateSerde);
 
         builder.addStateStore(storeBuilder);
 
-        TripRuntimeFactory tripRuntimeFactory =
-                new TripRuntimeFactory(stopProvider, shapeProvider, scheduleProvider, cfg);
+        List<String> stateStoreNames = new ArrayList<>(List.of(ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME));
+        if (options.migrateLegacyState()) {
+            builder.addStateStore(Stores.keyValueStoreBuilder(
+                    Stores.persistentKeyValueStore(ArrivalDetectorProcessor.LEGACY_VEHICLE_STATE_STORE_NAME),
+                    new JsonSerde<>(VehicleKey.class),
+                    new JsonSerde<>(VehicleState.class)
+            ));
+            stateStoreNames.add(ArrivalDetectorProcessor.LEGACY_VEHICLE_STATE_STORE_NAME);
+        }
+
+        if (options.asyncTripLoading()) {
+            builder.addStateStore(Stores.keyValueStoreBuilder(
+                    Stores.persistentKeyValueStore(ArrivalDetectorProcessor.PENDING_SAMPLES_STORE_NAME),
+                    new PendingSampleKeySerde(),
+                    new JsonSerde<>(PendingSample.class)
+            ));
+            stateStoreNames.add(ArrivalDetectorProcessor.PENDING_SAMPLES_STORE_NAME);
+        }
+
+        if (options.dedupArrivals()) {
+            builder.addStateStore(Stores.keyValueStoreBuilder(
+                    Stores.persistentKeyValueStore(ArrivalDetectorProcessor.ARRIVAL_WATERMARK_STORE_NAME),
+                    Serdes.String(),
+                    new JsonSerde<>(ArrivalWatermark.class)
+            ));
+            stateStoreNames.add(ArrivalDetectorProcessor.ARRIVAL_WATERMARK_STORE_NAME);
+        }
 
         KStream<VehicleKey, StopArrivalEvent> arrivals =
                 positions.process(
-                        () -> new ArrivalDetectorProcessor(tripRuntimeFactory, cfg, arrivalZoneId),
-                        ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME
+                        () -> new ArrivalDetectorProcessor(tripRuntimeFactory, cfg, arrivalZoneId, options, matchIndex),
+                        stateStoreNames.toArray(new String[0])
                 );
 
-        KStream<VehicleKey, GenericRecord> avroArrivals =
-                arrivals.mapValues(event -> {
-                    if (event == null) return null;
-
-                    GenericRecord rec = new GenericData.Record(STOP_ARRIVAL_SCHEMA);
-                    rec.put("agency", event.agency());
-                    rec.put("vehicle_id", event.vehicleId());
-                    rec.put("trip_id", event.tripId());
-                    rec.put("stop_id", event.stopId());
-                    rec.put("stop_sequence", event.stopSequence());
-                    rec.put("arrival_time_millis", event.arrivalTimeMillis());
-                    rec.put("arrival_time_local", event.arrivalTimeLocal());
-                    rec.put("arrival_time_local_extended", event.arrivalTimeLocalExtended());
-                    rec.put("arrival_time_local_seconds", event.arrivalTimeLocalSeconds());
-                    rec.put("arrival_time_local_extended_seconds", event.arrivalTimeLocalExtendedSeconds());
-                    rec.put("arrival_date", event.arrivalDate());
-                    rec.put("arrival_prev_date", event.arrivalPrevDate());
-                    return rec;
-                });
-
-        avroArrivals.to(outputTopic, Produced.with(vehicleKeySerde, genericAvroSerde));
+        if (options.windowedAggregates()) {
+            ArrivalAggregates.attach(arrivals, options);
+        }
+
+        // Keyed by the arrival's own identity, a replayed duplicate lands on the same partition and key, so a
+        // compacted topic or an upserting consumer collapses it.
+        if (options.dedupArrivals()) {
+            arrivals.filter((key, event) -> event != null)
+                    .selectKey((key, event) -> ArrivalKey.of(event))
+                    .mapValues(StopArrivalEvents::toAvro)
+                    .to(outputTopic, Produced.with(new JsonSerde<>(ArrivalKey.class), genericAvroSerde));
+        } else {
+            KStream<VehicleKey, GenericRecord> avroArrivals =
+                    arrivals.mapValues(event -> (event == null) ? null : StopArrivalEvents.toAvro(event));
+
+            avroArrivals.to(outputTopic, Produced.with(new JsonSerde<>(VehicleKey.class), genericAvroSerde));
+        }
 
         return builder.build();
     }
+
+    public static ExecutorService tripLoaderExecutor(int threads) {
+        AtomicInteger seq = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "trip-loader-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
 }
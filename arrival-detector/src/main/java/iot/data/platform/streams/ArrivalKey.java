@@ -0,0 +1,13 @@
+package iot.data.platform.streams;
+
+public record ArrivalKey(
+        String agency,
+        String vehicleId,
+        String tripId,
+        int stopSequence,
+        String serviceDate
+) {
+    static ArrivalKey of(StopArrivalEvent event) {
+        return new ArrivalKey(event.agency(), event.vehicleId(), event.tripId(), event.stopSequence(), event.serviceDate());
+    }
+}
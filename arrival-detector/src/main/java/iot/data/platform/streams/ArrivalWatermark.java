@@ -0,0 +1,8 @@
+package iot.data.platform.streams;
+
+public record ArrivalWatermark(
+        String tripId,
+        String serviceDate,
+        int stopSequence
+) {
+}
@@ -0,0 +1,240 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.cache.CacheReport;
+import iot.data.platform.cache.CacheReporter;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.MeasurableStat;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.WindowedSum;
+import org.apache.kafka.streams.StreamsMetrics;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+final class DetectorMetrics {
+    static final String GROUP = "stream-arrival-detector-metrics";
+    private static final int HISTOGRAM_BYTES = 4 * 1024;
+
+    private final StreamsMetrics metrics;
+    private final Map<String, String> tags;
+    private final String prefix;
+    private final List<Sensor> sensors = new ArrayList<>();
+
+    private final Sensor detectTime;
+    private final Sensor tripLoadTime;
+    private final Sensor tripCacheHits;
+    private final Sensor tripCacheMisses;
+    private final Sensor shapePoints;
+    private final Sensor rawShapePoints;
+    private final Sensor samplesMissingTrip;
+    private final Sensor samplesUnknownTrip;
+    private final Sensor tripMatchTime;
+    private final Sensor samplesTripInferred;
+    private final Sensor projectionsSkipped;
+    private final Sensor stateWrites;
+    private final Sensor stateWritesSuppressed;
+    private final Sensor arrivals;
+    private final Sensor arrivalsDeduplicated;
+    private final Sensor arrivalsPerSample;
+    private final Sensor sweepScanned;
+    private final Sensor sweepEvictedExpired;
+    private final Sensor sweepEvictedCompleted;
+
+    DetectorMetrics(ProcessorContext<?, ?> context) {
+        this.metrics = context.metrics();
+        this.tags = Map.of(
+                "thread-id", Thread.currentThread().getName(),
+                "task-id", context.taskId().toString()
+        );
+        this.prefix = "arrival-detector." + Thread.currentThread().getName() + "." + context.taskId() + ".";
+
+        this.detectTime = histogram("detect-time-us",
+                "Time to project a sample onto its trip and detect arrivals, in microseconds", 0, 10_000);
+        this.tripLoadTime = histogram("trip-load-time-ms",
+                "Time from a trip cache miss until its TripRuntime is available, in milliseconds", 0, 30_000);
+        this.tripCacheHits = rateTotal("trip-cache-hit", "Samples whose TripRuntime was already loaded");
+        this.tripCacheMisses = rateTotal("trip-cache-miss", "TripRuntime loads triggered by a cache miss");
+        this.samplesMissingTrip = rateTotal("samples-missing-trip-dropped", "Samples dropped because they have no tripId and none was inferred");
+        this.samplesUnknownTrip = rateTotal("samples-unknown-trip-skipped",
+                "Samples skipped because their trip failed to load and is backing off");
+        this.tripMatchTime = histogram("trip-match-time-us",
+                "Time to match a sample without a tripId against the active trips, in microseconds", 0, 10_000);
+        this.samplesTripInferred = rateTotal("samples-trip-inferred",
+                "Samples without a tripId that were processed under a trip inferred by the matcher");
+        this.projectionsSkipped = rateTotal("samples-projection-skipped",
+                "Samples resolved by the stop-proximity pre-check without a shape projection");
+        this.stateWrites = rateTotal("state-writes", "Vehicle states written to the state store");
+        this.stateWritesSuppressed = rateTotal("state-writes-suppressed",
+                "Vehicle state updates held in memory instead of being written to the state store");
+        this.arrivals = rateTotal("arrivals-emitted", "Stop arrival events emitted");
+        this.arrivalsDeduplicated = rateTotal("arrivals-deduplicated",
+                "Stop arrivals dropped because the vehicle's emitted-stop watermark had already passed them");
+        this.sweepScanned = rateTotal("sweep-scanned", "Vehicle state rows scanned by the state sweeper");
+        this.sweepEvictedExpired = rateTotal("sweep-evicted-expired",
+                "Vehicle state rows evicted by the sweeper after STATE_TTL of inactivity");
+        this.sweepEvictedCompleted = rateTotal("sweep-evicted-completed",
+                "Vehicle state rows evicted by the sweeper for trips already completed");
+
+        this.shapePoints = sensor("shape-points");
+        shapePoints.add(name("shape-points-avg", "Average shape points per loaded trip after simplification and densification"), new Avg());
+        shapePoints.add(name("shape-points-max", "Maximum shape points per loaded trip after simplification and densification"), new Max());
+
+        this.rawShapePoints = sensor("shape-points-raw");
+        rawShapePoints.add(name("shape-points-raw-avg", "Average raw shape points per loaded trip, before simplification"), new Avg());
+        rawShapePoints.add(name("shape-points-raw-max", "Maximum raw shape points per loaded trip, before simplification"), new Max());
+
+        this.arrivalsPerSample = sensor("arrivals-per-sample");
+        arrivalsPerSample.add(name("arrivals-per-sample-avg", "Average arrivals emitted per processed sample"), new Avg());
+        arrivalsPerSample.add(name("arrivals-per-sample-max", "Maximum arrivals emitted by a single sample"), new Max());
+    }
+
+    void detected(long nanos, int arrivalCount, boolean projectionSkipped) {
+        detectTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (projectionSkipped) {
+            projectionsSkipped.record();
+        }
+        arrivalsPerSample.record(arrivalCount);
+        if (arrivalCount > 0) {
+            arrivals.record(arrivalCount);
+        }
+    }
+
+    void stateWritten(int count) {
+        stateWrites.record(count);
+    }
+
+    void stateWriteSuppressed() {
+        stateWritesSuppressed.record();
+    }
+
+    void arrivalsDeduplicated(int count) {
+        arrivalsDeduplicated.record(count);
+    }
+
+    void swept(int scanned, int evictedExpired, int evictedCompleted) {
+        sweepScanned.record(scanned);
+        sweepEvictedExpired.record(evictedExpired);
+        sweepEvictedCompleted.record(evictedCompleted);
+    }
+
+    void tripCacheHit() {
+        tripCacheHits.record();
+    }
+
+    void tripLoaded(long nanos, int rawShapePointCount, int shapePointCount) {
+        tripCacheMisses.record();
+        tripLoadTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        rawShapePoints.record(rawShapePointCount);
+        shapePoints.record(shapePointCount);
+    }
+
+    void tripLoadFailed(long nanos) {
+        tripCacheMisses.record();
+        tripLoadTime.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    void sampleMissingTrip() {
+        samplesMissingTrip.record();
+    }
+
+    void tripMatched(long nanos, boolean inferred) {
+        tripMatchTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (inferred) {
+            samplesTripInferred.record();
+        }
+    }
+
+    void unknownTripSkipped(int samples) {
+        samplesUnknownTrip.record(samples);
+    }
+
+    // The caches are shared by every task of the process, so their gauges carry only the cache name and are left
+    // registered when a task closes. Registering them again from another task is a no-op.
+    void cacheGauges(CacheReporter reporter) {
+        for (CacheReport report : reporter.cacheReports()) {
+            String cache = report.name();
+            Sensor s = metrics.addSensor("arrival-detector.cache." + cache, Sensor.RecordingLevel.INFO);
+            Map<String, String> cacheTags = Map.of("cache", cache);
+            s.add(new MetricName("cache-size", GROUP, "Entries in the cache", cacheTags),
+                    new Gauge(reporter, cache, CacheReport::size));
+            s.add(new MetricName("cache-weight-bytes", GROUP, "Estimated bytes held by the cache", cacheTags),
+                    new Gauge(reporter, cache, CacheReport::estimatedBytes));
+            s.add(new MetricName("cache-hit-rate", GROUP, "Share of lookups served from the cache", cacheTags),
+                    new Gauge(reporter, cache, CacheReport::hitRate));
+            s.add(new MetricName("cache-evictions-total", GROUP, "Entries evicted from the cache in total", cacheTags),
+                    new Gauge(reporter, cache, CacheReport::evictionCount));
+            s.add(new MetricName("cache-load-failures-total", GROUP, "Cache loads that failed in total", cacheTags),
+                    new Gauge(reporter, cache, CacheReport::loadFailureCount));
+        }
+    }
+
+    void close() {
+        for (Sensor s : sensors) {
+            metrics.removeSensor(s);
+        }
+        sensors.clear();
+    }
+
+    private Sensor histogram(String name, String description, double min, double max) {
+        Sensor s = sensor(name);
+        s.add(name(name + "-avg", description + " (average)"), new Avg());
+        s.add(name(name + "-max", description + " (maximum)"), new Max());
+        s.add(new Percentiles(HISTOGRAM_BYTES, min, max, Percentiles.BucketSizing.LINEAR,
+                new Percentile(name(name + "-p50", description + " (median)"), 50),
+                new Percentile(name(name + "-p99", description + " (99th percentile)"), 99)));
+        return s;
+    }
+
+    private Sensor rateTotal(String name, String description) {
+        Sensor s = sensor(name);
+        s.add(name(name + "-rate", description + " per second"), new Rate(new WindowedSum()));
+        s.add(name(name + "-total", description + " in total"), new CumulativeSum());
+        return s;
+    }
+
+    private Sensor sensor(String name) {
+        Sensor s = metrics.addSensor(prefix + name, Sensor.RecordingLevel.INFO);
+        sensors.add(s);
+        return s;
+    }
+
+    private MetricName name(String name, String description) {
+        return new MetricName(name, GROUP, description, tags);
+    }
+
+    // Reads the cache's live statistics whenever the metric is sampled; recording does nothing.
+    private static final class Gauge implements MeasurableStat {
+        private final CacheReporter reporter;
+        private final String cache;
+        private final ToDoubleFunction<CacheReport> value;
+
+        Gauge(CacheReporter reporter, String cache, ToDoubleFunction<CacheReport> value) {
+            this.reporter = reporter;
+            this.cache = cache;
+            this.value = value;
+        }
+
+        @Override
+        public double measure(MetricConfig config, long now) {
+            for (CacheReport r : reporter.cacheReports()) {
+                if (r.name().equals(cache)) return value.applyAsDouble(r);
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        public void record(MetricConfig config, double value, long timeMs) {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package iot.data.platform.streams;
+
+import java.time.Duration;
+
+public record DetectorOptions(
+        boolean asyncTripLoading,
+        int tripLoaderThreads,
+        int maxPendingSamplesPerVehicle,
+        boolean migrateLegacyState,
+        Duration stateTtl,
+        Duration completedStateTtl,
+        Duration stateSweepInterval,
+        int stateSweepSliceSize,
+        boolean repartitionByVehicle,
+        int repartitionPartitions,
+        boolean windowedAggregates,
+        Duration aggregateWindow,
+        Duration aggregateGrace,
+        Duration aggregateRetention,
+        boolean suppressStateWrites,
+        double stateWriteMinProgressM,
+        Duration stateFlushInterval,
+        boolean dedupArrivals
+) {
+    public DetectorOptions {
+        if (tripLoaderThreads <= 0) throw new IllegalArgumentException("tripLoaderThreads must be > 0");
+        if (maxPendingSamplesPerVehicle <= 0) throw new IllegalArgumentException("maxPendingSamplesPerVehicle must be > 0");
+        if (stateTtl == null || stateTtl.isNegative() || stateTtl.isZero()) throw new IllegalArgumentException("stateTtl must be > 0");
+        if (completedStateTtl == null || completedStateTtl.isNegative()) throw new IllegalArgumentException("completedStateTtl must be >= 0");
+        if (stateSweepInterval == null || stateSweepInterval.isNegative() || stateSweepInterval.isZero()) throw new IllegalArgumentException("stateSweepInterval must be > 0");
+        if (stateSweepSliceSize <= 0) throw new IllegalArgumentException("stateSweepSliceSize must be > 0");
+        if (repartitionPartitions < 0) throw new IllegalArgumentException("repartitionPartitions must be >= 0");
+        if (aggregateWindow == null || aggregateWindow.isNegative() || aggregateWindow.isZero()) throw new IllegalArgumentException("aggregateWindow must be > 0");
+        if (aggregateGrace == null || aggregateGrace.isNegative()) throw new IllegalArgumentException("aggregateGrace must be >= 0");
+        if (aggregateRetention == null || aggregateRetention.compareTo(aggregateWindow.plus(aggregateGrace)) < 0) {
+            throw new IllegalArgumentException("aggregateRetention must be >= aggregateWindow + aggregateGrace");
+        }
+        if (stateWriteMinProgressM < 0) throw new IllegalArgumentException("stateWriteMinProgressM must be >= 0");
+        if (stateFlushInterval == null || stateFlushInterval.isNegative() || stateFlushInterval.isZero()) throw new IllegalArgumentException("stateFlushInterval must be > 0");
+    }
+
+    public static DetectorOptions defaults() {
+        return new DetectorOptions(
+                true,
+                8,
+                64,
+                false,
+                Duration.ofHours(6),
+                Duration.ofMinutes(15),
+                Duration.ofSeconds(10),
+                1000,
+                true,
+                0,
+                false,
+                Duration.ofMinutes(15),
+                Duration.ofMinutes(5),
+                Duration.ofHours(48),
+                false,
+                100.0,
+                Duration.ofSeconds(30),
+                false
+        );
+    }
+}
@@ -0,0 +1,173 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+import iot.data.platform.gtfs.GtfsStaticProvider;
+import iot.data.platform.gtfs.GtfsTopicCodec;
+import iot.data.platform.spi.ShapeProvider;
+import iot.data.platform.spi.StopProvider;
+import iot.data.platform.spi.TripScheduleProvider;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+
+import java.time.Clock;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+// Trip metadata from the compacted topics written by GtfsTopicLoader, held in global stores so every instance
+// has the whole feed locally. Global stores are restored in full before stream threads start processing, so
+// lookups made from the detector never see a partially loaded feed.
+public class GlobalGtfsProvider implements StopProvider, ShapeProvider, TripScheduleProvider {
+    static final String TRIP_STORE_NAME = "gtfs-trips-global";
+    static final String SHAPE_STORE_NAME = "gtfs-shapes-global";
+
+    private final String tripsTopic;
+    private final String shapesTopic;
+    private final ZoneId serviceZone;
+    private final Clock clock;
+
+    private final ThreadLocal<Decoded> lastDecoded = new ThreadLocal<>();
+
+    private volatile KafkaStreams streams;
+    private volatile ReadOnlyKeyValueStore<String, byte[]> trips;
+    private volatile ReadOnlyKeyValueStore<String, byte[]> shapes;
+
+    public GlobalGtfsProvider(String tripsTopic, String shapesTopic, ZoneId serviceZone) {
+        this(tripsTopic, shapesTopic, serviceZone, Clock.systemUTC());
+    }
+
+    public GlobalGtfsProvider(String tripsTopic, String shapesTopic, ZoneId serviceZone, Clock clock) {
+        this.tripsTopic = Objects.requireNonNull(tripsTopic, "tripsTopic");
+        this.shapesTopic = Objects.requireNonNull(shapesTopic, "shapesTopic");
+        this.serviceZone = Objects.requireNonNull(serviceZone, "serviceZone");
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    public void addTo(Topology topology) {
+        addGlobalStore(topology, TRIP_STORE_NAME, tripsTopic);
+        addGlobalStore(topology, SHAPE_STORE_NAME, shapesTopic);
+    }
+
+    public void attach(KafkaStreams streams) {
+        this.streams = streams;
+        this.trips = null;
+        this.shapes = null;
+    }
+
+    @Override
+    public List<Types.StopPoint> getStops(String tripId) {
+        GtfsTopicCodec.TripRecord trip = trip(tripId);
+        return (trip == null) ? List.of() : trip.stops();
+    }
+
+    @Override
+    public List<Types.ShapePoint> getShape(String tripId) {
+        GtfsTopicCodec.TripRecord trip = trip(tripId);
+        if (trip == null || trip.shapeId() == null) return List.of();
+        byte[] data = shapeStore().get(trip.shapeId());
+        return (data == null) ? List.of() : GtfsTopicCodec.decodeShape(data);
+    }
+
+    @Override
+    public String getShapeId(String tripId) {
+        GtfsTopicCodec.TripRecord trip = trip(tripId);
+        return (trip == null) ? null : trip.shapeId();
+    }
+
+    @Override
+    public Types.TripSchedule getSchedule(String tripId) {
+        return getSchedule(tripId, clock.millis());
+    }
+
+    @Override
+    public Types.TripSchedule getSchedule(String tripId, long atMillis) {
+        GtfsTopicCodec.TripRecord trip = trip(tripId);
+        if (trip == null || trip.scheduledStartSeconds() < 0) return null;
+        return GtfsStaticProvider.nearestSchedule(trip.scheduledStartSeconds(), atMillis, serviceZone);
+    }
+
+    // A trip load asks for stops, shape id, shape and schedule in turn on the same loader thread, so the last
+    // decoded record is kept per thread and reused while the stored bytes are unchanged.
+    private GtfsTopicCodec.TripRecord trip(String tripId) {
+        if (tripId == null) return null;
+        byte[] data = tripStore().get(tripId);
+        if (data == null) return null;
+        Decoded last = lastDecoded.get();
+        if (last != null && last.tripId.equals(tripId) && Arrays.equals(last.data, data)) {
+            return last.trip;
+        }
+        GtfsTopicCodec.TripRecord trip = GtfsTopicCodec.decodeTrip(data);
+        lastDecoded.set(new Decoded(tripId, data, trip));
+        return trip;
+    }
+
+    private ReadOnlyKeyValueStore<String, byte[]> tripStore() {
+        ReadOnlyKeyValueStore<String, byte[]> s = trips;
+        if (s == null) {
+            s = query(TRIP_STORE_NAME);
+            trips = s;
+        }
+        return s;
+    }
+
+    private ReadOnlyKeyValueStore<String, byte[]> shapeStore() {
+        ReadOnlyKeyValueStore<String, byte[]> s = shapes;
+        if (s == null) {
+            s = query(SHAPE_STORE_NAME);
+            shapes = s;
+        }
+        return s;
+    }
+
+    private ReadOnlyKeyValueStore<String, byte[]> query(String storeName) {
+        KafkaStreams s = streams;
+        if (s == null) {
+            throw new IllegalStateException("GlobalGtfsProvider is not attached to a KafkaStreams instance");
+        }
+        return s.store(StoreQueryParameters.fromNameAndType(storeName, QueryableStoreTypes.<String, byte[]>keyValueStore()));
+    }
+
+    private static void addGlobalStore(Topology topology, String storeName, String topic) {
+        topology.addGlobalStore(
+                Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(storeName), Serdes.String(), Serdes.ByteArray())
+                        .withLoggingDisabled(),
+                storeName + "-source",
+                new StringDeserializer(),
+                new ByteArrayDeserializer(),
+                topic,
+                storeName + "-updater",
+                () -> new Processor<String, byte[], Void, Void>() {
+                    private KeyValueStore<String, byte[]> store;
+
+                    @Override
+                    public void init(ProcessorContext<Void, Void> context) {
+                        store = context.getStateStore(storeName);
+                    }
+
+                    @Override
+                    public void process(Record<String, byte[]> record) {
+                        if (record.key() == null) return;
+                        if (record.value() == null) {
+                            store.delete(record.key());
+                        } else {
+                            store.put(record.key(), record.value());
+                        }
+                    }
+                }
+        );
+    }
+
+    private record Decoded(String tripId, byte[] data, GtfsTopicCodec.TripRecord trip) {}
+}
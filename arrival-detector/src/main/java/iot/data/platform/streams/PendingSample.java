@@ -0,0 +1,10 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+
+// A sample queued while its trip loads, as kept in the pending-samples store so that it outlives the task.
+public record PendingSample(
+        long timestamp,
+        Types.PositionSample sample
+) {
+}
@@ -0,0 +1,8 @@
+package iot.data.platform.streams;
+
+// One row of the pending-samples store per queued sample; seq grows with every sample queued for the vehicle.
+public record PendingSampleKey(
+        VehicleKey vehicle,
+        long seq
+) {
+}
@@ -0,0 +1,38 @@
+package iot.data.platform.streams;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// The vehicle key followed by the big-endian sequence number, so a vehicle's rows sit next to each other in
+// the store in the order they were queued.
+public class PendingSampleKeySerde implements Serde<PendingSampleKey> {
+
+    @Override
+    public Serializer<PendingSampleKey> serializer() {
+        return (topic, key) -> (key == null) ? null : encode(key);
+    }
+
+    @Override
+    public Deserializer<PendingSampleKey> deserializer() {
+        return (topic, data) -> decode(data);
+    }
+
+    static byte[] encode(PendingSampleKey key) {
+        byte[] vehicle = VehicleKeySerde.encode(key.vehicle());
+        return ByteBuffer.allocate(vehicle.length + 8).put(vehicle).putLong(key.seq()).array();
+    }
+
+    static PendingSampleKey decode(byte[] data) {
+        if (data == null || data.length == 0) return null;
+        if (data.length <= 8) {
+            throw new SerializationException("Truncated PendingSampleKey (" + data.length + " bytes)");
+        }
+        VehicleKey vehicle = VehicleKeySerde.decode(Arrays.copyOf(data, data.length - 8));
+        return new PendingSampleKey(vehicle, ByteBuffer.wrap(data, data.length - 8, 8).getLong());
+    }
+}
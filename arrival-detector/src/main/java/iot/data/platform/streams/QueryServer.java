@@ -0,0 +1,449 @@
+package iot.data.platform.streams;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import iot.data.platform.core.TripRuntime;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.core.Types;
+import iot.data.platform.core.VehicleState;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.StreamsMetadata;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.ReadOnlyWindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Read-only HTTP view over the detector's queryable stores. Requests for a key are forwarded to the instance
+// hosting it; scans fan out to every instance with local=true and are merged here. Trip details in vehicle
+// answers come from whatever trips this instance already has loaded, so they are null on a cold cache.
+final class QueryServer implements AutoCloseable {
+    private static final Duration FORWARD_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_RANGE = Duration.ofHours(6);
+
+    private final KafkaStreams streams;
+    private final HostInfo self;
+    private final long windowSizeMillis;
+    private final boolean vehiclePartitioned;
+    private final TripRuntimeFactory tripRuntimeFactory;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(FORWARD_TIMEOUT)
+            .build();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    QueryServer(
+            KafkaStreams streams,
+            HostInfo self,
+            int port,
+            DetectorOptions options,
+            TripRuntimeFactory tripRuntimeFactory
+    ) throws IOException {
+        this.streams = streams;
+        this.self = self;
+        this.windowSizeMillis = options.aggregateWindow().toMillis();
+        this.vehiclePartitioned = options.repartitionByVehicle();
+        this.tripRuntimeFactory = tripRuntimeFactory;
+        AtomicInteger seq = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "query-http-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/instances", ex -> handle(ex, this::instances));
+        server.createContext("/vehicles/", ex -> handle(ex, this::vehicles));
+        server.createContext("/trips/", ex -> handle(ex, this::tripVehicles));
+        if (options.windowedAggregates()) {
+            server.createContext("/aggregates/stops/", ex -> handle(ex, this::stopWindows));
+            server.createContext("/aggregates/agencies/", ex -> handle(ex, this::agencyTripWindows));
+        }
+    }
+
+    void start() {
+        server.start();
+        System.err.println("[QueryServer] Listening on port " + server.getAddress().getPort() + " as " + self);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // GET /instances
+    private Response instances(HttpExchange ex, Request req) {
+        List<Instance> out = new ArrayList<>();
+        for (StreamsMetadata md : streams.metadataForAllStreamsClients()) {
+            List<Integer> partitions = md.topicPartitions().stream().map(tp -> tp.partition()).sorted().toList();
+            out.add(new Instance(md.host(), md.port(), md.hostInfo().equals(self), new ArrayList<>(md.stateStoreNames()), partitions));
+        }
+        return Response.json(200, out);
+    }
+
+    // GET /vehicles/{agency} or /vehicles/{agency}/{vehicleId}
+    private Response vehicles(HttpExchange ex, Request req) throws IOException {
+        List<String> path = req.path("/vehicles/", 1, 2);
+        String agency = path.get(0);
+        if (path.size() == 1) {
+            return Response.json(200, mergeVehicles(ex, req, () -> localVehicles(
+                    new VehicleKey(agency, "", ""), new VehicleKey(agency, null, null), null)));
+        }
+        String vehicleId = path.get(1);
+        // the detector store is partitioned by agency and vehicle only, so the owner is known without the trip
+        if (vehiclePartitioned && !req.local()) {
+            KeyQueryMetadata md = streams.queryMetadataForKey(ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME,
+                    new VehicleKey(agency, vehicleId, null), new VehiclePartitioner());
+            Response forwarded = forwardToOwner(md, ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME, ex);
+            if (forwarded != null) return forwarded;
+            return Response.json(200, localVehicles(
+                    new VehicleKey(agency, vehicleId, ""), new VehicleKey(agency, vehicleId, null), null));
+        }
+        return Response.json(200, mergeVehicles(ex, req, () -> localVehicles(
+                new VehicleKey(agency, vehicleId, ""), new VehicleKey(agency, vehicleId, null), null)));
+    }
+
+    // GET /trips/{agency}/{tripId}/vehicles
+    private Response tripVehicles(HttpExchange ex, Request req) throws IOException {
+        List<String> path = req.path("/trips/", 3, 3);
+        if (!"vehicles".equals(path.get(2))) return Response.error(404, "Unknown trip resource " + path.get(2));
+        String agency = path.get(0);
+        String tripId = path.get(1);
+        return Response.json(200, mergeVehicles(ex, req, () -> localVehicles(
+                new VehicleKey(agency, "", ""), new VehicleKey(agency, null, null), tripId)));
+    }
+
+    private VehicleStates mergeVehicles(HttpExchange ex, Request req, LocalQuery<VehicleStates> local) throws IOException {
+        List<VehicleView> merged = new ArrayList<>();
+        for (VehicleStates part : fanOut(ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME, ex, req, VehicleStates.class, local)) {
+            merged.addAll(part.vehicles());
+        }
+        return new VehicleStates(merged);
+    }
+
+    // VehicleKeySerde writes length-prefixed fields, so an empty string sorts before and null (0xFFFF) after
+    // every value of the field it stands for; [from, to] therefore covers exactly the keys under a prefix.
+    private VehicleStates localVehicles(VehicleKey from, VehicleKey to, String tripFilter) {
+        ReadOnlyKeyValueStore<VehicleKey, VehicleState> store = streams.store(StoreQueryParameters.fromNameAndType(
+                ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME, QueryableStoreTypes.keyValueStore()));
+        List<VehicleView> out = new ArrayList<>();
+        try (KeyValueIterator<VehicleKey, VehicleState> it = store.range(from, to)) {
+            while (it.hasNext()) {
+                KeyValue<VehicleKey, VehicleState> kv = it.next();
+                if (tripFilter != null && !tripFilter.equals(kv.key.tripId())) continue;
+                out.add(VehicleView.of(kv.key, kv.value,
+                        (kv.key.tripId() == null) ? null : tripRuntimeFactory.getIfPresent(kv.key.tripId())));
+            }
+        }
+        return new VehicleStates(out);
+    }
+
+    // GET /aggregates/stops/{agency}/{stopId}?from=&to=
+    private Response stopWindows(HttpExchange ex, Request req) {
+        List<String> path = req.path("/aggregates/stops/", 2, 2);
+        String key = ArrivalAggregates.stopKey(path.get(0), path.get(1));
+        if (!req.local()) {
+            KeyQueryMetadata md = streams.queryMetadataForKey(
+                    ArrivalAggregates.STOP_WINDOW_STORE_NAME, key, Serdes.String().serializer());
+            Response forwarded = forwardToOwner(md, ArrivalAggregates.STOP_WINDOW_STORE_NAME, ex);
+            if (forwarded != null) return forwarded;
+        }
+
+        ReadOnlyWindowStore<String, ArrivalAggregates.StopWindowStats> store = streams.store(
+                StoreQueryParameters.fromNameAndType(ArrivalAggregates.STOP_WINDOW_STORE_NAME, QueryableStoreTypes.windowStore()));
+        List<StopWindow> windows = new ArrayList<>();
+        try (WindowStoreIterator<ArrivalAggregates.StopWindowStats> it = store.fetch(key, req.from(), req.to())) {
+            while (it.hasNext()) {
+                KeyValue<Long, ArrivalAggregates.StopWindowStats> kv = it.next();
+                windows.add(StopWindow.of(kv.key, kv.key + windowSizeMillis, kv.value));
+            }
+        }
+        return Response.json(200, new StopWindows(path.get(0), path.get(1), windows));
+    }
+
+    // GET /aggregates/agencies/{agency}/trips?from=&to=
+    private Response agencyTripWindows(HttpExchange ex, Request req) throws IOException {
+        List<String> path = req.path("/aggregates/agencies/", 2, 2);
+        if (!"trips".equals(path.get(1))) return Response.error(404, "Unknown aggregate " + path.get(1));
+        String agency = path.get(0);
+
+        TreeMap<Long, TripCountWindow> merged = new TreeMap<>();
+        for (AgencyTrips part : fanOut(ArrivalAggregates.TRIP_WINDOW_STORE_NAME, ex, req, AgencyTrips.class,
+                () -> localAgencyTrips(agency, req))) {
+            for (TripCountWindow w : part.windows()) {
+                merged.merge(w.windowStart(), w, TripCountWindow::plus);
+            }
+        }
+        return Response.json(200, new AgencyTrips(agency, new ArrayList<>(merged.values())));
+    }
+
+    private AgencyTrips localAgencyTrips(String agency, Request req) {
+        ReadOnlyWindowStore<String, ArrivalAggregates.TripWindowStats> store = streams.store(
+                StoreQueryParameters.fromNameAndType(ArrivalAggregates.TRIP_WINDOW_STORE_NAME, QueryableStoreTypes.windowStore()));
+        String prefix = ArrivalAggregates.tripKey(agency, "");
+        TreeMap<Long, TripCountWindow> windows = new TreeMap<>();
+        try (KeyValueIterator<Windowed<String>, ArrivalAggregates.TripWindowStats> it =
+                     store.fetch(prefix, prefix + Character.MAX_VALUE, req.from(), req.to())) {
+            while (it.hasNext()) {
+                KeyValue<Windowed<String>, ArrivalAggregates.TripWindowStats> kv = it.next();
+                long start = kv.key.window().start();
+                windows.merge(start, new TripCountWindow(start, start + windowSizeMillis, 1, kv.value.arrivals()),
+                        TripCountWindow::plus);
+            }
+        }
+        return new AgencyTrips(agency, new ArrayList<>(windows.values()));
+    }
+
+    private Response forwardToOwner(KeyQueryMetadata md, String storeName, HttpExchange ex) {
+        if (md == null || md == KeyQueryMetadata.NOT_AVAILABLE) {
+            throw new InvalidStateStoreException("No metadata for " + storeName + " yet");
+        }
+        if (md.activeHost().equals(self)) return null;
+        try {
+            HttpResponse<byte[]> resp = http.send(forwardRequest(md.activeHost(), ex), HttpResponse.BodyHandlers.ofByteArray());
+            return new Response(resp.statusCode(), resp.body());
+        } catch (IOException e) {
+            return Response.error(502, "Owner " + md.activeHost() + " unreachable: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.error(503, "Interrupted");
+        }
+    }
+
+    private <T> List<T> fanOut(String storeName, HttpExchange ex, Request req, Class<T> type, LocalQuery<T> local) throws IOException {
+        if (req.local()) return List.of(local.run());
+        List<T> parts = new ArrayList<>();
+        for (StreamsMetadata md : streams.streamsMetadataForStore(storeName)) {
+            if (md.hostInfo().equals(self)) {
+                parts.add(local.run());
+                continue;
+            }
+            try {
+                HttpResponse<byte[]> resp = http.send(forwardRequest(md.hostInfo(), ex), HttpResponse.BodyHandlers.ofByteArray());
+                if (resp.statusCode() != 200) {
+                    throw new IOException("Instance " + md.hostInfo() + " answered HTTP " + resp.statusCode());
+                }
+                parts.add(mapper.readValue(resp.body(), type));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+        return parts;
+    }
+
+    private static HttpRequest forwardRequest(HostInfo host, HttpExchange ex) {
+        URI uri = ex.getRequestURI();
+        String query = (uri.getRawQuery() == null) ? "local=true" : uri.getRawQuery() + "&local=true";
+        return HttpRequest.newBuilder()
+                .uri(URI.create("http://" + host.host() + ":" + host.port() + uri.getRawPath() + "?" + query))
+                .timeout(FORWARD_TIMEOUT)
+                .GET()
+                .build();
+    }
+
+    private void handle(HttpExchange ex, Handler handler) throws IOException {
+        Response resp;
+        try {
+            if (!"GET".equals(ex.getRequestMethod())) {
+                resp = Response.error(405, "Only GET is supported");
+            } else {
+                resp = handler.handle(ex, Request.parse(ex.getRequestURI()));
+            }
+        } catch (IllegalArgumentException e) {
+            resp = Response.error(400, e.getMessage());
+        } catch (InvalidStateStoreException e) {
+            resp = Response.error(503, "State is not queryable right now: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("[QueryServer] " + ex.getRequestURI() + " failed: " + e);
+            resp = Response.error(500, String.valueOf(e.getMessage()));
+        }
+        byte[] body = (resp.json != null) ? mapper.writeValueAsBytes(resp.json) : resp.body;
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(resp.status, (body.length == 0) ? -1 : body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private interface Handler {
+        Response handle(HttpExchange ex, Request req) throws IOException;
+    }
+
+    private interface LocalQuery<T> {
+        T run();
+    }
+
+    private static final class Response {
+        final int status;
+        final Object json;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this(status, null, body);
+        }
+
+        private Response(int status, Object json, byte[] body) {
+            this.status = status;
+            this.json = json;
+            this.body = body;
+        }
+
+        static Response json(int status, Object json) {
+            return new Response(status, json, null);
+        }
+
+        static Response error(int status, String message) {
+            return json(status, Map.of("error", message));
+        }
+    }
+
+    private record Request(String rawPath, Map<String, String> params) {
+        static Request parse(URI uri) {
+            Map<String, String> params = new HashMap<>();
+            if (uri.getRawQuery() != null) {
+                for (String pair : uri.getRawQuery().split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+                }
+            }
+            return new Request(uri.getRawPath(), params);
+        }
+
+        List<String> path(String prefix, int minSegments, int maxSegments) {
+            String[] parts = rawPath.substring(prefix.length()).split("/", -1);
+            if (parts.length < minSegments || parts.length > maxSegments) {
+                throw new IllegalArgumentException("Expected " + minSegments + (minSegments == maxSegments ? "" : "-" + maxSegments)
+                        + " path segments after " + prefix);
+            }
+            List<String> out = new ArrayList<>(parts.length);
+            for (String p : parts) {
+                if (p.isEmpty()) throw new IllegalArgumentException("Empty path segment in " + rawPath);
+                out.add(decode(p));
+            }
+            return out;
+        }
+
+        boolean local() {
+            return Boolean.parseBoolean(params.get("local"));
+        }
+
+        Instant to() {
+            String v = params.get("to");
+            return (v == null) ? Instant.now() : Instant.ofEpochMilli(parseMillis("to", v));
+        }
+
+        Instant from() {
+            String v = params.get("from");
+            return (v == null) ? to().minus(DEFAULT_RANGE) : Instant.ofEpochMilli(parseMillis("from", v));
+        }
+
+        private static long parseMillis(String name, String v) {
+            try {
+                return Long.parseLong(v);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " must be epoch milliseconds");
+            }
+        }
+
+        private static String decode(String s) {
+            return URLDecoder.decode(s, StandardCharsets.UTF_8);
+        }
+    }
+
+    record Instance(String host, int port, boolean self, List<String> stores, List<Integer> partitions) {}
+
+    record VehicleStates(List<VehicleView> vehicles) {}
+
+    record VehicleView(
+            String agency,
+            String vehicleId,
+            String tripId,
+            double progressM,
+            int nextStopIdx,
+            String nextStopId,
+            Integer nextStopSequence,
+            Integer stopCount,
+            Boolean completed,
+            long lastTsMillis
+    ) {
+        static VehicleView of(VehicleKey key, VehicleState state, TripRuntime trip) {
+            Types.StopPoint next = (trip != null && state.nextStopIdx() < trip.stopCount())
+                    ? trip.stop(state.nextStopIdx())
+                    : null;
+            return new VehicleView(
+                    key.agency(),
+                    key.vehicleId(),
+                    key.tripId(),
+                    state.progressM(),
+                    state.nextStopIdx(),
+                    (next == null) ? null : next.stopId(),
+                    (next == null) ? null : next.stopSequence(),
+                    (trip == null) ? null : trip.stopCount(),
+                    (trip == null) ? null : state.nextStopIdx() >= trip.stopCount(),
+                    state.lastTsMillis()
+            );
+        }
+    }
+
+    record StopWindows(String agency, String stopId, List<StopWindow> windows) {}
+
+    record StopWindow(
+            long windowStart,
+            long windowEnd,
+            long arrivals,
+            Double avgHeadwaySeconds,
+            Double minHeadwaySeconds,
+            Double maxHeadwaySeconds
+    ) {
+        static StopWindow of(long start, long end, ArrivalAggregates.StopWindowStats s) {
+            if (s.headways() == 0) return new StopWindow(start, end, s.arrivals(), null, null, null);
+            return new StopWindow(
+                    start,
+                    end,
+                    s.arrivals(),
+                    s.headwaySumMillis() / 1000.0 / s.headways(),
+                    s.minHeadwayMillis() / 1000.0,
+                    s.maxHeadwayMillis() / 1000.0
+            );
+        }
+    }
+
+    record AgencyTrips(String agency, List<TripCountWindow> windows) {}
+
+    record TripCountWindow(long windowStart, long windowEnd, long trips, long arrivals) {
+        TripCountWindow plus(TripCountWindow other) {
+            return new TripCountWindow(windowStart, windowEnd, trips + other.trips, arrivals + other.arrivals);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.TripRuntime;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.core.VehicleState;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class StateSweeper {
+    private final String storeName;
+    private final KeyValueStore<VehicleKey, VehicleState> store;
+    private final TripRuntimeFactory tripRuntimeFactory;
+    private final long ttlMillis;
+    private final long completedTtlMillis;
+    private final int sliceSize;
+    private final DetectorMetrics metrics;
+
+    private VehicleKey cursor;
+    private long passScanned;
+    private long passEvicted;
+
+    private long evictedExpired;
+    private long evictedCompleted;
+
+    StateSweeper(
+            String storeName,
+            KeyValueStore<VehicleKey, VehicleState> store,
+            TripRuntimeFactory tripRuntimeFactory,
+            DetectorOptions options,
+            DetectorMetrics metrics
+    ) {
+        this.storeName = storeName;
+        this.store = store;
+        this.tripRuntimeFactory = tripRuntimeFactory;
+        this.ttlMillis = options.stateTtl().toMillis();
+        this.completedTtlMillis = options.completedStateTtl().toMillis();
+        this.sliceSize = options.stateSweepSliceSize();
+        this.metrics = metrics;
+    }
+
+    void sweep(long streamTimeMillis) {
+        if (streamTimeMillis < 0) return;
+
+        List<VehicleKey> evict = new ArrayList<>();
+        VehicleKey last = null;
+        int seen = 0;
+        int expired = 0;
+        int completed = 0;
+        boolean exhausted;
+        try (KeyValueIterator<VehicleKey, VehicleState> it = store.range(cursor, null)) {
+            while (seen < sliceSize && it.hasNext()) {
+                KeyValue<VehicleKey, VehicleState> kv = it.next();
+                if (kv.key.equals(cursor)) continue;
+                seen++;
+                last = kv.key;
+                if (kv.value == null) continue;
+                long idle = streamTimeMillis - kv.value.lastTsMillis();
+                if (idle > ttlMillis) {
+                    evict.add(kv.key);
+                    expired++;
+                } else if (idle > completedTtlMillis && isCompleted(kv.key, kv.value)) {
+                    evict.add(kv.key);
+                    completed++;
+                }
+            }
+            exhausted = !it.hasNext();
+        }
+
+        for (VehicleKey key : evict) {
+            store.delete(key);
+        }
+        metrics.swept(seen, expired, completed);
+        evictedExpired += expired;
+        evictedCompleted += completed;
+        passScanned += seen;
+        passEvicted += evict.size();
+
+        if (exhausted) {
+            if (passEvicted > 0) {
+                System.err.println("[ArrivalDetector] Swept " + storeName + ": scanned " + passScanned
+                        + ", evicted " + passEvicted + " (total expired=" + evictedExpired
+                        + ", completed=" + evictedCompleted + ")");
+            }
+            cursor = null;
+            passScanned = 0;
+            passEvicted = 0;
+        } else {
+            cursor = last;
+        }
+    }
+
+    // Only trips already cached are checked: an idle row's trip is not loaded just for this, and rows whose trip
+    // has been evicted fall to the plain state TTL instead.
+    private boolean isCompleted(VehicleKey key, VehicleState state) {
+        if (key.tripId() == null) return false;
+        TripRuntime trip = tripRuntimeFactory.getIfPresent(key.tripId());
+        return trip != null && state.nextStopIdx() >= trip.stopCount();
+    }
+}
@@ -12,6 +12,7 @@ public record StopArrivalEvent(
         int arrivalTimeLocalSeconds,
         int arrivalTimeLocalExtendedSeconds,
         String arrivalDate,
-        String arrivalPrevDate
+        String arrivalPrevDate,
+        String serviceDate
 ) {
 }
@@ -0,0 +1,99 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+public final class StopArrivalEvents {
+
+    public static final Schema AVRO_SCHEMA;
+
+    static {
+        String schemaString = """
+                {
+                  "namespace": "iot.data.platform.avro",
+                  "type": "record",
+                  "name": "StopArrivalEvent",
+                  "fields": [
+                    { "name": "agency", "type": "string" },
+                    { "name": "vehicle_id", "type": "string" },
+                    { "name": "trip_id", "type": "string" },
+                    { "name": "stop_id", "type": "string" },
+                    { "name": "stop_sequence", "type": "int" },
+                    { "name": "arrival_time_millis", "type": "long" },
+                    { "name": "arrival_time_local", "type": "string" },
+                    { "name": "arrival_time_local_extended", "type": "string" },
+                    { "name": "arrival_time_local_seconds", "type": "int" },
+                    { "name": "arrival_time_local_extended_seconds", "type": "int" },
+                    { "name": "arrival_date", "type": "string" },
+                    { "name": "arrival_prev_date", "type": "string" },
+                    { "name": "service_date", "type": "string", "default": "" }
+                  ]
+                }
+                """;
+        AVRO_SCHEMA = new Schema.Parser().parse(schemaString);
+    }
+
+    private StopArrivalEvents() {
+    }
+
+    public static StopArrivalEvent of(String agency, Types.StopArrival a, String serviceDate, ZoneId arrivalZoneId) {
+        long arrivalTsMillis = a.arrivalTimeMillis();
+
+        ZonedDateTime zoned = ZonedDateTime.ofInstant(
+                Instant.ofEpochMilli(arrivalTsMillis),
+                arrivalZoneId
+        );
+        LocalTime localTime = zoned.toLocalTime();
+
+        int hour   = localTime.getHour();
+        int minute = localTime.getMinute();
+        int second = localTime.getSecond();
+
+        String arrivalTimeLocal = String.format("%02d:%02d:%02d", hour, minute, second);
+        String arrivalTimeLocalExtended = String.format("%02d:%02d:%02d", hour + 24, minute, second);
+
+        int arrivalTimeLocalSeconds = hour * 3600 + minute * 60 + second;
+        int arrivalTimeLocalExtendedSeconds = arrivalTimeLocalSeconds + 24 * 3600;
+
+        return new StopArrivalEvent(
+                agency,
+                a.vehicleId(),
+                a.tripId(),
+                a.stopId(),
+                a.stopSequence(),
+                arrivalTsMillis,
+                arrivalTimeLocal,
+                arrivalTimeLocalExtended,
+                arrivalTimeLocalSeconds,
+                arrivalTimeLocalExtendedSeconds,
+                zoned.toLocalDate().toString(),
+                zoned.toLocalDate().minusDays(1).toString(),
+                serviceDate
+        );
+    }
+
+    public static GenericRecord toAvro(StopArrivalEvent event) {
+        GenericRecord rec = new GenericData.Record(AVRO_SCHEMA);
+        rec.put("agency", event.agency());
+        rec.put("vehicle_id", event.vehicleId());
+        rec.put("trip_id", event.tripId());
+        rec.put("stop_id", event.stopId());
+        rec.put("stop_sequence", event.stopSequence());
+        rec.put("arrival_time_millis", event.arrivalTimeMillis());
+        rec.put("arrival_time_local", event.arrivalTimeLocal());
+        rec.put("arrival_time_local_extended", event.arrivalTimeLocalExtended());
+        rec.put("arrival_time_local_seconds", event.arrivalTimeLocalSeconds());
+        rec.put("arrival_time_local_extended_seconds", event.arrivalTimeLocalExtendedSeconds());
+        rec.put("arrival_date", event.arrivalDate());
+        rec.put("arrival_prev_date", event.arrivalPrevDate());
+        rec.put("service_date", (event.serviceDate() == null) ? "" : event.serviceDate());
+        return rec;
+    }
+}
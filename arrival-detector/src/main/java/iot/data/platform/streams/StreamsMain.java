@@ -2,22 +2,38 @@ package iot.data.platform.streams;
 
 import iot.data.platform.backend.HttpShapeProvider;
 import iot.data.platform.backend.HttpStopProvider;
+import iot.data.platform.backend.HttpTripMetadataProvider;
+import iot.data.platform.cache.CacheSpec;
 import iot.data.platform.core.Config;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.gtfs.GtfsStaticProvider;
+import iot.data.platform.match.MatchConfig;
+import iot.data.platform.match.TripMatchIndex;
 import iot.data.platform.spi.ShapeProvider;
 import iot.data.platform.spi.StopProvider;
 import iot.data.platform.spi.TripScheduleProvider;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.state.HostInfo;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.ZoneId;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class StreamsMain {
     public static void main(String[] args) {
         String bootstrap = env("KAFKA_BOOTSTRAP_SERVERS", "localhost:9094");
         String schemaRegistryUrl = env("SCHEMA_REGISTRY_URL", "http://localhost:8081");
         String backendBaseUrl = env("GTFS_BACKEND_URL", "http://localhost:8082");
+        String gtfsStaticZip = env("GTFS_STATIC_ZIP", "");
         String inputTopic = env("INPUT_TOPIC", "gtfs.vehicle.positions.sl");
         String outputTopic = env("OUTPUT_TOPIC", "stop_arrivals");
         String arrivalTimeZoneId = env("ARRIVAL_TIME_ZONE", "UTC+1");
@@ -26,29 +42,206 @@ public class StreamsMain {
         Properties props = new Properties();
         props.put(StreamsConfig.APPLICATION_ID_CONFIG, "arrival-detector");
         props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrap);
-        props.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.EXACTLY_ONCE_V2);
+        String processingGuarantee = env("PROCESSING_GUARANTEE", StreamsConfig.EXACTLY_ONCE_V2);
+        props.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, processingGuarantee);
 
-        StopProvider stopProvider = new HttpStopProvider(backendBaseUrl);
-        ShapeProvider shapeProvider = new HttpShapeProvider(backendBaseUrl);
-        TripScheduleProvider scheduleProvider = tripId -> null;
+        int queryPort = Integer.parseInt(env("QUERY_HTTP_PORT", "0"));
+        HostInfo queryHost = new HostInfo(env("QUERY_ADVERTISED_HOST", "localhost"), queryPort);
+        if (queryPort > 0) {
+            props.put(StreamsConfig.APPLICATION_SERVER_CONFIG, queryHost.host() + ":" + queryHost.port());
+        }
 
-        Config cfg = Config.defaults();
+        CacheSpec cacheDefaults = CacheSpec.defaults(arrivalZoneId);
+        CacheSpec cacheSpec = new CacheSpec(
+                cacheDefaults.maxWeightBytes(),
+                cacheDefaults.idleTimeout(),
+                cacheDefaults.serviceDayZone(),
+                cacheDefaults.serviceDayRollover(),
+                cacheDefaults.refreshAfterWrite(),
+                Duration.ofSeconds(Long.parseLong(env("MISSING_TRIP_BACKOFF_SECONDS", "30"))),
+                Duration.ofMinutes(Long.parseLong(env("MISSING_TRIP_MAX_BACKOFF_MINUTES", "30")))
+        );
+        int tripLoaderThreads = Integer.parseInt(env("TRIP_LOADER_THREADS", "8"));
+        ExecutorService tripLoader = ArrivalDetectorTopology.tripLoaderExecutor(tripLoaderThreads);
+        StopProvider stopProvider;
+        ShapeProvider shapeProvider;
+        TripScheduleProvider scheduleProvider;
+        String tripSnapshotPath = env("TRIP_SNAPSHOT_PATH", "");
+        String snapshotFingerprint = env("TRIP_SNAPSHOT_FINGERPRINT", "");
+        long feedFingerprint = snapshotFingerprint.isEmpty() ? 0L : Long.parseLong(snapshotFingerprint);
+        String gtfsTripsTopic = env("GTFS_TRIPS_TOPIC", "");
+        GlobalGtfsProvider globalGtfs = null;
+        GtfsStaticProvider gtfsStatic = null;
+        if (!gtfsTripsTopic.isEmpty()) {
+            globalGtfs = new GlobalGtfsProvider(gtfsTripsTopic, env("GTFS_SHAPES_TOPIC", "gtfs.static.shapes"), arrivalZoneId);
+            stopProvider = globalGtfs;
+            shapeProvider = globalGtfs;
+            scheduleProvider = globalGtfs;
+        } else if (gtfsStaticZip.isEmpty() && Boolean.parseBoolean(env("GTFS_BACKEND_BATCH", "false"))) {
+            HttpTripMetadataProvider backend = new HttpTripMetadataProvider(backendBaseUrl, cacheSpec, tripLoader);
+            stopProvider = backend;
+            shapeProvider = backend;
+            scheduleProvider = backend;
+        } else if (gtfsStaticZip.isEmpty()) {
+            stopProvider = new HttpStopProvider(backendBaseUrl, cacheSpec);
+            shapeProvider = new HttpShapeProvider(backendBaseUrl, cacheSpec);
+            scheduleProvider = tripId -> null;
+        } else {
+            GtfsStaticProvider gtfs = GtfsStaticProvider.open(
+                    Path.of(gtfsStaticZip),
+                    Path.of(env("GTFS_SNAPSHOT_PATH", gtfsStaticZip + ".snapshot")),
+                    arrivalZoneId
+            );
+            stopProvider = gtfs;
+            shapeProvider = gtfs;
+            scheduleProvider = gtfs;
+            feedFingerprint = gtfs.snapshot().fingerprint();
+            gtfsStatic = gtfs;
+        }
 
-        Topology topology = ArrivalDetectorTopology.build(
-                inputTopic,
-                outputTopic,
+        // Only the local zip knows its own fingerprint; with any other source a snapshot mapped under a constant
+        // fingerprint would keep serving the previous feed's trips after the feed changes.
+        if (!tripSnapshotPath.isEmpty() && gtfsStatic == null && snapshotFingerprint.isEmpty()) {
+            throw new IllegalStateException("TRIP_SNAPSHOT_PATH needs TRIP_SNAPSHOT_FINGERPRINT unless GTFS_STATIC_ZIP is set");
+        }
+
+        // Matching needs every trip of the feed up front, which only the local snapshot provides.
+        TripMatchIndex matchIndex = null;
+        if (Boolean.parseBoolean(env("MATCH_TRIPLESS_VEHICLES", "false"))) {
+            if (gtfsStatic == null) {
+                System.err.println("[ArrivalDetector] MATCH_TRIPLESS_VEHICLES needs GTFS_STATIC_ZIP; samples without a trip stay dropped");
+            } else {
+                MatchConfig d = MatchConfig.defaults();
+                MatchConfig matchCfg = new MatchConfig(
+                        d.cellSizeM(),
+                        Double.parseDouble(env("MATCH_MAX_DISTANCE_METERS", String.valueOf(d.maxDistanceM()))),
+                        d.gpsSigmaM(),
+                        d.scheduleSigmaS(),
+                        d.scheduleDriftRatio(),
+                        d.maxEarlyS(),
+                        d.maxLateS(),
+                        Integer.parseInt(env("MATCH_MIN_SAMPLES", String.valueOf(d.minSamples()))),
+                        d.minProgressM(),
+                        Double.parseDouble(env("MATCH_MIN_CONFIDENCE", String.valueOf(d.minConfidence()))),
+                        d.historySamples(),
+                        d.maxHeldSamples(),
+                        d.maxBacktrackM(),
+                        d.maxSpeedMps(),
+                        d.maxSampleGap(),
+                        d.releaseAfterMisses(),
+                        d.idleTimeout()
+                );
+                matchIndex = TripMatchIndex.build(gtfsStatic.snapshot(), matchCfg, arrivalZoneId);
+            }
+        }
+
+        Config d = Config.defaults();
+        // Simplification moves absolute stop positions by up to the tolerance, so it stays off unless asked for.
+        Config cfg = new Config(
+                d.densifyStepM(),
+                d.toleranceM(),
+                d.maxScheduleAnchorGapMillis(),
+                d.planarMaxErrorM(),
+                d.windowedProjection(),
+                d.maxSpeedMps(),
+                d.windowSlackM(),
+                d.windowMatchMaxDistM(),
+                Double.parseDouble(env("SHAPE_SIMPLIFY_TOLERANCE_METERS", String.valueOf(d.simplifyToleranceM()))),
+                d.maxSegmentM(),
+                d.curvatureTurnDeg(),
+                Boolean.parseBoolean(env("STOP_PROXIMITY_EARLY_OUT", String.valueOf(d.stopProximityEarlyOut()))),
+                d.monotonicStopProjection()
+        );
+        // Legacy rows sit in the partitions of the input topic, so once the detector runs on the by-vehicle
+        // repartition most vehicles never meet theirs; migration is only on by default without it.
+        boolean repartitionByVehicle = Boolean.parseBoolean(env("REPARTITION_BY_VEHICLE", "true"));
+        boolean migrateLegacyState = Boolean.parseBoolean(env("MIGRATE_LEGACY_STATE", String.valueOf(!repartitionByVehicle)));
+        if (migrateLegacyState && repartitionByVehicle) {
+            System.err.println("[ArrivalDetector] MIGRATE_LEGACY_STATE with REPARTITION_BY_VEHICLE only finds legacy "
+                    + "state for vehicles that land on their old partition");
+        }
+        DetectorOptions options = new DetectorOptions(
+                Boolean.parseBoolean(env("ASYNC_TRIP_LOADING", "true")),
+                tripLoaderThreads,
+                Integer.parseInt(env("MAX_PENDING_SAMPLES_PER_VEHICLE", "64")),
+                migrateLegacyState,
+                Duration.ofHours(Long.parseLong(env("STATE_TTL_HOURS", "6"))),
+                Duration.ofMinutes(Long.parseLong(env("COMPLETED_STATE_TTL_MINUTES", "15"))),
+                Duration.ofSeconds(Long.parseLong(env("STATE_SWEEP_INTERVAL_SECONDS", "10"))),
+                Integer.parseInt(env("STATE_SWEEP_SLICE_SIZE", "1000")),
+                repartitionByVehicle,
+                Integer.parseInt(env("REPARTITION_PARTITIONS", "0")),
+                Boolean.parseBoolean(env("WINDOWED_AGGREGATES", "false")),
+                Duration.ofMinutes(Long.parseLong(env("AGGREGATE_WINDOW_MINUTES", "15"))),
+                Duration.ofMinutes(Long.parseLong(env("AGGREGATE_GRACE_MINUTES", "5"))),
+                Duration.ofHours(Long.parseLong(env("AGGREGATE_RETENTION_HOURS", "48"))),
+                Boolean.parseBoolean(env("SUPPRESS_STATE_WRITES", "false")),
+                Double.parseDouble(env("STATE_WRITE_MIN_PROGRESS_METERS", "100")),
+                Duration.ofSeconds(Long.parseLong(env("STATE_FLUSH_INTERVAL_SECONDS", "30"))),
+                Boolean.parseBoolean(env("DEDUP_ARRIVALS",
+                        String.valueOf(StreamsConfig.AT_LEAST_ONCE.equals(processingGuarantee))))
+        );
+
+        TripRuntimeFactory tripRuntimeFactory = new TripRuntimeFactory(
                 stopProvider,
                 shapeProvider,
                 scheduleProvider,
                 cfg,
+                cacheSpec,
+                tripLoader,
+                tripSnapshotPath.isEmpty() ? null : Path.of(tripSnapshotPath),
+                feedFingerprint
+        );
+
+        Topology topology = ArrivalDetectorTopology.build(
+                inputTopic,
+                outputTopic,
+                tripRuntimeFactory,
+                cfg,
+                options,
                 schemaRegistryUrl,
-                arrivalZoneId
+                arrivalZoneId,
+                matchIndex
         );
 
+        if (globalGtfs != null) {
+            globalGtfs.addTo(topology);
+        }
+
         KafkaStreams streams = new KafkaStreams(topology, props);
+        if (globalGtfs != null) {
+            globalGtfs.attach(streams);
+        }
         streams.start();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(streams::close));
+        QueryServer queryServer = null;
+        if (queryPort > 0) {
+            try {
+                queryServer = new QueryServer(streams, queryHost, queryPort, options, tripRuntimeFactory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to bind query server on port " + queryPort, e);
+            }
+            queryServer.start();
+        }
+        QueryServer startedQueryServer = queryServer;
+
+        if (!tripSnapshotPath.isEmpty()) {
+            long flushSeconds = Long.parseLong(env("TRIP_SNAPSHOT_FLUSH_SECONDS", "300"));
+            ScheduledExecutorService snapshotFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "trip-snapshot-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshotFlusher.scheduleWithFixedDelay(tripRuntimeFactory::flushSnapshot, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (startedQueryServer != null) {
+                startedQueryServer.close();
+            }
+            streams.close();
+            tripRuntimeFactory.flushSnapshot();
+        }));
     }
 
     private static String env(String name, String def) {
@@ -0,0 +1,84 @@
+package iot.data.platform.streams;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class VehicleKeySerde implements Serde<VehicleKey> {
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 1;
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    @Override
+    public Serializer<VehicleKey> serializer() {
+        return (topic, key) -> (key == null) ? null : encode(key);
+    }
+
+    @Override
+    public Deserializer<VehicleKey> deserializer() {
+        return (topic, data) -> decode(data);
+    }
+
+    static byte[] encode(VehicleKey key) {
+        byte[] agency = utf8(key.agency());
+        byte[] vehicleId = utf8(key.vehicleId());
+        byte[] tripId = utf8(key.tripId());
+        ByteBuffer buf = ByteBuffer.allocate(2 + 6 + length(agency) + length(vehicleId) + length(tripId));
+        buf.put(MAGIC).put(VERSION);
+        putString(buf, agency);
+        putString(buf, vehicleId);
+        putString(buf, tripId);
+        return buf.array();
+    }
+
+    static VehicleKey decode(byte[] data) {
+        if (data == null || data.length == 0) return null;
+        if (data.length < 8 || data[0] != MAGIC) {
+            throw new SerializationException("Unknown VehicleKey encoding");
+        }
+        if (data[1] != VERSION) {
+            throw new SerializationException("Unsupported VehicleKey version " + data[1]);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 2, data.length - 2);
+        try {
+            return new VehicleKey(getString(buf), getString(buf), getString(buf));
+        } catch (BufferUnderflowException e) {
+            throw new SerializationException("Truncated VehicleKey (" + data.length + " bytes)", e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        if (s == null) return null;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_LENGTH) {
+            throw new SerializationException("VehicleKey field too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static int length(byte[] bytes) {
+        return (bytes == null) ? 0 : bytes.length;
+    }
+
+    private static void putString(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putShort((short) NULL_LENGTH);
+        } else {
+            buf.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = Short.toUnsignedInt(buf.getShort());
+        if (len == NULL_LENGTH) return null;
+        if (len > buf.remaining()) throw new BufferUnderflowException();
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+}
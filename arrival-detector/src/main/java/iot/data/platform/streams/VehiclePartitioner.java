@@ -0,0 +1,24 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.streams.processor.StreamPartitioner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Set;
+
+public class VehiclePartitioner implements StreamPartitioner<VehicleKey, Types.PositionSample> {
+
+    @Override
+    public Optional<Set<Integer>> partitions(String topic, VehicleKey key, Types.PositionSample value, int numPartitions) {
+        if (key == null) return Optional.empty();
+        return Optional.of(Set.of(partition(key, numPartitions)));
+    }
+
+    static int partition(VehicleKey key, int numPartitions) {
+        String vehicle = (key.vehicleId() != null) ? key.vehicleId() : key.tripId();
+        String affinity = key.agency() + '\u0000' + vehicle;
+        return Utils.toPositive(Utils.murmur2(affinity.getBytes(StandardCharsets.UTF_8))) % numPartitions;
+    }
+}
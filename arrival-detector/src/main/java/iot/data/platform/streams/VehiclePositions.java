@@ -0,0 +1,36 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Types;
+import org.apache.avro.generic.GenericRecord;
+
+public final class VehiclePositions {
+
+    private VehiclePositions() {
+    }
+
+    public static VehicleKey key(GenericRecord rec) {
+        if (rec == null) return null;
+        return new VehicleKey(
+                rec.get("agency").toString(),
+                emptyToNull(rec.get("vehicle_id")),
+                emptyToNull(rec.get("trip_id"))
+        );
+    }
+
+    public static Types.PositionSample sample(GenericRecord rec) {
+        if (rec == null) return null;
+        return new Types.PositionSample(
+                emptyToNull(rec.get("vehicle_id")),
+                emptyToNull(rec.get("trip_id")),
+                (double) rec.get("latitude"),
+                (double) rec.get("longitude"),
+                (long) rec.get("ts_ms")
+        );
+    }
+
+    static String emptyToNull(Object value) {
+        if (value == null) return null;
+        String s = value.toString();
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -0,0 +1,47 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.VehicleState;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.ByteBuffer;
+
+public class VehicleStateSerde implements Serde<VehicleState> {
+    static final byte MAGIC = (byte) 0xB8;
+    static final byte VERSION = 1;
+    static final int ENCODED_BYTES = 2 + 8 + 4 + 8;
+
+    @Override
+    public Serializer<VehicleState> serializer() {
+        return (topic, state) -> (state == null) ? null : encode(state);
+    }
+
+    @Override
+    public Deserializer<VehicleState> deserializer() {
+        return (topic, data) -> decode(data);
+    }
+
+    static byte[] encode(VehicleState state) {
+        return ByteBuffer.allocate(ENCODED_BYTES)
+                .put(MAGIC)
+                .put(VERSION)
+                .putDouble(state.progressM())
+                .putInt(state.nextStopIdx())
+                .putLong(state.lastTsMillis())
+                .array();
+    }
+
+    static VehicleState decode(byte[] data) {
+        if (data == null || data.length == 0) return null;
+        if (data.length != ENCODED_BYTES || data[0] != MAGIC) {
+            throw new SerializationException("Unknown VehicleState encoding (" + data.length + " bytes)");
+        }
+        if (data[1] != VERSION) {
+            throw new SerializationException("Unsupported VehicleState version " + data[1]);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 2, data.length - 2);
+        return new VehicleState(buf.getDouble(), buf.getInt(), buf.getLong());
+    }
+}
@@ -0,0 +1,56 @@
+package iot.data.platform.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PolylineProjectionTest {
+    private static final double LAT0 = 59.33;
+    private static final double LON0 = 18.06;
+
+    // 1 km east along a street, then back west in the opposite lane 20 m to the north.
+    private static List<Types.ShapePoint> outAndBack() {
+        List<Types.ShapePoint> shape = new ArrayList<>();
+        for (int m = 0; m <= 1000; m += 100) shape.add(point(0, m));
+        for (int m = 1000; m >= 0; m -= 100) shape.add(point(20, m));
+        return shape;
+    }
+
+    @Test
+    void projectForwardTakesTheFirstPassAfterTheCursor() {
+        ShapeGeometry g = ShapeGeometry.of(PolylineUtils.densify(outAndBack(), 10.0), 0.5);
+        Types.ShapePoint out = point(-5, 200);
+        Types.ShapePoint back = point(25, 200);
+        int pastTurn = g.segmentAt(1100.0);
+
+        assertEquals(200.0, PolylineProjection.projectForward(out.lat(), out.lon(), g, 0, 60.0).alongM(), 10.0);
+        assertEquals(1820.0, PolylineProjection.projectForward(back.lat(), back.lon(), g, 0, 60.0).alongM(), 10.0);
+        assertEquals(1820.0, PolylineProjection.projectForward(out.lat(), out.lon(), g, pastTurn, 60.0).alongM(), 10.0);
+    }
+
+    @Test
+    void stopsOnTheReturnLegArePlacedOnTheReturnLeg() {
+        List<Types.StopPoint> stops = List.of(
+                stop("A", -5, 200, 1),
+                stop("B", -5, 800, 2),
+                stop("C", 25, 800, 3),
+                stop("D", 25, 200, 4)
+        );
+        TripRuntime trip = new TripRuntime(stops, outAndBack(), -1L, Config.defaults());
+
+        assertArrayEquals(new double[]{200, 800, 1220, 1820}, trip.stopS, 10.0);
+    }
+
+    private static Types.StopPoint stop(String id, double northM, double eastM, int seq) {
+        Types.ShapePoint p = point(northM, eastM);
+        return new Types.StopPoint(id, p.lat(), p.lon(), seq);
+    }
+
+    private static Types.ShapePoint point(double northM, double eastM) {
+        return new Types.ShapePoint(LAT0 + northM / 111_320.0, LON0 + eastM / (111_320.0 * Math.cos(Math.toRadians(LAT0))));
+    }
+}
@@ -0,0 +1,98 @@
+package iot.data.platform.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StopArrivalAlgorithmTest {
+    private static final double LAT0 = 59.33;
+    private static final double LON0 = 18.06;
+
+    @Test
+    void earlyOutEmitsSameArrivalsOnLoopingShape() {
+        // once round a block and on along the first two sides again, so later stops sit next to earlier ones
+        double[] headings = {0, Math.PI / 2, Math.PI, 3 * Math.PI / 2, 0, Math.PI / 2};
+        List<Types.ShapePoint> shape = new ArrayList<>();
+        double north = 0, east = 0;
+        shape.add(point(north, east));
+        for (double h : headings) {
+            for (int j = 0; j < 20; j++) {
+                north += Math.cos(h) * 30;
+                east += Math.sin(h) * 30;
+                shape.add(point(north, east));
+            }
+        }
+        List<Types.StopPoint> stops = new ArrayList<>();
+        for (int i = 5, seq = 1; i < shape.size(); i += 9, seq++) {
+            Types.ShapePoint p = shape.get(i);
+            stops.add(new Types.StopPoint("S" + seq, p.lat(), p.lon(), seq));
+        }
+
+        Config full = config(false);
+        Config early = config(true);
+        TripRuntime trip = new TripRuntime(stops, shape, -1L, full);
+        StopArrivalAlgorithm fullAlg = new StopArrivalAlgorithm(full);
+        StopArrivalAlgorithm earlyAlg = new StopArrivalAlgorithm(early);
+
+        // a vehicle already tracked from the first stop; a fresh state projects onto the whole shape and may
+        // start on the second lap
+        long ts = 1_000_000L;
+        VehicleState fullState = new VehicleState(0.0, 0, ts), earlyState = fullState;
+        List<Types.StopArrival> fullArrivals = new ArrayList<>(), earlyArrivals = new ArrayList<>();
+        int skipped = 0;
+        Random r = new Random(7);
+        for (int i = 0; i < shape.size(); i++) {
+            Types.ShapePoint p = shape.get(i);
+            ts += 3000 + r.nextInt(5000);
+            Types.PositionSample s = new Types.PositionSample("V", "T",
+                    p.lat() + r.nextGaussian() * 5 / 111_320.0, p.lon() + r.nextGaussian() * 5 / 56_000.0, ts);
+            StopArrivalAlgorithm.Result fr = fullAlg.detect(s, trip, fullState);
+            StopArrivalAlgorithm.Result er = earlyAlg.detect(s, trip, earlyState);
+            fullState = fr.newState();
+            earlyState = er.newState();
+            fullArrivals.addAll(fr.arrivals());
+            earlyArrivals.addAll(er.arrivals());
+            if (er.projectionSkipped()) skipped++;
+            assertEquals(fullState.nextStopIdx(), earlyState.nextStopIdx());
+        }
+
+        assertEquals(stops.size(), fullArrivals.size());
+        assertEquals(stopIds(fullArrivals), stopIds(earlyArrivals));
+        for (int i = 0; i < fullArrivals.size(); i++) {
+            assertEquals(fullArrivals.get(i).arrivalTimeMillis(), earlyArrivals.get(i).arrivalTimeMillis());
+        }
+        assertTrue(skipped > 0, "early-out never taken");
+    }
+
+    private static List<String> stopIds(List<Types.StopArrival> arrivals) {
+        return arrivals.stream().map(Types.StopArrival::stopId).toList();
+    }
+
+    private static Types.ShapePoint point(double northM, double eastM) {
+        return new Types.ShapePoint(LAT0 + northM / 111_320.0, LON0 + eastM / (111_320.0 * Math.cos(Math.toRadians(LAT0))));
+    }
+
+    private static Config config(boolean stopProximityEarlyOut) {
+        Config d = Config.defaults();
+        return new Config(
+                d.densifyStepM(),
+                d.toleranceM(),
+                d.maxScheduleAnchorGapMillis(),
+                d.planarMaxErrorM(),
+                true,
+                d.maxSpeedMps(),
+                d.windowSlackM(),
+                d.windowMatchMaxDistM(),
+                d.simplifyToleranceM(),
+                d.maxSegmentM(),
+                d.curvatureTurnDeg(),
+                stopProximityEarlyOut,
+                d.monotonicStopProjection()
+        );
+    }
+}
@@ -0,0 +1,133 @@
+package iot.data.platform.core;
+
+import iot.data.platform.cache.CacheSpec;
+import iot.data.platform.spi.ShapeProvider;
+import iot.data.platform.spi.StopProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class TripSnapshotTest {
+    private static final double LAT0 = 59.33;
+    private static final double LON0 = 18.06;
+    private static final long FEED = 42L;
+    private static final List<String> TRIPS = List.of("T1", "T2", "T3");
+
+    // T1 and T2 share a shape with different stops, T3 has no shape and runs on the line through its stops.
+    private static final ShapeProvider SHAPES = new ShapeProvider() {
+        @Override
+        public List<Types.ShapePoint> getShape(String tripId) {
+            if (tripId.equals("T3")) return List.of();
+            List<Types.ShapePoint> shape = new ArrayList<>();
+            for (int m = 0; m <= 3000; m += 150) shape.add(point(30 * Math.sin(m / 400.0), m));
+            return shape;
+        }
+
+        @Override
+        public String getShapeId(String tripId) {
+            return tripId.equals("T3") ? null : "S";
+        }
+    };
+
+    @TempDir
+    Path dir;
+
+    private static List<Types.StopPoint> stops(String tripId) {
+        List<Types.StopPoint> stops = new ArrayList<>();
+        int step = tripId.equals("T2") ? 2 : 1;
+        for (int k = 0, seq = 1; k <= 6; k += step, seq++) {
+            Types.ShapePoint p = point(k % 2 == 0 ? 8 : -8, k * 500);
+            stops.add(new Types.StopPoint(tripId + "-P" + k, p.lat(), p.lon(), seq));
+        }
+        return stops;
+    }
+
+    @Test
+    void snapshotRuntimesMatchFreshlyBuiltOnes() {
+        Path file = dir.resolve("trips.snapshot");
+        TripRuntimeFactory writer = factory(TripSnapshotTest::stops, file, FEED);
+        for (String tripId : TRIPS) writer.get(tripId);
+        writer.flushSnapshot();
+
+        TripRuntimeFactory fresh = factory(TripSnapshotTest::stops, null, FEED);
+        TripRuntimeFactory reader = factory(tripId -> {
+            throw new AssertionError("trip " + tripId + " rebuilt instead of read from the snapshot");
+        }, file, FEED);
+        for (String tripId : TRIPS) {
+            assertSameRuntime(fresh.get(tripId), reader.get(tripId));
+        }
+    }
+
+    @Test
+    void snapshotOfAnotherFeedIsIgnored() throws IOException {
+        Path file = dir.resolve("trips.snapshot");
+        TripRuntimeFactory writer = factory(TripSnapshotTest::stops, file, FEED);
+        for (String tripId : TRIPS) writer.get(tripId);
+        writer.flushSnapshot();
+        long written = TripSnapshot.map(file).fingerprint();
+
+        AtomicInteger sameFeedBuilds = new AtomicInteger();
+        AtomicInteger otherFeedBuilds = new AtomicInteger();
+        factory(counting(sameFeedBuilds), file, FEED).get("T1");
+        TripRuntimeFactory other = factory(counting(otherFeedBuilds), file, FEED + 1);
+        TripRuntime trip = other.get("T1");
+
+        assertEquals(0, sameFeedBuilds.get());
+        assertEquals(1, otherFeedBuilds.get());
+        assertSameRuntime(factory(TripSnapshotTest::stops, null, FEED).get("T1"), trip);
+
+        // the next flush replaces the foreign snapshot with one for this feed
+        other.flushSnapshot();
+        assertNotEquals(written, TripSnapshot.map(file).fingerprint());
+        assertEquals(1, TripSnapshot.map(file).tripCount());
+        AtomicInteger rereadBuilds = new AtomicInteger();
+        factory(counting(rereadBuilds), file, FEED + 1).get("T1");
+        assertEquals(0, rereadBuilds.get());
+    }
+
+    private static StopProvider counting(AtomicInteger builds) {
+        return tripId -> {
+            builds.incrementAndGet();
+            return stops(tripId);
+        };
+    }
+
+    private static TripRuntimeFactory factory(StopProvider stops, Path snapshotFile, long feedFingerprint) {
+        return new TripRuntimeFactory(stops, SHAPES, null, Config.defaults(), CacheSpec.defaults(),
+                Runnable::run, snapshotFile, feedFingerprint);
+    }
+
+    private static void assertSameRuntime(TripRuntime want, TripRuntime got) {
+        assertEquals(want.stops, got.stops);
+        assertArrayEquals(want.stopS, got.stopS);
+        assertEquals(want.scheduledStartTimeMillis, got.scheduledStartTimeMillis);
+
+        ShapeGeometry a = want.geometry, b = got.geometry;
+        assertEquals(a.sourcePoints, b.sourcePoints);
+        assertArrayEquals(a.lat, b.lat);
+        assertArrayEquals(a.lon, b.lon);
+        assertArrayEquals(a.x, b.x);
+        assertArrayEquals(a.y, b.y);
+        assertArrayEquals(a.cum, b.cum);
+        assertArrayEquals(a.segLen, b.segLen);
+        assertArrayEquals(a.heading, b.heading);
+        assertArrayEquals(a.geodesicSeg, b.geodesicSeg);
+        assertEquals(a.lat0, b.lat0);
+        assertEquals(a.lon0, b.lon0);
+        assertEquals(a.mPerDegLat, b.mPerDegLat);
+        assertEquals(a.mPerDegLon, b.mPerDegLon);
+    }
+
+    private static Types.ShapePoint point(double northM, double eastM) {
+        return new Types.ShapePoint(LAT0 + northM / 111_320.0, LON0 + eastM / (111_320.0 * Math.cos(Math.toRadians(LAT0))));
+    }
+}
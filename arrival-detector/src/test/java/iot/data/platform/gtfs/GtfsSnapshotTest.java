@@ -0,0 +1,167 @@
+package iot.data.platform.gtfs;
+
+import iot.data.platform.core.Types;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GtfsSnapshotTest {
+    private static final ZoneId ZONE = ZoneId.of("Europe/Stockholm");
+    private static final LocalDate MONDAY = LocalDate.of(2026, 10, 19);
+
+    @TempDir
+    Path dir;
+
+    // Shape points and stop times are listed out of order, one stop has no position and one trip runs past
+    // midnight; weekday service is cancelled on one Tuesday and added on one Saturday.
+    private Path feed() throws IOException {
+        Path zip = dir.resolve("feed.zip");
+        try (ZipOutputStream z = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (Map.Entry<String, String> e : Map.of(
+                    "stops.txt", """
+                            stop_id,stop_lat,stop_lon
+                            A,59.33,18.06
+                            B,59.331,18.061
+                            C,59.332,18.062
+                            X,,
+                            """,
+                    "shapes.txt", """
+                            shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence
+                            S1,59.332,18.062,30
+                            S2,59.40,18.10,1
+                            S1,59.33,18.06,10
+                            S1,59.331,18.061,20
+                            S2,59.41,18.11,2
+                            """,
+                    "trips.txt", """
+                            route_id,service_id,trip_id,shape_id
+                            R,WD,DAY,S1
+                            R,WD,NIGHT,S2
+                            R,ALL,NOSHAPE,
+                            R,SAT,SATURDAY,S1
+                            """,
+                    "stop_times.txt", """
+                            trip_id,arrival_time,departure_time,stop_id,stop_sequence
+                            DAY,08:10:00,08:10:00,C,3
+                            DAY,08:00:00,08:00:30,A,1
+                            DAY,08:04:00,08:04:00,X,4
+                            DAY,08:05:00,08:05:00,B,2
+                            NIGHT,24:50:00,24:50:00,A,1
+                            NIGHT,25:10:00,25:10:00,C,2
+                            NOSHAPE,,,B,1
+                            NOSHAPE,,,C,2
+                            SATURDAY,10:00:00,10:00:00,A,1
+                            """,
+                    "calendar.txt", """
+                            service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date
+                            WD,1,1,1,1,1,0,0,20260101,20261231
+                            SAT,0,0,0,0,0,1,0,20260101,20261231
+                            """,
+                    "calendar_dates.txt", """
+                            service_id,date,exception_type
+                            WD,20261020,2
+                            WD,20261024,1
+                            """
+            ).entrySet()) {
+                z.putNextEntry(new ZipEntry(e.getKey()));
+                z.write(e.getValue().getBytes(StandardCharsets.UTF_8));
+                z.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    @Test
+    void compiledFeedReadsBack() throws IOException {
+        Path file = dir.resolve("feed.snapshot");
+        GtfsSnapshotCompiler.compile(feed(), file, 7L);
+        GtfsSnapshot s = GtfsSnapshot.map(file);
+
+        assertEquals(7L, s.fingerprint());
+        assertEquals(4, s.tripCount());
+        assertEquals(2, s.shapeCount());
+        assertEquals(-1, s.tripIndex("MISSING"));
+        for (String tripId : List.of("DAY", "NIGHT", "NOSHAPE", "SATURDAY")) {
+            assertEquals(tripId, s.tripId(s.tripIndex(tripId)));
+        }
+
+        int day = s.tripIndex("DAY");
+        assertEquals(8 * 3600 + 30, s.scheduledStartSeconds(day));
+        assertEquals(8 * 3600 + 600, s.scheduledEndSeconds(day));
+        assertEquals(List.of(
+                new Types.StopPoint("A", 59.33, 18.06, 1),
+                new Types.StopPoint("B", 59.331, 18.061, 2),
+                new Types.StopPoint("C", 59.332, 18.062, 3)
+        ), s.stops(day));
+        assertEquals("S1", s.shapeId(s.shapeIndex(day)));
+        assertEquals(List.of(
+                new Types.ShapePoint(59.33, 18.06),
+                new Types.ShapePoint(59.331, 18.061),
+                new Types.ShapePoint(59.332, 18.062)
+        ), s.shapePoints(s.shapeIndex(day)));
+
+        int night = s.tripIndex("NIGHT");
+        assertEquals(24 * 3600 + 50 * 60, s.scheduledStartSeconds(night));
+        assertEquals(25 * 3600 + 10 * 60, s.scheduledEndSeconds(night));
+        assertEquals("S2", s.shapeId(s.shapeIndex(night)));
+
+        int noShape = s.tripIndex("NOSHAPE");
+        assertEquals(-1, s.shapeIndex(noShape));
+        assertEquals(-1, s.scheduledStartSeconds(noShape));
+        assertEquals(-1, s.scheduledEndSeconds(noShape));
+        assertEquals(2, s.stops(noShape).size());
+    }
+
+    @Test
+    void calendarAndExceptionsDecideServiceDays() throws IOException {
+        Path file = dir.resolve("feed.snapshot");
+        GtfsSnapshotCompiler.compile(feed(), file, 7L);
+        GtfsSnapshot s = GtfsSnapshot.map(file);
+        int day = s.tripIndex("DAY");
+        int saturday = s.tripIndex("SATURDAY");
+        int noService = s.tripIndex("NOSHAPE");
+
+        assertTrue(s.runsOn(day, MONDAY));
+        assertFalse(s.runsOn(day, MONDAY.plusDays(1)));
+        assertTrue(s.runsOn(day, MONDAY.plusDays(2)));
+        assertTrue(s.runsOn(day, MONDAY.plusDays(5)));
+        assertFalse(s.runsOn(day, MONDAY.plusDays(6)));
+        assertFalse(s.runsOn(day, LocalDate.of(2027, 1, 4)));
+
+        assertFalse(s.runsOn(saturday, MONDAY));
+        assertTrue(s.runsOn(saturday, MONDAY.plusDays(5)));
+
+        assertTrue(s.runsOn(noService, MONDAY.plusDays(6)));
+    }
+
+    @Test
+    void snapshotOfAnotherFeedIsRecompiled() throws IOException {
+        Path zip = feed();
+        Path file = dir.resolve("feed.snapshot");
+        GtfsSnapshotCompiler.compile(zip, file, 7L);
+
+        long fingerprint = GtfsStaticProvider.open(zip, file, ZONE).snapshot().fingerprint();
+        assertNotEquals(7L, fingerprint);
+        assertEquals(fingerprint, GtfsSnapshot.map(file).fingerprint());
+
+        FileTime compiled = Files.getLastModifiedTime(file);
+        assertEquals(fingerprint, GtfsStaticProvider.open(zip, file, ZONE).snapshot().fingerprint());
+        assertEquals(compiled, Files.getLastModifiedTime(file));
+    }
+}
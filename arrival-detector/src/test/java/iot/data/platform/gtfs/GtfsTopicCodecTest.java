@@ -0,0 +1,75 @@
+package iot.data.platform.gtfs;
+
+import iot.data.platform.core.Types;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GtfsTopicCodecTest {
+
+    @Test
+    void tripRoundTripsWithoutShapeAndWithFallingSequences() {
+        // sequences that go down and coordinates on both sides of zero give negative deltas
+        List<Types.StopPoint> stops = List.of(
+                new Types.StopPoint("a", 59.3293235, 18.0685808, 10),
+                new Types.StopPoint("b", -33.8688197, -151.2092955, 3),
+                new Types.StopPoint("c", 0.0, 0.0, 7),
+                new Types.StopPoint("d", 59.3293235, 18.0685808, 1)
+        );
+        GtfsTopicCodec.TripRecord decoded = GtfsTopicCodec.decodeTrip(
+                GtfsTopicCodec.encodeTrip(new GtfsTopicCodec.TripRecord(null, 27_000, stops)));
+
+        assertNull(decoded.shapeId());
+        assertEquals(27_000, decoded.scheduledStartSeconds());
+        assertEquals(stops.size(), decoded.stops().size());
+        for (int i = 0; i < stops.size(); i++) {
+            Types.StopPoint want = stops.get(i);
+            Types.StopPoint got = decoded.stops().get(i);
+            assertEquals(want.stopId(), got.stopId());
+            assertEquals(want.stopSequence(), got.stopSequence());
+            assertEquals(want.lat(), got.lat(), 1e-9);
+            assertEquals(want.lon(), got.lon(), 1e-9);
+        }
+    }
+
+    @Test
+    void tripKeepsShapeIdAndMissingStart() {
+        GtfsTopicCodec.TripRecord decoded = GtfsTopicCodec.decodeTrip(
+                GtfsTopicCodec.encodeTrip(new GtfsTopicCodec.TripRecord("shape-ö", -1, List.of())));
+
+        assertEquals("shape-ö", decoded.shapeId());
+        assertEquals(-1, decoded.scheduledStartSeconds());
+        assertEquals(List.of(), decoded.stops());
+    }
+
+    @Test
+    void shapeRoundTrips() {
+        List<Types.ShapePoint> points = List.of(
+                new Types.ShapePoint(59.3293235, 18.0685808),
+                new Types.ShapePoint(59.3290001, 18.0680002),
+                new Types.ShapePoint(-0.0000001, -179.9999999)
+        );
+        List<Types.ShapePoint> decoded = GtfsTopicCodec.decodeShape(GtfsTopicCodec.encodeShape(points));
+
+        assertEquals(points.size(), decoded.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(points.get(i).lat(), decoded.get(i).lat(), 1e-9);
+            assertEquals(points.get(i).lon(), decoded.get(i).lon(), 1e-9);
+        }
+    }
+
+    @Test
+    void otherVersionsAreRejected() {
+        byte[] trip = GtfsTopicCodec.encodeTrip(new GtfsTopicCodec.TripRecord("s", 0, List.of()));
+        byte[] shape = GtfsTopicCodec.encodeShape(List.of(new Types.ShapePoint(1, 2)));
+        trip[0] = (byte) (GtfsTopicCodec.VERSION + 1);
+        shape[0] = (byte) (GtfsTopicCodec.VERSION + 1);
+
+        assertThrows(IllegalArgumentException.class, () -> GtfsTopicCodec.decodeTrip(trip));
+        assertThrows(IllegalArgumentException.class, () -> GtfsTopicCodec.decodeShape(shape));
+    }
+}
@@ -0,0 +1,129 @@
+package iot.data.platform.match;
+
+import iot.data.platform.gtfs.GtfsSnapshot;
+import iot.data.platform.gtfs.GtfsStaticProvider;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TripMatcherTest {
+    private static final ZoneId ZONE = ZoneId.of("Europe/Stockholm");
+    private static final LocalDate MONDAY = LocalDate.of(2026, 10, 19);
+    private static final double LAT0 = 59.33;
+    private static final double LON0 = 18.06;
+    private static final double ROUTE_M = 3000;
+
+    @TempDir
+    static Path dir;
+
+    private static TripMatchIndex index;
+
+    // One street served in both directions, both trips leaving at 08:00.
+    @BeforeAll
+    static void buildIndex() throws IOException {
+        StringBuilder shapes = new StringBuilder("shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence\n");
+        StringBuilder stops = new StringBuilder("stop_id,stop_lat,stop_lon\n");
+        StringBuilder stopTimes = new StringBuilder("trip_id,arrival_time,departure_time,stop_id,stop_sequence\n");
+        for (int i = 0; i <= 30; i++) {
+            shapes.append("EAST,").append(LAT0).append(',').append(lon(i * 100)).append(',').append(i).append('\n');
+            shapes.append("WEST,").append(LAT0).append(',').append(lon(ROUTE_M - i * 100)).append(',').append(i).append('\n');
+        }
+        for (int k = 0; k <= 6; k++) {
+            stops.append("P").append(k).append(',').append(LAT0).append(',').append(lon(k * 500)).append('\n');
+            stopTimes.append("EAST,").append(hms(8 * 3600 + k * 50)).append(',').append(hms(8 * 3600 + k * 50))
+                    .append(",P").append(k).append(',').append(k + 1).append('\n');
+            stopTimes.append("WEST,").append(hms(8 * 3600 + k * 50)).append(',').append(hms(8 * 3600 + k * 50))
+                    .append(",P").append(6 - k).append(',').append(k + 1).append('\n');
+        }
+        Path zip = dir.resolve("feed.zip");
+        try (ZipOutputStream z = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (Map.Entry<String, String> e : Map.of(
+                    "shapes.txt", shapes.toString(),
+                    "stops.txt", stops.toString(),
+                    "stop_times.txt", stopTimes.toString(),
+                    "trips.txt", "route_id,service_id,trip_id,shape_id\nR,WD,EAST,EAST\nR,WD,WEST,WEST\n",
+                    "calendar.txt", "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date\n"
+                            + "WD,1,1,1,1,1,0,0,20260101,20261231\n"
+            ).entrySet()) {
+                z.putNextEntry(new ZipEntry(e.getKey()));
+                z.write(e.getValue().getBytes(StandardCharsets.UTF_8));
+                z.closeEntry();
+            }
+        }
+        GtfsSnapshot snapshot = GtfsStaticProvider.open(zip, dir.resolve("feed.snapshot"), ZONE).snapshot();
+        index = TripMatchIndex.build(snapshot, MatchConfig.defaults(), ZONE);
+    }
+
+    @Test
+    void holdsSamplesUntilCommitThenHandsThemBack() {
+        TripMatcher<Integer> matcher = index.newMatcher();
+        long start = GtfsStaticProvider.serviceDayOrigin(MONDAY, ZONE) + 8 * 3600 * 1000L;
+
+        String tripId = null;
+        int sample = 0;
+        while (tripId == null && sample < 15) {
+            tripId = matcher.match("bus", LAT0, lon(sample * 100), start + sample * 10_000L, sample);
+            if (tripId == null) {
+                assertNull(matcher.takeCommit("bus"));
+                sample++;
+            }
+        }
+        assertEquals("EAST", tripId);
+        assertTrue(sample >= MatchConfig.defaults().minSamples() - 1);
+
+        TripMatcher.Commit<Integer> commit = matcher.takeCommit("bus");
+        assertNotNull(commit);
+        assertEquals("EAST", commit.tripId());
+        assertEquals(start, commit.fromTsMillis());
+        assertEquals(0.0, commit.fromAlongM(), 5.0);
+        List<Integer> held = new ArrayList<>();
+        for (int i = 0; i < sample; i++) held.add(i);
+        assertEquals(held, commit.held());
+        assertNull(matcher.takeCommit("bus"));
+
+        sample++;
+        assertEquals("EAST", matcher.match("bus", LAT0, lon(sample * 100), start + sample * 10_000L, sample));
+        assertNull(matcher.takeCommit("bus"));
+    }
+
+    @Test
+    void completedTripIsMatchedAgainFromScratch() {
+        TripMatcher<Integer> matcher = index.newMatcher();
+        long start = GtfsStaticProvider.serviceDayOrigin(MONDAY, ZONE) + 8 * 3600 * 1000L;
+
+        String tripId = null;
+        int sample = 0;
+        for (; tripId == null && sample < 15; sample++) {
+            tripId = matcher.match("bus", LAT0, lon(sample * 100), start + sample * 10_000L, sample);
+        }
+        assertEquals("EAST", tripId);
+
+        matcher.tripCompleted("bus", "EAST");
+        assertNull(matcher.match("bus", LAT0, lon(sample * 100), start + sample * 10_000L, sample));
+    }
+
+    private static double lon(double eastM) {
+        return LON0 + eastM / (111_320.0 * Math.cos(Math.toRadians(LAT0)));
+    }
+
+    private static String hms(int secs) {
+        return String.format("%02d:%02d:%02d", secs / 3600, secs / 60 % 60, secs % 60);
+    }
+}
@@ -0,0 +1,167 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.Config;
+import iot.data.platform.core.TripRuntimeFactory;
+import iot.data.platform.core.Types;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.state.KeyValueBytesStoreSupplier;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ArrivalDedupTest {
+    private static final DetectorOptions D = DetectorOptions.defaults();
+    private static final DetectorOptions OPTIONS = new DetectorOptions(
+            false,
+            D.tripLoaderThreads(),
+            D.maxPendingSamplesPerVehicle(),
+            false,
+            D.stateTtl(),
+            D.completedStateTtl(),
+            D.stateSweepInterval(),
+            D.stateSweepSliceSize(),
+            false,
+            0,
+            false,
+            D.aggregateWindow(),
+            D.aggregateGrace(),
+            D.aggregateRetention(),
+            false,
+            D.stateWriteMinProgressM(),
+            D.stateFlushInterval(),
+            true
+    );
+    private static final VehicleKey BUS = new VehicleKey("sl", "V1", "T1");
+    private static final List<Types.StopPoint> STOPS = List.of(
+            new Types.StopPoint("A", 59.30, 18.0, 1),
+            new Types.StopPoint("B", 59.31, 18.0, 2),
+            new Types.StopPoint("C", 59.32, 18.0, 3)
+    );
+    private static final long T0 = 1_760_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    private record Run(List<String> emitted, Map<Bytes, byte[]> watermarks, double deduplicated) {}
+
+    @Test
+    void replayAfterCrashEmitsEachArrivalOnce() {
+        Run beforeCrash = run(Map.of(), 15);
+        assertEquals(List.of("A", "B"), beforeCrash.emitted());
+
+        // offsets were not committed, so every sample is read again; the vehicle's state did not survive
+        Run replay = run(beforeCrash.watermarks(), 25);
+        assertEquals(List.of("C"), replay.emitted());
+        assertEquals(2.0, replay.deduplicated());
+    }
+
+    @Test
+    void replayWithoutWatermarkEmitsAgain() {
+        run(Map.of(), 15);
+
+        assertEquals(List.of("A", "B", "C"), run(Map.of(), 25).emitted());
+    }
+
+    // Feeds samples 0..lastSample north along the stops into a fresh driver whose watermark store starts with the
+    // given rows, as a task restored from its changelog would.
+    private Run run(Map<Bytes, byte[]> watermarks, int lastSample) {
+        StreamsBuilder builder = new StreamsBuilder();
+        VehicleKeySerde keySerde = new VehicleKeySerde();
+        builder.addStateStore(Stores.keyValueStoreBuilder(
+                Stores.inMemoryKeyValueStore(ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME),
+                keySerde, new VehicleStateSerde()));
+        SeededStore watermarkStore = new SeededStore(
+                Stores.inMemoryKeyValueStore(ArrivalDetectorProcessor.ARRIVAL_WATERMARK_STORE_NAME), watermarks);
+        builder.addStateStore(Stores.keyValueStoreBuilder(
+                watermarkStore, Serdes.String(), new JsonSerde<>(ArrivalWatermark.class)));
+
+        TripRuntimeFactory trips = new TripRuntimeFactory(tripId -> STOPS, null, null, Config.defaults());
+        builder.stream("positions", Consumed.with(keySerde, new JsonSerde<>(Types.PositionSample.class)))
+                .process(() -> new ArrivalDetectorProcessor(trips, Config.defaults(), ZoneId.of("UTC"), OPTIONS),
+                        ArrivalDetectorProcessor.VEHICLE_STATE_STORE_NAME,
+                        ArrivalDetectorProcessor.ARRIVAL_WATERMARK_STORE_NAME)
+                .to("arrivals", Produced.with(keySerde, new JsonSerde<>(StopArrivalEvent.class)));
+
+        Properties props = new Properties();
+        props.put("application.id", "arrival-dedup-test");
+        props.put("bootstrap.servers", "localhost:9092");
+        props.put("state.dir", dir.toString());
+        try (TopologyTestDriver driver = new TopologyTestDriver(builder.build(), props)) {
+            TestInputTopic<VehicleKey, Types.PositionSample> in = driver.createInputTopic("positions",
+                    keySerde.serializer(), new JsonSerde<>(Types.PositionSample.class).serializer());
+            for (int i = 0; i <= lastSample; i++) {
+                long ts = T0 + i * 10_000L;
+                in.pipeInput(BUS, new Types.PositionSample("V1", "T1", 59.30 + i * 0.001, 18.0, ts), ts);
+            }
+            List<String> emitted = driver.createOutputTopic("arrivals",
+                            keySerde.deserializer(), new JsonSerde<>(StopArrivalEvent.class).deserializer())
+                    .readValuesToList().stream().map(StopArrivalEvent::stopId).toList();
+            double deduplicated = 0.0;
+            for (Map.Entry<MetricName, ? extends Metric> m : driver.metrics().entrySet()) {
+                if (m.getKey().name().equals("arrivals-deduplicated-total")) {
+                    deduplicated = (Double) m.getValue().metricValue();
+                }
+            }
+            return new Run(emitted, watermarkStore.contents(), deduplicated);
+        }
+    }
+
+    private static final class SeededStore implements KeyValueBytesStoreSupplier {
+        private final KeyValueBytesStoreSupplier inner;
+        private final Map<Bytes, byte[]> seed;
+        private KeyValueStore<Bytes, byte[]> store;
+
+        SeededStore(KeyValueBytesStoreSupplier inner, Map<Bytes, byte[]> seed) {
+            this.inner = inner;
+            this.seed = seed;
+        }
+
+        @Override
+        public String name() {
+            return inner.name();
+        }
+
+        @Override
+        public KeyValueStore<Bytes, byte[]> get() {
+            store = inner.get();
+            seed.forEach(store::put);
+            return store;
+        }
+
+        @Override
+        public String metricsScope() {
+            return inner.metricsScope();
+        }
+
+        Map<Bytes, byte[]> contents() {
+            Map<Bytes, byte[]> rows = new HashMap<>();
+            try (KeyValueIterator<Bytes, byte[]> it = store.all()) {
+                while (it.hasNext()) {
+                    KeyValue<Bytes, byte[]> kv = it.next();
+                    rows.put(kv.key, kv.value);
+                }
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package iot.data.platform.streams;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VehicleKeySerdeTest {
+    private final VehicleKeySerde serde = new VehicleKeySerde();
+
+    @Test
+    void roundTripsNullAndNonAsciiFields() {
+        for (VehicleKey key : new VehicleKey[]{
+                new VehicleKey("sl", "9031005920505555", "14010000665781405"),
+                new VehicleKey("skånetrafiken", "", null),
+                new VehicleKey(null, null, null)
+        }) {
+            assertEquals(key, serde.deserializer().deserialize("t", serde.serializer().serialize("t", key)));
+        }
+        assertNull(serde.serializer().serialize("t", null));
+        assertNull(serde.deserializer().deserialize("t", null));
+    }
+
+    @Test
+    void wrongMagicIsRejected() {
+        byte[] data = VehicleKeySerde.encode(new VehicleKey("sl", "V1", "T1"));
+        data[0] = '{';
+
+        assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", data));
+    }
+
+    @Test
+    void wrongVersionIsRejected() {
+        byte[] data = VehicleKeySerde.encode(new VehicleKey("sl", "V1", "T1"));
+        data[1] = VehicleKeySerde.VERSION + 1;
+
+        assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", data));
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        byte[] data = VehicleKeySerde.encode(new VehicleKey("sl", "V1", "T1"));
+        for (int len = 1; len < data.length; len++) {
+            byte[] cut = Arrays.copyOf(data, len);
+            assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", cut), "length " + len);
+        }
+    }
+}
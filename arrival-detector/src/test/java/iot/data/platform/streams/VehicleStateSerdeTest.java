@@ -0,0 +1,55 @@
+package iot.data.platform.streams;
+
+import iot.data.platform.core.VehicleState;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VehicleStateSerdeTest {
+    private final VehicleStateSerde serde = new VehicleStateSerde();
+
+    @Test
+    void roundTrips() {
+        for (VehicleState state : new VehicleState[]{
+                new VehicleState(1234.5678, 7, 1_760_000_000_123L),
+                new VehicleState(0.0, 0, 0L),
+                new VehicleState(-1.0, -1, -1L)
+        }) {
+            byte[] data = serde.serializer().serialize("t", state);
+            assertEquals(VehicleStateSerde.ENCODED_BYTES, data.length);
+            assertEquals(state, serde.deserializer().deserialize("t", data));
+        }
+        assertNull(serde.serializer().serialize("t", null));
+        assertNull(serde.deserializer().deserialize("t", null));
+    }
+
+    @Test
+    void wrongMagicIsRejected() {
+        byte[] data = VehicleStateSerde.encode(new VehicleState(10.0, 1, 1000L));
+        data[0] = '{';
+
+        assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", data));
+    }
+
+    @Test
+    void wrongVersionIsRejected() {
+        byte[] data = VehicleStateSerde.encode(new VehicleState(10.0, 1, 1000L));
+        data[1] = VehicleStateSerde.VERSION + 1;
+
+        assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", data));
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        byte[] data = VehicleStateSerde.encode(new VehicleState(10.0, 1, 1000L));
+        for (int len = 1; len < data.length; len++) {
+            byte[] cut = Arrays.copyOf(data, len);
+            assertThrows(SerializationException.class, () -> serde.deserializer().deserialize("t", cut), "length " + len);
+        }
+    }
+}